@@ -0,0 +1,225 @@
+package org.example;
+
+import com.google.gson.JsonObject;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits on what clients may take from the server, shared by the connection engines and sessions:
+ * open connections (in total and per client address), how long a connection may sit idle or take to
+ * send one request line, and how many requests per second each user may make. The request limit is
+ * a token bucket per username, so opening more connections doesn't raise it. A connection's requests
+ * count against the user it logged in as; only a trusted service, which knows the service secret, may
+ * act for other users on one connection.
+ *
+ * <p>Every rejection is counted in {@link Metrics} and answered with an error that carries one of
+ * the codes below, e.g. {@code {"error":"Too many connections, try again later","code":"TOO_MANY_CONNECTIONS"}}.
+ */
+public class AdmissionControl {
+    public static final String TOO_MANY_CONNECTIONS = "TOO_MANY_CONNECTIONS";
+    public static final String IDLE_TIMEOUT = "IDLE_TIMEOUT";
+    public static final String READ_TIMEOUT = "READ_TIMEOUT";
+    public static final String RATE_LIMITED = "RATE_LIMITED";
+    public static final String UPLOADS_BUSY = "UPLOADS_BUSY";
+    public static final String FORBIDDEN = "FORBIDDEN";
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final long idleTimeoutMillis;
+    private final long readTimeoutMillis;
+    private final double requestsPerSecond;
+    private final double requestBurst;
+    private final String serviceSecret; // Null when no client may act for other users
+    private final AtomicInteger open = new AtomicInteger();
+    private final ConcurrentHashMap<String, Integer> openByAddress = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Limits of 0 or below are off. The idle timeout doesn't apply to subscribed sessions, which
+     * legitimately only listen; a dead subscriber is found when a push to it fails.
+     */
+    public AdmissionControl(int maxConnections, int maxConnectionsPerAddress, long idleTimeoutMillis, long readTimeoutMillis,
+                            double requestsPerSecond, int requestBurst, String serviceSecret) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.requestsPerSecond = requestsPerSecond;
+        this.requestBurst = Math.max(1, requestBurst);
+        this.serviceSecret = serviceSecret == null || serviceSecret.isEmpty() ? null : serviceSecret;
+    }
+
+    // No limits at all, for benchmarks and tools
+    public static AdmissionControl unlimited() {
+        return new AdmissionControl(0, 0, 0, 0, 0, 1, null);
+    }
+
+    // Whether a client that sent this secret in its handshake is a trusted service
+    public boolean isServiceSecret(String secret) {
+        return secretMatches(serviceSecret, secret);
+    }
+
+    // Compares in constant time, so the time of a wrong guess doesn't tell how much of it was right
+    static boolean secretMatches(String expected, String given) {
+        return expected != null && given != null
+                && MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Counts a new connection from the address, or refuses it (and counts the refusal); admitted ones must be released
+    public boolean tryOpen(String address) {
+        if (maxConnections > 0 && open.incrementAndGet() > maxConnections) {
+            open.decrementAndGet();
+            Metrics.CONNECTIONS_REJECTED.increment();
+            return false;
+        } else if (maxConnections <= 0) {
+            open.incrementAndGet();
+        }
+        if (maxConnectionsPerAddress > 0) {
+            // Checked and counted under the map's lock for the address, so release() can't drop the counter in between
+            boolean[] admitted = {false};
+            openByAddress.compute(address, (key, count) -> {
+                int current = count == null ? 0 : count;
+                if (current >= maxConnectionsPerAddress) {
+                    return count;
+                }
+                admitted[0] = true;
+                return current + 1;
+            });
+            if (!admitted[0]) {
+                open.decrementAndGet();
+                Metrics.CONNECTIONS_REJECTED.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void release(String address) {
+        open.decrementAndGet();
+        if (maxConnectionsPerAddress > 0) {
+            // Counters at zero are dropped, so the map only holds addresses with open connections
+            openByAddress.computeIfPresent(address, (key, count) -> count <= 1 ? null : count - 1);
+        }
+    }
+
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    // 0 when off
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    // How long the rest of a request line may take once it has started arriving; 0 when off
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    // How often the engines should look for timed out connections
+    public long getCheckIntervalMillis() {
+        long shortest = Long.MAX_VALUE;
+        if (idleTimeoutMillis > 0) {
+            shortest = idleTimeoutMillis;
+        }
+        if (readTimeoutMillis > 0) {
+            shortest = Math.min(shortest, readTimeoutMillis);
+        }
+        return shortest == Long.MAX_VALUE ? 0 : Math.max(100, Math.min(1000, shortest / 4));
+    }
+
+    // The timeout code a connection has run into, or null; partialSince is when the current unfinished line started (0 if none)
+    public String timedOut(long now, long lastActivity, long partialSince, boolean listening) {
+        if (partialSince != 0) {
+            return readTimeoutMillis > 0 && now - partialSince > readTimeoutMillis ? READ_TIMEOUT : null;
+        }
+        return idleTimeoutMillis > 0 && !listening && now - lastActivity > idleTimeoutMillis ? IDLE_TIMEOUT : null;
+    }
+
+    // Whether a write that started at writeSince (0 if none) has been blocked for longer than the read timeout
+    public boolean writeTimedOut(long now, long writeSince) {
+        return readTimeoutMillis > 0 && writeSince != 0 && now - writeSince > readTimeoutMillis;
+    }
+
+    public static String timeoutMessage(String code) {
+        return IDLE_TIMEOUT.equals(code) ? "Connection idle for too long, closing it" : "Request took too long to arrive, closing the connection";
+    }
+
+    // Takes one request from the user's allowance: 0 if the request may go ahead, else the milliseconds until it would
+    public long tryAcquireRequest(String username) {
+        if (requestsPerSecond <= 0 || username == null) {
+            return 0;
+        }
+        // Taken under the map's lock for the user, so sweep() can't drop the bucket between lookup and use
+        long[] wait = new long[1];
+        buckets.compute(username, (key, bucket) -> {
+            if (bucket == null) {
+                bucket = new TokenBucket(requestBurst);
+            }
+            wait[0] = bucket.tryAcquire(System.nanoTime(), requestsPerSecond, requestBurst);
+            return bucket;
+        });
+        long waitMillis = wait[0];
+        if (waitMillis > 0) {
+            Metrics.REQUESTS_RATE_LIMITED.increment();
+        }
+        return waitMillis;
+    }
+
+    // Drops the buckets that have refilled completely; the engines call it while checking timeouts
+    public void sweep() {
+        if (buckets.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (String username : buckets.keySet()) {
+            buckets.computeIfPresent(username, (key, bucket) -> bucket.isFull(now, requestsPerSecond, requestBurst) ? null : bucket);
+        }
+    }
+
+    // A complete error line, for answering before there is a session to do it
+    public static String rejection(String code, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        error.addProperty("code", code);
+        return error.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Admission[open=" + open.get() + (maxConnections > 0 ? "/" + maxConnections : "") + ", rateLimitedUsers=" + buckets.size() + "]";
+    }
+
+    // Only used inside buckets.compute(), which already serializes the calls for one user
+    private static final class TokenBucket {
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double burst) {
+            this.tokens = burst;
+            this.refilledAt = System.nanoTime();
+        }
+
+        long tryAcquire(long now, double perSecond, double burst) {
+            refill(now, perSecond, burst);
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / perSecond * 1000));
+        }
+
+        boolean isFull(long now, double perSecond, double burst) {
+            refill(now, perSecond, burst);
+            return tokens >= burst;
+        }
+
+        private void refill(long now, double perSecond, double burst) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) / (double) TimeUnit.SECONDS.toNanos(1) * perSecond);
+            refilledAt = now;
+        }
+    }
+}
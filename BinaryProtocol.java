@@ -0,0 +1,390 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact server-to-client encoding, chosen with {@code "protocol": "binary"} in the user handshake.
+ * Requests stay JSON lines (they are tiny); responses become length-prefixed frames, big-endian:
+ *
+ * <pre>
+ * frame    = int32 length (of everything after it), uint8 type, string id (JSON text, empty = none), payload
+ * string   = uint16 byte length (0xffff = null), UTF-8 bytes
+ * JSON     (type 1): the rest of the frame is a UTF-8 JSON object (menus, errors, acknowledgements)
+ * WEATHER  (type 2): weather
+ * BATCH    (type 3): int32 count, count x weather, int32 unknown count, unknown count x string
+ * PUSH     (type 4): int32 count, count x weather (subscribed locations changed by an upload, no id)
+ * NEAREST  (type 5): float64 distance_km, weather (getNearestWeather)
+ * weather  = string location, string current_weather, float64 current_temperature, forecast
+ * forecast = uint8 0 (none) | uint8 1, uint8 days, days x (string weather, float64 temperature)
+ *          | uint8 2, int32 byte length, UTF-8 JSON (forecasts that don't fit the day schema)
+ * </pre>
+ *
+ * {@link #readFrame} turns a frame back into the JSON object the text protocol would have sent;
+ * {@link WeatherClient} decodes frames straight from its read buffer instead, without JSON objects.
+ */
+public final class BinaryProtocol {
+    public static final byte FRAME_JSON = 1;
+    public static final byte FRAME_WEATHER = 2;
+    public static final byte FRAME_WEATHER_BATCH = 3;
+    public static final byte FRAME_WEATHER_PUSH = 4;
+    public static final byte FRAME_WEATHER_NEAREST = 5;
+
+    private static final byte FORECAST_NONE = 0;
+    private static final byte FORECAST_DAYS = 1;
+    private static final byte FORECAST_RAW = 2;
+    private static final int NULL_STRING = 0xffff;
+    private static final int MAX_ID_BYTES = NULL_STRING - 1; // Request ids must be shorter than this
+    private static final Gson GSON = new Gson();
+
+    private BinaryProtocol() {
+    }
+
+    // The weather part of a getWeather response, without frame header
+    static byte[] encodeWeather(WeatherRecord record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeString(out, record.getLocation());
+            writeString(out, record.getCurrentWeather());
+            out.writeDouble(record.getCurrentTemperature());
+            writeForecast(out, record.getForecastJson());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e); // In memory, only an oversized string fails
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeForecast(DataOutputStream out, String forecastJson) throws IOException {
+        if (forecastJson == null) {
+            out.writeByte(FORECAST_NONE);
+            return;
+        }
+        JsonArray days = asDays(GSON.fromJson(forecastJson, JsonElement.class));
+        if (days == null) {
+            byte[] raw = forecastJson.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(FORECAST_RAW);
+            out.writeInt(raw.length);
+            out.write(raw);
+            return;
+        }
+        out.writeByte(FORECAST_DAYS);
+        out.writeByte(days.size());
+        for (JsonElement day : days) {
+            JsonObject entry = day.getAsJsonObject();
+            writeString(out, entry.get("weather").getAsString());
+            out.writeDouble(entry.get("temperature").getAsDouble());
+        }
+    }
+
+    // The forecast as a list of {"weather": string, "temperature": number} days, or null if it is anything else
+    private static JsonArray asDays(JsonElement forecast) {
+        if (forecast == null || !forecast.isJsonArray() || forecast.getAsJsonArray().size() > 255) {
+            return null;
+        }
+        for (JsonElement day : forecast.getAsJsonArray()) {
+            if (!day.isJsonObject() || day.getAsJsonObject().size() != 2) {
+                return null;
+            }
+            JsonElement weather = day.getAsJsonObject().get("weather");
+            JsonElement temperature = day.getAsJsonObject().get("temperature");
+            if (weather == null || !weather.isJsonPrimitive() || !weather.getAsJsonPrimitive().isString()
+                    || temperature == null || !temperature.isJsonPrimitive() || !temperature.getAsJsonPrimitive().isNumber()) {
+                return null;
+            }
+        }
+        return forecast.getAsJsonArray();
+    }
+
+    // Whether a request id, as JSON text, is short enough to be echoed in a frame
+    static boolean fitsRequestId(String idJson) {
+        return idJson.getBytes(StandardCharsets.UTF_8).length < MAX_ID_BYTES;
+    }
+
+    // A complete frame; idJson is the request id as JSON text, or null
+    static byte[] frame(byte type, String idJson, byte[]... parts) {
+        byte[] id = idJson == null ? new byte[0] : idJson.getBytes(StandardCharsets.UTF_8);
+        if (id.length >= MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Request id too long for the binary protocol: " + id.length + " bytes");
+        }
+        int length = 1 + 2 + id.length;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 + length);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(length);
+            out.writeByte(type);
+            out.writeShort(id.length);
+            out.write(id);
+            for (byte[] part : parts) {
+                out.write(part);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] jsonFrame(String idJson, String json) {
+        return frame(FRAME_JSON, idJson, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static byte[] nearestFrame(String idJson, double distanceKm, byte[] weather) {
+        byte[] distance = ByteBuffer.allocate(8).putDouble(distanceKm).array();
+        return frame(FRAME_WEATHER_NEAREST, idJson, distance, weather);
+    }
+
+    // Results in request order (null values are unknown locations), each weather taken from the cache
+    static byte[] batchFrame(String idJson, Map<String, WeatherResponse> responses) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(8 + responses.size() * 96);
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            int found = 0;
+            for (WeatherResponse response : responses.values()) {
+                if (response != null) {
+                    found++;
+                }
+            }
+            out.writeInt(found);
+            for (WeatherResponse response : responses.values()) {
+                if (response != null) {
+                    out.write(response.getBinaryWeather());
+                }
+            }
+            out.writeInt(responses.size() - found);
+            for (Map.Entry<String, WeatherResponse> entry : responses.entrySet()) {
+                if (entry.getValue() == null) {
+                    writeString(out, entry.getKey());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame(FRAME_WEATHER_BATCH, idJson, payload.toByteArray());
+    }
+
+    // A server-initiated update of subscribed locations, each weather taken from its cached encoding
+    static byte[] pushFrame(Collection<WeatherResponse> updates) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(4 + updates.size() * 96);
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.writeInt(updates.size());
+            for (WeatherResponse update : updates) {
+                out.write(update.getBinaryWeather());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame(FRAME_WEATHER_PUSH, null, payload.toByteArray());
+    }
+
+    /**
+     * Reads one frame and rebuilds the object the JSON protocol would have sent for it, with the
+     * request id (if any) under "id". Returns null at the end of the stream.
+     */
+    public static JsonObject readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(frame));
+        byte type = body.readByte();
+        String id = readString(body);
+
+        JsonObject message;
+        switch (type) {
+            case FRAME_JSON: {
+                byte[] json = new byte[body.available()]; // Exact for an in-memory stream: the rest of the frame
+                body.readFully(json);
+                message = JsonParser.parseString(new String(json, StandardCharsets.UTF_8)).getAsJsonObject();
+                break;
+            }
+            case FRAME_WEATHER:
+                message = readWeather(body);
+                break;
+            case FRAME_WEATHER_BATCH: {
+                message = new JsonObject();
+                JsonArray results = new JsonArray();
+                for (int i = body.readInt(); i > 0; i--) {
+                    results.add(readWeather(body));
+                }
+                JsonArray unknown = new JsonArray();
+                for (int i = body.readInt(); i > 0; i--) {
+                    unknown.add(readString(body));
+                }
+                message.add("results", results);
+                message.add("unknown", unknown);
+                break;
+            }
+            case FRAME_WEATHER_NEAREST: {
+                message = new JsonObject();
+                message.addProperty("distance_km", body.readDouble()); // First, like the JSON response
+                for (Map.Entry<String, JsonElement> field : readWeather(body).entrySet()) {
+                    message.add(field.getKey(), field.getValue());
+                }
+                break;
+            }
+            case FRAME_WEATHER_PUSH: {
+                message = new JsonObject();
+                JsonArray results = new JsonArray();
+                for (int i = body.readInt(); i > 0; i--) {
+                    results.add(readWeather(body));
+                }
+                message.addProperty("event", "weatherUpdate");
+                message.add("results", results);
+                break;
+            }
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+        if (id != null && !id.isEmpty()) {
+            message.add("id", JsonParser.parseString(id));
+        }
+        return message;
+    }
+
+    private static JsonObject readWeather(DataInputStream in) throws IOException {
+        JsonObject weather = new JsonObject();
+        addIfPresent(weather, "location", readString(in));
+        addIfPresent(weather, "current_weather", readString(in));
+        weather.addProperty("current_temperature", in.readDouble());
+        byte kind = in.readByte();
+        if (kind == FORECAST_DAYS) {
+            JsonArray days = new JsonArray();
+            for (int i = in.readUnsignedByte(); i > 0; i--) {
+                JsonObject day = new JsonObject();
+                addIfPresent(day, "weather", readString(in));
+                day.addProperty("temperature", in.readDouble());
+                days.add(day);
+            }
+            weather.add("forecast", days);
+        } else if (kind == FORECAST_RAW) {
+            byte[] raw = new byte[in.readInt()];
+            in.readFully(raw);
+            weather.add("forecast", JsonParser.parseString(new String(raw, StandardCharsets.UTF_8)));
+        } else {
+            weather.addProperty("forecast", "No forecast available."); // Same as the JSON protocol
+        }
+        return weather;
+    }
+
+    // WeatherClient: a weather payload at the buffer's position
+    static WeatherClient.Weather readWeather(ByteBuffer in) throws IOException {
+        try {
+            String location = readString(in);
+            String currentWeather = readString(in);
+            double currentTemperature = in.getDouble();
+            byte kind = in.get();
+            if (kind == FORECAST_DAYS) {
+                int days = in.get() & 0xff;
+                List<WeatherClient.ForecastDay> forecast = new ArrayList<>(days);
+                for (int i = 0; i < days; i++) {
+                    forecast.add(new WeatherClient.ForecastDay(readString(in), in.getDouble()));
+                }
+                return new WeatherClient.Weather(location, currentWeather, currentTemperature, forecast, null);
+            } else if (kind == FORECAST_RAW) {
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IOException("Truncated forecast");
+                }
+                return new WeatherClient.Weather(location, currentWeather, currentTemperature, Collections.emptyList(), readUtf8(in, length));
+            }
+            return new WeatherClient.Weather(location, currentWeather, currentTemperature, Collections.emptyList(), null);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated weather frame");
+        }
+    }
+
+    // WeatherClient: the payload of a batch frame, known locations in request order (unknown ones are left out)
+    static Map<String, WeatherClient.Weather> readWeatherBatch(ByteBuffer in) throws IOException {
+        try {
+            int count = in.getInt();
+            Map<String, WeatherClient.Weather> results = new LinkedHashMap<>(Math.max(16, count * 2));
+            for (int i = 0; i < count; i++) {
+                WeatherClient.Weather weather = readWeather(in);
+                results.put(weather.getLocation(), weather);
+            }
+            for (int i = in.getInt(); i > 0; i--) {
+                readString(in);
+            }
+            return results;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated batch frame");
+        }
+    }
+
+    static String readString(ByteBuffer in) throws IOException {
+        int length = in.getShort() & 0xffff;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Truncated string");
+        }
+        return readUtf8(in, length);
+    }
+
+    // The next length bytes as UTF-8 text
+    static String readUtf8(ByteBuffer in, int length) {
+        String text;
+        if (in.hasArray()) {
+            text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return text;
+    }
+
+    // Gson leaves null fields out of the JSON protocol, so the decoded object does too
+    private static void addIfPresent(JsonObject object, String name, String value) {
+        if (value != null) {
+            object.addProperty(name, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(NULL_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= NULL_STRING) {
+            throw new IOException("String too long for the binary protocol: " + bytes.length + " bytes");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -2,6 +2,8 @@ package org.example;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -12,19 +14,21 @@ public class Client {
     private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(Client.class.getName());
     private Socket socket;
     private BufferedReader in;
+    private DataInputStream binaryIn; // Used instead of 'in' when the session speaks the binary protocol
     private PrintWriter out;
     private final Gson gson = new Gson(); // GSON instance
+    private final boolean binary = "binary".equalsIgnoreCase(System.getProperty("client.protocol", "json"));
 
     public void start() {
         try {
-            this.socket = new Socket("localhost", 6543);
+            this.socket = new Socket(System.getProperty("client.host", "localhost"), Integer.getInteger("client.port", 6543));
             this.out = new PrintWriter(socket.getOutputStream(), true);  // Auto-flush enabled
             this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
             System.out.println("Connected to the server.");
 
-            // Start reading and writing threads
-            new ReadThread().start();
+            // Start the writing thread; users get a reading thread once they logged in, admins read their replies inline
             new WriteThread().start();
 
         } catch (IOException e) {
@@ -39,56 +43,49 @@ public class Client {
             boolean running = true;
             while (running) {
                 try {
-                    // Read response from the server (as a line)
-                    String response = in.readLine();  // Read line as text
-                    if (response == null) {
+                    // Read response from the server (a JSON line, or a frame in binary mode)
+                    JsonObject jsonResponse = readResponse();
+                    if (jsonResponse == null) {
                         System.out.println("Connection closed.");
                         return;
                     }
 
-                    JsonObject jsonResponse = gson.fromJson(response, JsonObject.class);
-
                     // Display information based on the JSON structure
                     if (jsonResponse.has("header")) {
                         System.out.println("\n=== " + jsonResponse.get("header").getAsString() + " ===");
                     }
+                    if (jsonResponse.has("progress")) {
+                        System.out.println("Progress: " + jsonResponse.get("progress").getAsString());
+                    }
                     if (jsonResponse.has("message")) {
                         System.out.println("\nMessage: " + jsonResponse.get("message").getAsString());
                     }
                     if (jsonResponse.has("error")) {
                         System.out.println("\nError: " + jsonResponse.get("error").getAsString());
                     }
-                    if (jsonResponse.has("location")) {
-                        System.out.println("\nLocation: " + jsonResponse.get("location").getAsString());
-                    }
-                    if (jsonResponse.has("current_weather")) {
-                        System.out.println("Current Weather: " + jsonResponse.get("current_weather").getAsString());
+                    if (jsonResponse.has("suggestions")) {
+                        List<String> suggestions = new ArrayList<>();
+                        jsonResponse.getAsJsonArray("suggestions").forEach(suggestion -> suggestions.add(suggestion.getAsString()));
+                        System.out.println("Did you mean: " + String.join(", ", suggestions) + "?");
                     }
-                    if (jsonResponse.has("current_temperature")) {
-                        System.out.println("Current temperature: " + jsonResponse.get("current_temperature").getAsDouble() + "°C");
+                    if (jsonResponse.has("subscriptions")) {
+                        System.out.println("Subscribed locations: " + jsonResponse.get("subscriptions"));
                     }
-                    if (jsonResponse.has("forecast")) {
-                        // Ensure the 'forecast' field is an array
-                        JsonElement forecastElement = jsonResponse.get("forecast");
-                        if (forecastElement.isJsonArray()) {
-                            JsonArray forecastArray = forecastElement.getAsJsonArray();
-
-                            // Display the forecast
-                            System.out.println("Forecast:");
-                            for (JsonElement forecastItem : forecastArray) {
-                                JsonObject forecastObject = forecastItem.getAsJsonObject();
-                                String weather = forecastObject.get("weather").getAsString();
-                                double temperature = forecastObject.get("temperature").getAsDouble();
-                                System.out.println("- " + weather + ", " + temperature + "°C");
-                            }
-                        } else {
-                            System.out.println("No forecast available or the format is incorrect.");
+                    // Pushed by the server when an upload changed a subscribed location
+                    if (jsonResponse.has("event") && "weatherUpdate".equals(jsonResponse.get("event").getAsString())) {
+                        System.out.println("\n=== Weather update ===");
+                        for (JsonElement update : jsonResponse.getAsJsonArray("results")) {
+                            printWeather(update.getAsJsonObject());
                         }
                     }
+                    printWeather(jsonResponse);
                     if (jsonResponse.has("option1") && jsonResponse.has("option2")) {
                         System.out.println(jsonResponse.get("option1").getAsString());
                         System.out.println(jsonResponse.get("option2").getAsString());
-                        System.out.println("3. Exit");
+                        if (jsonResponse.has("option3")) {
+                            System.out.println(jsonResponse.get("option3").getAsString());
+                        }
+                        System.out.println("4. Exit");
                     }
                 } catch (IOException e) {
                     running = false;
@@ -97,6 +94,45 @@ public class Client {
         }
     }
 
+    private static void printWeather(JsonObject jsonResponse) {
+        if (jsonResponse.has("location")) {
+            System.out.println("\nLocation: " + jsonResponse.get("location").getAsString());
+        }
+        if (jsonResponse.has("current_weather")) {
+            System.out.println("Current Weather: " + jsonResponse.get("current_weather").getAsString());
+        }
+        if (jsonResponse.has("current_temperature")) {
+            System.out.println("Current temperature: " + jsonResponse.get("current_temperature").getAsDouble() + "°C");
+        }
+        if (jsonResponse.has("forecast")) {
+            // Ensure the 'forecast' field is an array
+            JsonElement forecastElement = jsonResponse.get("forecast");
+            if (forecastElement.isJsonArray()) {
+                JsonArray forecastArray = forecastElement.getAsJsonArray();
+
+                // Display the forecast
+                System.out.println("Forecast:");
+                for (JsonElement forecastItem : forecastArray) {
+                    JsonObject forecastObject = forecastItem.getAsJsonObject();
+                    String weather = forecastObject.get("weather").getAsString();
+                    double temperature = forecastObject.get("temperature").getAsDouble();
+                    System.out.println("- " + weather + ", " + temperature + "°C");
+                }
+            } else {
+                System.out.println("No forecast available or the format is incorrect.");
+            }
+        }
+    }
+
+    // Binary frames decode to the same JSON objects the text protocol sends, so both share the display code
+    private JsonObject readResponse() throws IOException {
+        if (binary) {
+            return BinaryProtocol.readFrame(binaryIn);
+        }
+        String response = in.readLine();  // Read line as text
+        return response == null ? null : gson.fromJson(response, JsonObject.class);
+    }
+
     private class WriteThread extends Thread {
         @Override
         public void run() {
@@ -140,8 +176,23 @@ public class Client {
             }
             JsonObject jsonResponse = gson.fromJson(response, JsonObject.class);
 
+            // Large uploads report progress until the final message arrives
+            while (jsonResponse.has("progress")) {
+                System.out.println("Progress: " + jsonResponse.get("progress").getAsString());
+                response = in.readLine();
+                if (response == null) {
+                    return;
+                }
+                jsonResponse = gson.fromJson(response, JsonObject.class);
+            }
+
             if (jsonResponse.has("message")) {
                 System.out.println("\nMessage: " + jsonResponse.get("message").getAsString());
+                if (jsonResponse.has("inserted")) {
+                    System.out.println("Inserted: " + jsonResponse.get("inserted").getAsLong()
+                            + ", updated: " + jsonResponse.get("updated").getAsLong()
+                            + ", unchanged: " + jsonResponse.get("unchanged").getAsLong());
+                }
                 if ("JSON data uploaded successfully.".equals(jsonResponse.get("message").getAsString()) ||
                         "Exiting...".equals(jsonResponse.get("message").getAsString())) {
                     running = false; // Exit the loop if the file was uploaded or if the user chose 'exit'
@@ -161,6 +212,10 @@ public class Client {
         JsonObject request = new JsonObject();
         request.addProperty("role", "user");
         request.addProperty("username", username);
+        if (binary) {
+            request.addProperty("protocol", "binary"); // Negotiated here; start with -Dclient.protocol=binary
+        }
+        new ReadThread().start();
 
         // Send the request to the server
         out.println(gson.toJson(request));
@@ -213,6 +268,9 @@ public class Client {
                 request.addProperty("currentLocation", newLocation);
                 System.out.println("Location updated successfully.");
             } else if (option == 3) {
+                // Updates for the current location are pushed from now on, following later location changes
+                request.addProperty("type", "subscribe");
+            } else if (option == 4) {
                 request.addProperty("type", "disconnect");
                 out.println(gson.toJson(request)); // Send the disconnection request
                 out.flush();
@@ -0,0 +1,1184 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.sql.SQLException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Request handling for a single client connection, independent of how the bytes reach the server.
+ * Every connection engine feeds this class one protocol line at a time, so the admin/user flow is
+ * the same whether the session runs on its own thread or on a shared event loop.
+ *
+ * <p>Users that send {@code "pipelined": true} in the handshake get the pipelined protocol: no menus,
+ * exactly one response line per request (a {@code {"status":"ok"}} acknowledgement when there is
+ * nothing else to say), and the request's {@code "id"} echoed in its response. Such clients can send
+ * many requests without waiting and match the answers by id.
+ *
+ * <p>Users that send {@code "protocol": "binary"} in the handshake get their responses as
+ * {@link BinaryProtocol} frames instead of JSON lines; their requests stay JSON lines.
+ *
+ * <p>Users that subscribe ({@code "subscribe": true} in the handshake, or a {@code subscribe} request)
+ * are sent {@code {"event":"weatherUpdate",...}} messages whenever an upload changes their current
+ * location or one of the extra locations they subscribed to; see {@link SubscriptionIndex}. These
+ * arrive between responses at any time and never carry an id.
+ *
+ * <p>On a {@link Cluster} node, lookups of locations other nodes own are forwarded to them, and the
+ * other nodes connect with {@code "role": "peer"} for the requests listed there.
+ */
+public class ClientSession {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(ClientSession.class.getName());
+    private static final Gson gson = new Gson(); // Thread-safe, shared by all sessions
+    // Logging every response on the request path costs more than serving it: log a sample, asynchronously
+    private static final SampledLogger RESPONSE_LOG = new SampledLogger(LOGGER,
+            Integer.getInteger("log.responseSampleRate", 1000), Integer.getInteger("log.queueSize", 1024));
+    // Connects and disconnects: every one by default, but written off the session's thread and dropped when the log falls behind
+    private static final SampledLogger CONNECTION_LOG = new SampledLogger(LOGGER,
+            Integer.getInteger("log.connectionSampleRate", 1), Integer.getInteger("log.queueSize", 1024));
+    private static final int MAX_BATCH_LOCATIONS = Integer.getInteger("protocol.maxBatch", 1000);
+    private static final int MAX_SUGGESTIONS = Integer.getInteger("locations.suggestions", 3);
+
+    // Where the session writes its responses (a socket stream or a non-blocking channel)
+    public interface Output {
+        void send(String line) throws IOException;
+
+        // A complete message: a UTF-8 encoded line with its trailing newline, or a binary protocol frame
+        void send(byte[] line) throws IOException;
+
+        // Bytes accepted by send but not yet written to the socket (engines whose send blocks have none)
+        default long pendingBytes() {
+            return 0;
+        }
+
+        // Whether send may park the caller until the client reads; engines that queue the bytes return false
+        default boolean sendBlocks() {
+            return true;
+        }
+
+        void close() throws IOException;
+
+        String remoteAddress();
+    }
+
+    private enum State { AWAITING_ROLE, ADMIN_UPLOAD, ADMIN_UPLOADING, AWAITING_LOCATION, READY, PEER, CLOSED }
+
+    private final Output output;
+    private final WeatherStorage storage;
+    private final WeatherCache weatherCache;
+    private final WeatherIngest weatherIngest;
+    private final UserWriteBehind userWrites;
+    private final SubscriptionIndex subscriptions;
+    private final SpatialIndex spatialIndex;
+    private final LocationNameIndex nameIndex;
+    private final WeatherColumns weatherColumns;
+    private final WeatherHistory history;
+    private final AdmissionControl admission;
+    private final Cluster cluster; // Null when the server runs alone
+    private volatile SubscriptionIndex.Subscriber subscriber; // Null until the user subscribes; read by the engines' timeout checks
+    private volatile State state = State.AWAITING_ROLE; // Also set by the upload thread when an upload ends
+    private String username;
+    private String currentLocation;
+    private boolean pipelined;
+    private boolean binary;
+    private boolean trustedService; // Knows the service secret, so its requests may act for other users
+    private JsonElement requestId; // Echoed in every response to the current request (pipelined mode only)
+    private boolean responded; // Whether the current request has produced a response line yet
+
+    public ClientSession(Output output, WeatherStorage storage, WeatherCache weatherCache, WeatherIngest weatherIngest,
+                         UserWriteBehind userWrites, SubscriptionIndex subscriptions, SpatialIndex spatialIndex,
+                         LocationNameIndex nameIndex, WeatherColumns weatherColumns, WeatherHistory history,
+                         AdmissionControl admission, Cluster cluster) {
+        this.output = output;
+        this.storage = storage;
+        this.weatherCache = weatherCache;
+        this.weatherIngest = weatherIngest;
+        this.userWrites = userWrites;
+        this.subscriptions = subscriptions;
+        this.spatialIndex = spatialIndex;
+        this.nameIndex = nameIndex;
+        this.weatherColumns = weatherColumns;
+        this.history = history;
+        this.admission = admission;
+        this.cluster = cluster;
+    }
+
+    public void start() {
+        Metrics.CONNECTIONS_OPENED.increment();
+        CONNECTION_LOG.info(() -> "Client connected: " + output.remoteAddress());
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    // Called once for every line received from the client
+    public void handleLine(String jsonRequest) {
+        switch (state) {
+            case AWAITING_ROLE:
+                handleHandshake(jsonRequest);
+                break;
+            case ADMIN_UPLOAD:
+                handleAdminRequest(jsonRequest);
+                break;
+            case ADMIN_UPLOADING:
+                handleRequestDuringUpload();
+                break;
+            case AWAITING_LOCATION:
+            case READY:
+                handleUserRequest(jsonRequest);
+                break;
+            case PEER:
+                handlePeerRequest(jsonRequest);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Subscribed sessions and admins waiting for their upload only listen, so they are never closed for being idle
+    public boolean isListening() {
+        return subscriber != null || state == State.ADMIN_UPLOADING;
+    }
+
+    // Called by the engine to turn the client away (a timeout): sends the error with its code, then closes
+    public void reject(String code, String message) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        try {
+            sendError(message, code);
+        } catch (IOException e) {
+            LOGGER.severe("Error sending error response: " + e.getMessage());
+        }
+        CONNECTION_LOG.info(() -> "Client closed (" + code + "): " + output.remoteAddress());
+        close();
+    }
+
+    // Called when the peer goes away without sending 'disconnect'
+    public void handleEndOfStream() {
+        if (state != State.CLOSED) {
+            CONNECTION_LOG.info(() -> "Client disconnected: " + output.remoteAddress());
+            close();
+        }
+    }
+
+    // Buffered: the row is written by the next write-behind flush, known users are skipped
+    public void registerUser(String username, String role) throws SQLException {
+        userWrites.register(username, role);
+    }
+
+    // Buffered: repeated changes before the next flush collapse into a single UPDATE
+    public void updateLocationInDatabase(String username, String currentLocation) throws SQLException {
+        userWrites.updateLocation(username, currentLocation);
+    }
+
+    // Queues the upload and returns; the upload thread answers the admin when it is done (finishUpload)
+    private void loadWeatherDataFromJson(String filePath, WeatherIngest.Mode mode, boolean delta) throws IOException {
+        Path path = Paths.get(filePath);
+        if (!Files.exists(path)) {
+            throw new IOException("File not found: " + path.toAbsolutePath());
+        }
+        LOGGER.info("Loading JSON from: " + path.toAbsolutePath());
+        long start = System.nanoTime();
+        state = State.ADMIN_UPLOADING;
+        CompletableFuture<WeatherIngest.Result> upload;
+        try {
+            upload = weatherIngest.submit(path, mode, delta, this::sendProgress);
+        } catch (IOException | RuntimeException e) {
+            state = State.ADMIN_UPLOAD;
+            throw e;
+        }
+        upload.whenComplete((result, error) -> finishUpload(path, start, result, error));
+    }
+
+    // Upload thread: reports the result and closes the session, or lets the admin try another file after a failure
+    private void finishUpload(Path path, long start, WeatherIngest.Result result, Throwable error) {
+        Metrics.UPLOAD.recordSince(start);
+        if (error == null) {
+            LOGGER.info("Loaded " + path.toAbsolutePath() + ": " + result);
+        } else {
+            LOGGER.warning("Failed to load " + path.toAbsolutePath() + ": " + error.getMessage());
+        }
+        if (state == State.CLOSED) {
+            return; // The admin went away meanwhile
+        }
+        try {
+            if (error == null) {
+                JsonObject response = createMessage("JSON data uploaded successfully.");
+                response.addProperty("inserted", result.getInserted());
+                response.addProperty("updated", result.getUpdated());
+                response.addProperty("unchanged", result.getUnchanged());
+                sendResponse(response);
+                LOGGER.info("Admin task completed. Closing connection."); // Log for the server
+                close(); // Close connection
+            } else {
+                state = State.ADMIN_UPLOAD;
+                sendError("Failed to load JSON data: " + error.getMessage());
+                sendResponse(createMessage("Please provide a valid file path or type 'exit' to quit."));
+            }
+        } catch (IOException e) {
+            LOGGER.severe("Error sending the upload result: " + e.getMessage());
+            close();
+        }
+    }
+
+    // The admin's upload answers when it is done; anything sent before that is turned down
+    private void handleRequestDuringUpload() {
+        try {
+            sendError("An upload is already running, please wait for its result.");
+        } catch (IOException e) {
+            LOGGER.severe("Error sending error response: " + e.getMessage());
+        }
+    }
+
+    private void sendProgress(WeatherIngest.Result progress) throws IOException {
+        if (state == State.CLOSED) {
+            throw new IOException("The admin disconnected"); // Stops the upload
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("progress", "Loaded " + progress);
+        response.addProperty("records", progress.getRecords());
+        response.addProperty("bytesRead", progress.getBytesRead());
+        response.addProperty("totalBytes", progress.getTotalBytes());
+        response.addProperty("recordsPerSecond", Math.round(progress.getRecordsPerSecond()));
+        sendResponse(response);
+    }
+
+    private void handleHandshake(String jsonRequest) {
+        responded = false;
+        try {
+            JsonObject request = gson.fromJson(jsonRequest, JsonObject.class);
+
+            if (request.has("role")) {
+                String role = request.get("role").getAsString();
+
+                if ("admin".equals(role)) {
+                    state = State.ADMIN_UPLOAD;
+                    uploadRequestedFile(request);
+                    return; // Admins never see the user menus
+                }
+
+                else if ("user".equals(role)) {
+                    // Optional "pipelined": true switches to id-tagged responses without menus
+                    pipelined = request.has("pipelined") && request.get("pipelined").getAsBoolean();
+                    requestId = pipelined ? readRequestId(request) : null;
+                    // Optional "protocol": "binary" switches the responses to length-prefixed frames
+                    String protocol = request.has("protocol") ? request.get("protocol").getAsString() : "json";
+                    if (!"json".equals(protocol) && !"binary".equals(protocol)) {
+                        sendError("Invalid 'protocol'. Use 'json' or 'binary'.");
+                    }
+                    binary = "binary".equals(protocol);
+                    // Optional "secret": the server's service secret lets a pipelined connection act for many users
+                    if (request.has("secret")) {
+                        trustedService = admission != null && admission.isServiceSecret(request.get("secret").getAsString());
+                        if (!trustedService) {
+                            sendError("Invalid 'secret'.", AdmissionControl.FORBIDDEN);
+                        }
+                    }
+                    // Optional "subscribe": true pushes updates of the current location once it is set
+                    if (request.has("subscribe") && request.get("subscribe").getAsBoolean()) {
+                        if (subscriptions != null) {
+                            subscriber = subscriptions.newSubscriber(output, binary);
+                        } else {
+                            sendError("Subscriptions are not available.");
+                        }
+                    }
+                    if (request.has("username")) {
+                        this.username = request.get("username").getAsString();
+                        long start = System.nanoTime();
+                        registerUser(this.username, "user");
+                        Metrics.REGISTER.recordSince(start);
+                    } else {
+                        sendError("Missing 'username' for user.");
+                    }
+                }
+                // Another node of the cluster: pipelined binary session for the peer requests only
+                else if ("peer".equals(role) && cluster != null) {
+                    if (!cluster.acceptsPeer(output.remoteAddress(), request.has("secret") ? request.get("secret").getAsString() : null)) {
+                        LOGGER.warning("Refused a cluster peer session from " + output.remoteAddress());
+                        reject(AdmissionControl.FORBIDDEN, "Not a node of this cluster.");
+                        return;
+                    }
+                    pipelined = true;
+                    binary = true;
+                    requestId = readRequestId(request);
+                    username = request.has("username") ? request.get("username").getAsString() : null;
+                    state = State.PEER;
+                    LOGGER.info("Cluster node " + username + " connected from " + output.remoteAddress());
+                    finishRequest();
+                    return;
+                } else {
+                    sendError("Invalid role.");
+                }
+            } else {
+                sendError("Missing 'role' field in request.");
+            }
+        } catch (Exception e) {
+            LOGGER.severe("Exception occurred: " + e.getMessage());
+            try {
+                sendError("An error occurred: " + e.getMessage());
+            } catch (IOException ioException) {
+                LOGGER.severe("Error sending error response: " + ioException.getMessage());
+            }
+        }
+        state = State.AWAITING_LOCATION;
+        finishRequest();
+    }
+
+    private void handleAdminRequest(String jsonRequest) {
+        try {
+            JsonObject request = gson.fromJson(jsonRequest, JsonObject.class);
+            if (request.has("filePath") && "exit".equalsIgnoreCase(request.get("filePath").getAsString())) {
+                sendResponse(createMessage("Exiting..."));
+                close(); // Close connection
+                return;
+            }
+            uploadRequestedFile(request);
+        } catch (Exception e) {
+            LOGGER.severe("Error while reading input: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void uploadRequestedFile(JsonObject request) throws IOException {
+        if (request.has("filePath")) {
+            String filePath = request.get("filePath").getAsString();
+            // Optional "mode": "stream" or "parallel"; by default large files are parsed in parallel
+            WeatherIngest.Mode mode = WeatherIngest.Mode.AUTO;
+            if (request.has("mode")) {
+                try {
+                    mode = WeatherIngest.Mode.valueOf(request.get("mode").getAsString().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    sendError("Invalid 'mode' for admin. Use 'stream' or 'parallel'.");
+                    return;
+                }
+            }
+            // Optional "delta": true only writes locations that are new or whose content changed
+            boolean delta = request.has("delta") && request.get("delta").getAsBoolean();
+            try {
+                loadWeatherDataFromJson(filePath, mode, delta); // Loading data from filePath
+            } catch (RejectedExecutionException e) {
+                sendError(e.getMessage(), AdmissionControl.UPLOADS_BUSY);
+                sendResponse(createMessage("Please try again later or type 'exit' to quit."));
+            } catch (IOException e) {
+                sendError("Failed to load JSON data: " + e.getMessage());
+                sendResponse(createMessage("Please provide a valid file path or type 'exit' to quit."));
+            }
+        } else {
+            sendError("Missing 'filePath' for admin. Please provide a valid file path.");
+        }
+    }
+
+    private void handleUserRequest(String jsonRequest) {
+        responded = false;
+        try {
+            JsonObject request = gson.fromJson(jsonRequest, JsonObject.class);
+            requestId = pipelined ? readRequestId(request) : null;
+            // A trusted service's pipelined connection may carry the requests of many users ("username" on the
+            // request, see WeatherClient); any other connection only acts for the user it logged in as
+            String user = pipelined && request.has("username") ? request.get("username").getAsString() : username;
+            boolean forbidden = user != null && !user.equals(username) && !trustedService;
+            long retryAfterMillis = forbidden || admission == null ? 0 : admission.tryAcquireRequest(user);
+            if (forbidden) {
+                sendError("Only a trusted service may act for another user.", AdmissionControl.FORBIDDEN);
+            } else if (retryAfterMillis > 0) {
+                // Over the user's request rate: answered, but not served
+                JsonObject error = new JsonObject();
+                error.addProperty("error", "Rate limit exceeded, retry in " + retryAfterMillis + " ms");
+                error.addProperty("code", AdmissionControl.RATE_LIMITED);
+                error.addProperty("retryAfterMs", retryAfterMillis);
+                Metrics.ERRORS.increment();
+                sendResponse(error);
+            } else if (state == State.AWAITING_LOCATION && !(pipelined && request.has("type"))) { // Location not set yet; pipelined sessions may skip it
+                if (request.has("currentLocation")) {
+                    currentLocation = resolveLocation(request.get("currentLocation").getAsString());
+                    long start = System.nanoTime();
+                    updateLocationInDatabase(username, currentLocation);
+                    Metrics.UPDATE_LOCATION.recordSince(start);
+                    if (subscriber != null) {
+                        subscriber.follow(currentLocation);
+                    }
+                    state = State.READY;
+                } else {
+                    sendError("Missing 'currentLocation' field in request");
+                }
+            } else if (request.has("type")) {
+                String type = request.get("type").getAsString();
+                switch (type) {
+                    case "getWeather": {
+                        long start = System.nanoTime();
+                        // Optional "location" looks up another place than the current one
+                        handleGetWeather(request.has("location") ? request.get("location").getAsString() : currentLocation);
+                        Metrics.GET_WEATHER.recordSince(start);
+                        break;
+                    }
+                    case "getWeatherBatch": {
+                        long start = System.nanoTime();
+                        handleGetWeatherBatch(request);
+                        Metrics.GET_WEATHER_BATCH.recordSince(start);
+                        break;
+                    }
+                    case "getNearestWeather": {
+                        long start = System.nanoTime();
+                        handleGetNearestWeather(request);
+                        Metrics.GET_NEAREST_WEATHER.recordSince(start);
+                        break;
+                    }
+                    case "getLocationsWithin": {
+                        long start = System.nanoTime();
+                        handleGetLocationsWithin(request);
+                        Metrics.GET_LOCATIONS_WITHIN.recordSince(start);
+                        break;
+                    }
+                    case "getHottestLocations":
+                    case "getColdestLocations": {
+                        long start = System.nanoTime();
+                        handleTemperatureRanking(request, type.equals("getColdestLocations"));
+                        Metrics.GET_TEMPERATURE_RANKING.recordSince(start);
+                        break;
+                    }
+                    case "getLocationsByForecast": {
+                        long start = System.nanoTime();
+                        handleGetLocationsByForecast(request);
+                        Metrics.GET_LOCATIONS_BY_FORECAST.recordSince(start);
+                        break;
+                    }
+                    case "getForecastAverages": {
+                        long start = System.nanoTime();
+                        handleGetForecastAverages();
+                        Metrics.GET_FORECAST_AVERAGES.recordSince(start);
+                        break;
+                    }
+                    case "getHistory": {
+                        long start = System.nanoTime();
+                        handleGetHistory(request);
+                        Metrics.GET_HISTORY.recordSince(start);
+                        break;
+                    }
+                    case "getHistorySummary": {
+                        long start = System.nanoTime();
+                        handleGetHistorySummary(request);
+                        Metrics.GET_HISTORY_SUMMARY.recordSince(start);
+                        break;
+                    }
+                    case "updateLocation":
+                        if (request.has("currentLocation") && user != null && !user.equals(username)) {
+                            // Another user's location: theirs is stored, this session's stays as it is
+                            registerUser(user, "user");
+                            long start = System.nanoTime();
+                            updateLocationInDatabase(user, resolveLocation(request.get("currentLocation").getAsString()));
+                            Metrics.UPDATE_LOCATION.recordSince(start);
+                        } else if (request.has("currentLocation")) {
+                            currentLocation = resolveLocation(request.get("currentLocation").getAsString());
+                            long start = System.nanoTime();
+                            updateLocationInDatabase(username, currentLocation);
+                            Metrics.UPDATE_LOCATION.recordSince(start);
+                            if (subscriber != null) {
+                                subscriber.follow(currentLocation); // Subscriptions move with the user
+                            }
+                        } else {
+                            sendError("Missing 'currentLocation' field in request");
+                        }
+                        break;
+                    case "subscribe":
+                        handleSubscribe(request);
+                        break;
+                    case "unsubscribe":
+                        handleUnsubscribe(request);
+                        break;
+                    case "disconnect":
+                        CONNECTION_LOG.info(() -> "Client disconnected: " + output.remoteAddress());
+                        close();
+                        return; // No menu after a disconnect
+                    default:
+                        sendError("Invalid 'type' field in request");
+                        break;
+                }
+            } else {
+                sendError("Missing 'type' field in request");
+            }
+        } catch (Exception e) {
+            LOGGER.severe("Exception occurred: " + e.getMessage());
+            try {
+                sendError("An error occurred: " + e.getMessage());
+            } catch (IOException ioException) {
+                LOGGER.severe("Error sending error response: " + ioException.getMessage());
+            }
+        }
+        finishRequest();
+    }
+
+    // A request of another cluster node; see Cluster for the messages
+    private void handlePeerRequest(String jsonRequest) {
+        responded = false;
+        try {
+            Cluster.PeerRequest request = Cluster.readRequest(jsonRequest);
+            requestId = request.getId() == null ? null : JsonParser.parseString(request.getId());
+            if ("getRecords".equals(request.getType())) {
+                // Only asked for locations this node owns, so the answers go through (and fill) its cache
+                Map<String, WeatherResponse> found = weatherCache.getAll(request.getLocations(), this::findWeatherBatch);
+                List<WeatherRecord> records = new ArrayList<>(found.size());
+                for (WeatherResponse response : found.values()) {
+                    if (response != null) { // Unknown locations are left out
+                        records.add(response.getRecord());
+                    }
+                }
+                sendLine(BinaryProtocol.jsonFrame(gson.toJson(requestId), Cluster.records(records)));
+            } else if ("weatherUpdated".equals(request.getType())) {
+                cluster.apply(request.getRecords());
+            } else if ("weatherObserved".equals(request.getType())) {
+                cluster.applyObserved(request.getRecords(), request.getUploadedAt());
+            } else {
+                sendError("Invalid 'type' field in request");
+            }
+        } catch (Exception e) {
+            LOGGER.severe("Exception occurred in a cluster request: " + e.getMessage());
+            try {
+                sendError("An error occurred: " + e.getMessage());
+            } catch (IOException ioException) {
+                LOGGER.severe("Error sending error response: " + ioException.getMessage());
+            }
+        }
+        finishRequest();
+    }
+
+    // The weather of one stored location: from the cache if this node owns it, else from the node that does
+    private WeatherResponse lookup(String location) throws SQLException, IOException {
+        if (cluster == null || cluster.owns(location)) {
+            return weatherCache.get(location, this::findWeather);
+        }
+        long start = System.nanoTime();
+        WeatherRecord record = cluster.fetch(Collections.singletonList(location)).await().get(location);
+        Metrics.CLUSTER_FORWARD.recordSince(start);
+        return record == null ? null : WeatherResponse.of(record);
+    }
+
+    private void handleGetWeather(String currentLocation) throws SQLException, IOException {
+        if (currentLocation == null) {
+            sendError("Missing 'location' in request"); // A pipelined session that never set its location
+            return;
+        }
+        String location = resolveLocation(currentLocation);
+        WeatherResponse response = lookup(location);
+        if (response != null) {
+            learnName(location, response);
+            sendWeather(response, "");
+            RESPONSE_LOG.info(() -> "Sent weather for " + currentLocation + " to client");
+        } else if (nameIndex != null) {
+            sendUnknownLocation(currentLocation);
+        } else {
+            sendError("Weather data not available for location: " + currentLocation);
+        }
+    }
+
+    // The stored spelling of a name, else the name as given: the database may still have it (rows written
+    // by other programs, which the cache remembers as unknown for cache.negativeTtlSeconds if not)
+    private String resolveLocation(String location) {
+        if (nameIndex == null || location == null) {
+            return location;
+        }
+        String resolved = nameIndex.resolve(location);
+        if (resolved == null) {
+            return location;
+        }
+        if (!resolved.equals(location)) {
+            Metrics.LOCATIONS_NORMALIZED.increment();
+        }
+        return resolved;
+    }
+
+    // A location found in the database under a name the index didn't know: later lookups may use any spelling of it
+    private void learnName(String location, WeatherResponse response) {
+        if (nameIndex != null && nameIndex.resolve(location) == null) {
+            nameIndex.addAll(Collections.singletonList(response.getRecord()));
+        }
+    }
+
+    private void sendUnknownLocation(String location) throws IOException {
+        Metrics.LOCATIONS_REJECTED.increment();
+        Metrics.ERRORS.increment();
+        JsonObject error = new JsonObject();
+        error.addProperty("error", "Weather data not available for location: " + location);
+        List<String> suggestions = nameIndex.suggest(location, MAX_SUGGESTIONS);
+        if (!suggestions.isEmpty()) {
+            JsonArray didYouMean = new JsonArray();
+            suggestions.forEach(didYouMean::add);
+            error.add("suggestions", didYouMean);
+        }
+        sendResponse(error);
+    }
+
+    // extraFields ("name":value, each followed by a comma) go in front of the JSON response; binary frames have a fixed schema
+    private void sendWeather(WeatherResponse response, String extraFields) throws IOException {
+        if (binary && !extraFields.isEmpty()) {
+            throw new IllegalArgumentException("Binary weather frames have no room for extra fields");
+        }
+        if (binary) {
+            sendLine(requestId == null ? response.getBinaryFrame() : BinaryProtocol.frame(BinaryProtocol.FRAME_WEATHER, gson.toJson(requestId), response.getBinaryWeather()));
+        } else {
+            sendLine(withFields(response.getJsonLine(), extraFields)); // Pre-serialized, written as is
+        }
+    }
+
+    // {"type":"getNearestWeather","latitude":..,"longitude":..} -> the closest location's getWeather response plus "distance_km"
+    private void handleGetNearestWeather(JsonObject request) throws SQLException, IOException {
+        if (spatialIndex == null) {
+            sendError("Location search is not available.");
+            return;
+        }
+        double[] point = readCoordinates(request);
+        if (point == null) {
+            return;
+        }
+        SpatialIndex.Match match = spatialIndex.nearest(point[0], point[1]);
+        WeatherResponse response = match == null ? null : lookup(match.getLocation());
+        if (response == null) {
+            sendError("No weather data near " + point[0] + ", " + point[1]);
+            return;
+        }
+        double distanceKm = roundKm(match.getDistanceKm());
+        if (binary) {
+            sendLine(BinaryProtocol.nearestFrame(requestId == null ? null : gson.toJson(requestId), distanceKm, response.getBinaryWeather()));
+        } else {
+            sendWeather(response, "\"distance_km\":" + distanceKm + ",");
+        }
+        RESPONSE_LOG.info(() -> "Sent weather for " + match.getLocation() + " (nearest) to client");
+    }
+
+    // {"type":"getLocationsWithin","latitude":..,"longitude":..,"radiusKm":..,"limit":..} -> {"results":[{"location":..,"distance_km":..},...]}, closest first
+    private void handleGetLocationsWithin(JsonObject request) throws IOException {
+        if (spatialIndex == null) {
+            sendError("Location search is not available.");
+            return;
+        }
+        double[] point = readCoordinates(request);
+        if (point == null) {
+            return;
+        }
+        if (!request.has("radiusKm") || !(request.get("radiusKm").getAsDouble() >= 0)) {
+            sendError("Missing or invalid 'radiusKm' in request");
+            return;
+        }
+        int limit = readLimit(request, 100);
+        if (limit < 0) {
+            return;
+        }
+        JsonArray results = new JsonArray();
+        for (SpatialIndex.Match match : spatialIndex.nearest(point[0], point[1], limit, request.get("radiusKm").getAsDouble())) {
+            JsonObject result = new JsonObject();
+            result.addProperty("location", match.getLocation());
+            result.addProperty("latitude", match.getLatitude());
+            result.addProperty("longitude", match.getLongitude());
+            result.addProperty("distance_km", roundKm(match.getDistanceKm()));
+            results.add(result);
+        }
+        JsonObject response = new JsonObject();
+        response.add("results", results);
+        sendResponse(response);
+    }
+
+    // {"type":"getHottestLocations","limit":..,"weather":..} -> {"results":[{"location":..,"current_temperature":..},...]}, hottest first
+    private void handleTemperatureRanking(JsonObject request, boolean coldest) throws IOException {
+        if (weatherColumns == null) {
+            sendError("Weather analytics are not available.");
+            return;
+        }
+        int limit = readLimit(request, 10);
+        if (limit < 0) {
+            return;
+        }
+        String condition = request.has("weather") ? request.get("weather").getAsString() : null;
+        JsonArray results = new JsonArray();
+        for (WeatherColumns.RankedLocation ranked : weatherColumns.rankByTemperature(limit, coldest, condition)) {
+            JsonObject result = new JsonObject();
+            result.addProperty("location", ranked.getLocation());
+            result.addProperty("current_temperature", ranked.getTemperature());
+            results.add(result);
+        }
+        JsonObject response = new JsonObject();
+        response.add("results", results);
+        sendResponse(response);
+    }
+
+    // {"type":"getLocationsByForecast","weather":"Rainy","limit":..} -> {"weather":..,"count":..,"locations":[...]}
+    private void handleGetLocationsByForecast(JsonObject request) throws IOException {
+        if (weatherColumns == null) {
+            sendError("Weather analytics are not available.");
+            return;
+        }
+        if (!request.has("weather")) {
+            sendError("Missing 'weather' in request");
+            return;
+        }
+        int limit = readLimit(request, 100);
+        if (limit < 0) {
+            return;
+        }
+        String condition = request.get("weather").getAsString();
+        List<String> locations = new ArrayList<>();
+        int count = weatherColumns.findByForecast(condition, limit, locations);
+        JsonArray names = new JsonArray();
+        locations.forEach(names::add);
+        JsonObject response = new JsonObject();
+        response.addProperty("weather", condition);
+        response.addProperty("count", count);
+        response.add("locations", names);
+        sendResponse(response);
+    }
+
+    // {"type":"getForecastAverages"} -> {"results":[{"weather":..,"average_temperature":..,"days":..},...]}, most frequent first
+    private void handleGetForecastAverages() throws IOException {
+        if (weatherColumns == null) {
+            sendError("Weather analytics are not available.");
+            return;
+        }
+        JsonArray results = new JsonArray();
+        for (WeatherColumns.ConditionAverage average : weatherColumns.forecastAverages()) {
+            JsonObject result = new JsonObject();
+            result.addProperty("weather", average.getCondition());
+            result.addProperty("average_temperature", Math.round(average.getAverageTemperature() * 100) / 100.0);
+            result.addProperty("days", average.getDays());
+            results.add(result);
+        }
+        JsonObject response = new JsonObject();
+        response.add("results", results);
+        sendResponse(response);
+    }
+
+    // {"type":"getHistory","location":..,"days":..|"from":..,"to":..,"limit":..}
+    //   -> {"location":..,"from":..,"to":..,"observations":[{"time":..,"temperature":..},...],"more":..}, oldest first
+    private void handleGetHistory(JsonObject request) throws IOException {
+        if (history == null) {
+            sendError("Weather history is not available.");
+            return;
+        }
+        String location = readHistoryLocation(request);
+        long[] range = location == null ? null : readTimeRange(request);
+        if (range == null) {
+            return;
+        }
+        int limit = request.has("limit") ? request.get("limit").getAsInt() : history.getMaxPoints();
+        if (limit < 1 || limit > history.getMaxPoints()) {
+            sendError("'limit' must be between 1 and " + history.getMaxPoints());
+            return;
+        }
+        // One more than asked for tells whether the range goes on
+        List<WeatherHistory.Observation> observations = history.range(location, range[0], range[1], limit + 1);
+        JsonArray results = new JsonArray();
+        for (int i = 0; i < Math.min(limit, observations.size()); i++) {
+            JsonObject result = new JsonObject();
+            result.addProperty("time", observations.get(i).getTime());
+            result.addProperty("temperature", observations.get(i).getTemperature());
+            results.add(result);
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("location", location);
+        response.addProperty("from", range[0]);
+        response.addProperty("to", range[1]);
+        response.add("observations", results);
+        response.addProperty("more", observations.size() > limit);
+        sendResponse(response);
+    }
+
+    // {"type":"getHistorySummary","location":..,"interval":"hour"|"day","days":..|"from":..,"to":..}
+    //   -> {"location":..,"interval":..,"summaries":[{"time":..,"min":..,"max":..,"avg":..,"count":..},...]}, oldest first
+    private void handleGetHistorySummary(JsonObject request) throws IOException {
+        if (history == null) {
+            sendError("Weather history is not available.");
+            return;
+        }
+        String interval = request.has("interval") ? request.get("interval").getAsString() : "day";
+        long intervalSeconds;
+        if (interval.equals("hour")) {
+            intervalSeconds = 3600;
+        } else if (interval.equals("day")) {
+            intervalSeconds = 86400;
+        } else {
+            sendError("'interval' must be \"hour\" or \"day\"");
+            return;
+        }
+        String location = readHistoryLocation(request);
+        long[] range = location == null ? null : readTimeRange(request);
+        if (range == null) {
+            return;
+        }
+        if (WeatherHistory.intervals(range[0], range[1], intervalSeconds) > history.getMaxPoints()) {
+            sendError("Too many intervals (at most " + history.getMaxPoints() + "), narrow the range or use a longer interval");
+            return;
+        }
+        JsonArray results = new JsonArray();
+        for (WeatherHistory.Summary summary : history.summarize(location, range[0], range[1], intervalSeconds)) {
+            JsonObject result = new JsonObject();
+            result.addProperty("time", summary.getTime());
+            result.addProperty("min", summary.getMin());
+            result.addProperty("max", summary.getMax());
+            result.addProperty("avg", Math.round(summary.getAverage() * 100) / 100.0);
+            result.addProperty("count", summary.getCount());
+            results.add(result);
+        }
+        JsonObject response = new JsonObject();
+        response.addProperty("location", location);
+        response.addProperty("interval", interval);
+        response.add("summaries", results);
+        sendResponse(response);
+    }
+
+    // The stored spelling of the requested (or current) location, or null after sending an error
+    private String readHistoryLocation(JsonObject request) throws IOException {
+        String requested = request.has("location") ? request.get("location").getAsString() : currentLocation;
+        // The history has the uploads of every node, and the name index knows all of those locations
+        if (nameIndex != null && nameIndex.isComplete() && nameIndex.resolve(requested) == null) {
+            sendUnknownLocation(requested);
+            return null;
+        }
+        return resolveLocation(requested);
+    }
+
+    // {from, to} in epoch seconds: the request's "from"/"to", or the last "days" (default 7) up to now; null after sending an error
+    private long[] readTimeRange(JsonObject request) throws IOException {
+        long to = request.has("to") ? request.get("to").getAsLong() : System.currentTimeMillis() / 1000;
+        long from;
+        if (request.has("from")) {
+            from = request.get("from").getAsLong();
+        } else {
+            int days = request.has("days") ? request.get("days").getAsInt() : 7;
+            if (days < 1) {
+                sendError("'days' must be at least 1");
+                return null;
+            }
+            from = to - days * 86400L + 1;
+        }
+        if (from > to) {
+            sendError("'from' must not be after 'to'");
+            return null;
+        }
+        return new long[] {from, to};
+    }
+
+    // The request's "limit" (or the default), or -1 after sending an error
+    private int readLimit(JsonObject request, int defaultLimit) throws IOException {
+        int limit = request.has("limit") ? request.get("limit").getAsInt() : defaultLimit;
+        if (limit < 1 || limit > MAX_BATCH_LOCATIONS) {
+            sendError("'limit' must be between 1 and " + MAX_BATCH_LOCATIONS);
+            return -1;
+        }
+        return limit;
+    }
+
+    // {latitude, longitude} from the request, or null after sending an error
+    private double[] readCoordinates(JsonObject request) throws IOException {
+        if (!request.has("latitude") || !request.has("longitude")) {
+            sendError("Missing 'latitude' or 'longitude' in request");
+            return null;
+        }
+        double latitude = request.get("latitude").getAsDouble();
+        double longitude = request.get("longitude").getAsDouble();
+        if (!(Math.abs(latitude) <= 90) || !(Math.abs(longitude) <= 180)) {
+            sendError("Coordinates out of range: latitude must be within [-90, 90], longitude within [-180, 180]");
+            return null;
+        }
+        return new double[] {latitude, longitude};
+    }
+
+    private static double roundKm(double distanceKm) {
+        return Math.round(distanceKm * 1000) / 1000.0;
+    }
+
+    // {"type":"getWeatherBatch","locations":[...]} -> {"results":[<getWeather response>, ...],"unknown":[...]}
+    private void handleGetWeatherBatch(JsonObject request) throws SQLException, IOException {
+        if (!request.has("locations") || !request.get("locations").isJsonArray()) {
+            sendError("Missing 'locations' array in request");
+            return;
+        }
+        JsonArray requested = request.getAsJsonArray("locations");
+        if (requested.size() > MAX_BATCH_LOCATIONS) {
+            sendError("Too many locations in one batch (at most " + MAX_BATCH_LOCATIONS + ")");
+            return;
+        }
+        // Resolve the names first, then look them all up by their stored spelling
+        Map<String, String> resolved = new LinkedHashMap<>();
+        List<String> locations = new ArrayList<>(requested.size());
+        for (JsonElement element : requested) {
+            String location = resolveLocation(element.getAsString());
+            resolved.put(element.getAsString(), location);
+            locations.add(location);
+        }
+        Map<String, WeatherResponse> found = lookupAll(locations);
+        Map<String, WeatherResponse> responses = new LinkedHashMap<>();
+        for (Map.Entry<String, String> name : resolved.entrySet()) {
+            WeatherResponse response = found.get(name.getValue());
+            if (response != null) {
+                learnName(name.getValue(), response);
+            }
+            responses.put(name.getKey(), response);
+        }
+        if (binary) {
+            sendLine(BinaryProtocol.batchFrame(requestId == null ? null : gson.toJson(requestId), responses));
+            return;
+        }
+
+        // Splice the cached responses together instead of rebuilding them as JSON trees
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256 + responses.size() * 256);
+        line.write('{');
+        if (requestId != null) {
+            writeUtf8(line, "\"id\":" + gson.toJson(requestId) + ",");
+        }
+        writeUtf8(line, "\"results\":[");
+        JsonArray unknown = new JsonArray();
+        boolean first = true;
+        for (Map.Entry<String, WeatherResponse> entry : responses.entrySet()) {
+            if (entry.getValue() == null) {
+                unknown.add(entry.getKey());
+                continue;
+            }
+            if (!first) {
+                line.write(',');
+            }
+            first = false;
+            byte[] json = entry.getValue().getJsonLine();
+            line.write(json, 0, json.length - 1); // Without its newline
+        }
+        writeUtf8(line, "],\"unknown\":" + gson.toJson(unknown) + "}\n");
+        sendLine(line.toByteArray());
+        RESPONSE_LOG.info(() -> "Sent weather for " + responses.size() + " locations to client");
+    }
+
+    // {"type":"subscribe"} follows the current location, optional "locations" are followed as well
+    private void handleSubscribe(JsonObject request) throws IOException {
+        if (subscriptions == null) {
+            sendError("Subscriptions are not available.");
+            return;
+        }
+        if (request.has("locations") && !request.get("locations").isJsonArray()) {
+            sendError("'locations' must be an array");
+            return;
+        }
+        if (subscriber == null) {
+            subscriber = subscriptions.newSubscriber(output, binary);
+        }
+        subscriber.follow(currentLocation);
+        if (request.has("locations")) {
+            for (JsonElement location : request.getAsJsonArray("locations")) {
+                if (!subscriber.subscribe(resolveLocation(location.getAsString()))) {
+                    sendError("Too many subscribed locations");
+                    return;
+                }
+            }
+        }
+        sendSubscriptions("Subscribed to weather updates.");
+    }
+
+    // {"type":"unsubscribe","locations":[...]} drops extra locations, without "locations" all updates stop
+    private void handleUnsubscribe(JsonObject request) throws IOException {
+        if (subscriber != null) {
+            if (request.has("locations") && request.get("locations").isJsonArray()) {
+                for (JsonElement location : request.getAsJsonArray("locations")) {
+                    subscriber.unsubscribe(resolveLocation(location.getAsString()));
+                }
+            } else {
+                subscriber.close();
+                subscriber = null;
+            }
+        }
+        sendSubscriptions("Unsubscribed from weather updates.");
+    }
+
+    private void sendSubscriptions(String message) throws IOException {
+        JsonObject response = createMessage(message);
+        JsonArray locations = new JsonArray();
+        if (subscriber != null) {
+            subscriber.getLocations().forEach(locations::add);
+        }
+        response.add("subscriptions", locations);
+        sendResponse(response);
+    }
+
+    private static void writeUtf8(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    // Cache loader: only runs when the location is not cached yet
+    private WeatherResponse findWeather(String location) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            WeatherRecord record = storage.findWeather(location);
+            return record == null ? null : WeatherResponse.of(record);
+        } finally {
+            Metrics.DB_FIND_WEATHER.recordSince(start);
+        }
+    }
+
+    // lookup for many locations: the other nodes are asked first, so they work while this node reads its own shard
+    private Map<String, WeatherResponse> lookupAll(List<String> locations) throws SQLException, IOException {
+        if (cluster == null) {
+            return weatherCache.getAll(locations, this::findWeatherBatch);
+        }
+        List<String> owned = new ArrayList<>(locations.size());
+        List<String> remote = new ArrayList<>();
+        for (String location : locations) {
+            (cluster.owns(location) ? owned : remote).add(location);
+        }
+        long start = System.nanoTime();
+        Cluster.Fetch fetch = remote.isEmpty() ? null : cluster.fetch(remote);
+        Map<String, WeatherResponse> found = new HashMap<>(weatherCache.getAll(owned, this::findWeatherBatch));
+        if (fetch != null) {
+            fetch.await().forEach((location, record) -> found.put(location, WeatherResponse.of(record)));
+            Metrics.CLUSTER_FORWARD.recordSince(start);
+        }
+        return found;
+    }
+
+    // Batch cache loader: all missing locations of a getWeatherBatch in one storage call
+    private Map<String, WeatherResponse> findWeatherBatch(List<String> locations) throws SQLException {
+        Map<String, WeatherResponse> found = new HashMap<>();
+        long start = System.nanoTime();
+        try {
+            storage.findWeather(locations).forEach((location, record) -> found.put(location, WeatherResponse.of(record)));
+        } finally {
+            Metrics.DB_FIND_WEATHER_BATCH.recordSince(start);
+        }
+        return found;
+    }
+
+    // Ends a user request: the menu in the classic protocol, an acknowledgement if nothing was sent when pipelined
+    private void finishRequest() {
+        if (!pipelined) {
+            sendMenu();
+        } else if (!responded && state != State.CLOSED) {
+            try {
+                JsonObject ack = new JsonObject();
+                ack.addProperty("status", "ok");
+                sendResponse(ack);
+            } catch (IOException e) {
+                LOGGER.severe("Error sending acknowledgement: " + e.getMessage());
+            }
+        }
+        requestId = null;
+    }
+
+    // The request's "id"; one too long to echo in a binary frame is refused, and left out of the error as well
+    private JsonElement readRequestId(JsonObject request) {
+        JsonElement id = request.get("id");
+        if (id != null && !BinaryProtocol.fitsRequestId(gson.toJson(id))) {
+            requestId = null;
+            throw new IllegalArgumentException("The request 'id' is too long.");
+        }
+        return id;
+    }
+
+    // Inserts the request id and extra fields in front of a pre-serialized object: {"id":7,...rest of the original}
+    private byte[] withFields(byte[] jsonLine, String extraFields) {
+        if (requestId == null && extraFields.isEmpty()) {
+            return jsonLine;
+        }
+        String id = requestId == null ? "" : "\"id\":" + gson.toJson(requestId) + ",";
+        byte[] prefix = ("{" + id + extraFields).getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[prefix.length + jsonLine.length - 1];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        System.arraycopy(jsonLine, 1, line, prefix.length, jsonLine.length - 1);
+        return line;
+    }
+
+    // Sends the menu that matches the current state, like the original blocking loop did before each read
+    private void sendMenu() {
+        try {
+            if (state == State.AWAITING_LOCATION) {
+                sendResponse(createMenu("Please set your current location:", false));
+            } else if (state == State.READY) {
+                sendResponse(createMenu("Options:", true));
+            }
+        } catch (IOException e) {
+            LOGGER.severe("Error sending menu: " + e.getMessage());
+        }
+    }
+
+    static JsonObject createMenu(String header, boolean isOptionsMenu) {
+        JsonObject menu = new JsonObject();
+        menu.addProperty("header", header);
+        if (isOptionsMenu) {
+            menu.addProperty("option1", "1. Get weather for current location");
+            menu.addProperty("option2", "2. Change current location");
+            menu.addProperty("option3", "3. Subscribe to weather updates for current location");
+        }
+        return menu;
+    }
+
+    private JsonObject createMessage(String message) {
+        JsonObject response = new JsonObject();
+        response.addProperty("message", message);
+        return response;
+    }
+
+    private void sendResponse(JsonObject response) throws IOException {
+        if (binary) {
+            String jsonResponse = gson.toJson(response);
+            sendLine(BinaryProtocol.jsonFrame(requestId == null ? null : gson.toJson(requestId), jsonResponse));
+            RESPONSE_LOG.info(() -> "Sent response to client: " + jsonResponse);
+            return;
+        }
+        if (requestId != null) {
+            JsonObject tagged = new JsonObject();
+            tagged.add("id", requestId); // First, so clients can route the line without parsing all of it
+            for (Map.Entry<String, JsonElement> field : response.entrySet()) {
+                tagged.add(field.getKey(), field.getValue());
+            }
+            response = tagged;
+        }
+        String jsonResponse = gson.toJson(response);
+        responded = true;
+        output.send(jsonResponse); // Send response as JSON
+        RESPONSE_LOG.info(() -> "Sent response to client: " + jsonResponse);
+    }
+
+    private void sendLine(byte[] line) throws IOException {
+        responded = true;
+        output.send(line);
+    }
+
+    private void sendError(String errorMessage) throws IOException {
+        sendError(errorMessage, null);
+    }
+
+    // With a code (see AdmissionControl) clients can tell rejections apart from failed requests
+    private void sendError(String errorMessage, String code) throws IOException {
+        JsonObject errorResponse = new JsonObject();
+        errorResponse.addProperty("error", errorMessage);
+        if (code != null) {
+            errorResponse.addProperty("code", code);
+        }
+        Metrics.ERRORS.increment();
+        sendResponse(errorResponse);
+    }
+
+    private void close() {
+        if (state != State.CLOSED) {
+            Metrics.CONNECTIONS_CLOSED.increment();
+        }
+        state = State.CLOSED;
+        if (subscriber != null) {
+            subscriber.close();
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            LOGGER.severe("Error while closing the connection: " + e.getMessage());
+        }
+    }
+}
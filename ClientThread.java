@@ -1,276 +1,252 @@
 package org.example;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonArray;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.sql.Connection;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-
-public class ClientThread extends Thread {
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Blocking driver for a single connection: reads one line at a time and hands it to a
+ * {@link ClientSession}. Runs either as its own platform thread or as a task on a virtual thread.
+ * The engine's reaper may close it while it waits for a line, never while a request is handled,
+ * and closes its socket when a write has been blocked for longer than the read timeout, which frees
+ * the thread stuck in it. Writes take a {@link ReentrantLock} rather than a monitor, so a virtual
+ * thread blocked on a slow client doesn't pin its carrier thread.
+ */
+public class ClientThread extends Thread implements ClientSession.Output {
     private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(ClientThread.class.getName());
+    private static final int MAX_LINE_BYTES = 1 << 20; // Same limit as the NIO engine
     private final Socket client;
-    private final Connection connection;
-    private final BufferedReader in;
-    private final PrintWriter out;
-    private final Gson gson = new Gson(); // GSON instance
-    private String username;
-
-    public ClientThread(Socket client, Connection connection) {
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192]; // Bytes read from in, buffer[position..limit) not consumed yet
+    private int position;
+    private int limit;
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream(256);
+    private final OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ClientSession session;
+    private volatile boolean moreInputBuffered; // Pipelined requests already read: flush once after the last of them
+    private static final int WAITING = 0, HANDLING = 1, REAPED = 2;
+    private final AtomicInteger phase = new AtomicInteger(WAITING); // Decides between the reaper and the next request
+    private final AdmissionControl admission;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile long partialSince; // When the bytes of an unfinished line started arriving, 0 between lines
+    private volatile long writeSince; // When the write in progress started, 0 when none
+    private volatile boolean writeTimedOut; // The reaper closed the socket under a blocked write
+    private volatile boolean finished;
+
+    public ClientThread(Socket client, Function<ClientSession.Output, ClientSession> sessionFactory, AdmissionControl admission) {
         this.client = client;
-        this.connection = connection;
+        this.admission = admission;
         try {
-            this.out = new PrintWriter(client.getOutputStream(), true); // Auto-flush enabled
-            this.in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            client.setTcpNoDelay(true); // Responses are written in several small pieces; don't let Nagle hold them back
+            this.out = new BufferedOutputStream(client.getOutputStream());
+            this.in = new CountingInputStream(client.getInputStream());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-    }
-
-    public void registerUser(String username, String role) throws SQLException {
-        String query = "INSERT INTO users (username, role) VALUES (?, ?) ON CONFLICT (username) DO NOTHING";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, username);
-            stmt.setString(2, role);
-            stmt.executeUpdate();
-        }
-    }
-
-    public void updateLocationInDatabase(String username, String currentLocation) throws SQLException {
-        String query = "UPDATE users SET current_location = ? WHERE username = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, currentLocation);
-            stmt.setString(2, username);
-            stmt.executeUpdate();
-        }
-    }
-    private void loadWeatherDataFromJson(String filePath) throws IOException, SQLException {
-        Path path = Paths.get(filePath);
-        if (!Files.exists(path)) {
-            throw new IOException("File not found: " + path.toAbsolutePath());
-        }
-        System.out.println("Loading JSON from: " + path.toAbsolutePath());
-        String jsonContent = new String(Files.readAllBytes(path));
-        JSONArray jsonArray = new JSONArray(jsonContent);
-
-        for (int i = 0; i < jsonArray.length(); i++) {
-            JSONObject jsonObject = jsonArray.getJSONObject(i);
-            String location = jsonObject.getString("location");
-            double latitude = jsonObject.getDouble("latitude");
-            double longitude = jsonObject.getDouble("longitude");
-            String weather = jsonObject.getString("current_weather");
-            double temperature = jsonObject.getDouble("current_temperature");
-            JSONArray forecastArray = jsonObject.getJSONArray("forecast");
-
-            // Convert JSONArray to a raw JSON string
-            String forecastJson = forecastArray.toString();
-
-            // Save the data into the database
-            String query = "INSERT INTO weather_data (location, latitude, longitude, current_weather, current_temperature, forecast) VALUES (?, ?, ?, ?, ?, ?) " +
-                    "ON CONFLICT (location) DO NOTHING";
-            try (PreparedStatement stmt = connection.prepareStatement(query)) {
-                stmt.setString(1, location);
-                stmt.setDouble(2, latitude);
-                stmt.setDouble(3, longitude);
-                stmt.setString(4, weather);
-                stmt.setDouble(5, temperature);
-                stmt.setObject(6, forecastJson, java.sql.Types.OTHER); // Insert JSON as type "OTHER" for PostgreSQL
-                stmt.executeUpdate();
-            }
-        }
+        this.session = sessionFactory.apply(this);
     }
 
     @Override
     public void run() {
-        boolean isLocationSet = false;
-        String currentLocation = null;
-        System.out.println("Client connected: " + client.getInetAddress());
+        session.start();
         try {
-            String jsonRequest = in.readLine();
-            JsonObject request = gson.fromJson(jsonRequest, JsonObject.class);
-
-            if (request.has("role")) {
-                String role = request.get("role").getAsString();
-
-                if ("admin".equals(role)) {
-                    boolean fileUploaded = false;
-
-                    while (!fileUploaded) {
-                        if (request.has("filePath")) {
-                            String filePath = request.get("filePath").getAsString();
-                            try {
-                                loadWeatherDataFromJson(filePath); // Loading data from filePath
-                                sendResponse(createMessage("JSON data uploaded successfully."));
-                                System.out.println("Admin task completed. Closing connection."); // Log for the server
-                                fileUploaded = true; // Exit loop
-                                client.close(); // Close connection
-                                return; // Exit run() for admin
-                            } catch (IOException | SQLException e) {
-                                sendError("Failed to load JSON data: " + e.getMessage());
-                                sendResponse(createMessage("Please provide a valid file path or type 'exit' to quit."));
-                            }
-                        } else {
-                            sendError("Missing 'filePath' for admin. Please provide a valid file path.");
-                        }
-
-                        // Wait for new request from client
-                        try {
-                            jsonRequest = in.readLine();
-                            request = gson.fromJson(jsonRequest, JsonObject.class);
-                            if (request.has("filePath") && "exit".equalsIgnoreCase(request.get("filePath").getAsString())) {
-                                sendResponse(createMessage("Exiting..."));
-                                client.close(); // Close connection
-                                return; // Exit run()
-                            }
-                        } catch (IOException e) {
-                            LOGGER.severe("Error while reading input: " + e.getMessage());
-                            break;
-                        }
+            while (!session.isClosed()) {
+                String jsonRequest;
+                try {
+                    jsonRequest = readLine();
+                } catch (LineTooLongException e) {
+                    if (phase.compareAndSet(WAITING, HANDLING)) {
+                        LOGGER.warning("Request line too long from " + remoteAddress() + ", closing connection.");
+                        session.handleEndOfStream();
                     }
+                    break;
                 }
-
-                else if ("user".equals(role)) {
-                    if (request.has("username")) {
-                        this.username = request.get("username").getAsString();
-                        registerUser(this.username, "user");
-                    } else {
-                        sendError("Missing 'username' for user.");
-                    }
-                } else {
-                    sendError("Invalid role.");
+                if (!phase.compareAndSet(WAITING, HANDLING)) {
+                    break; // Reaped while waiting, the session has already answered and closed
+                }
+                partialSince = 0;
+                if (jsonRequest == null) {
+                    session.handleEndOfStream();
+                    break;
                 }
-            } else {
-                sendError("Missing 'role' field in request.");
+                // While complete pipelined requests are waiting in the buffer, their responses are written with one flush
+                moreInputBuffered = lineBuffered();
+                session.handleLine(jsonRequest);
+                if (moreInputBuffered && !lineBuffered()) {
+                    moreInputBuffered = false;
+                    flushQuietly();
+                }
+                lastActivity = System.currentTimeMillis();
+                phase.set(WAITING);
             }
-        } catch (Exception e) {
-            LOGGER.severe("Exception occurred: " + e.getMessage());
-            try {
-                sendError("An error occurred: " + e.getMessage());
-            } catch (IOException ioException) {
-                LOGGER.severe("Error sending error response: " + ioException.getMessage());
+        } catch (IOException e) {
+            if (phase.get() != REAPED) { // Otherwise the read failed because the reaper closed the socket
+                if (!writeTimedOut) {
+                    LOGGER.severe("Error while reading input: " + e.getMessage());
+                }
+                session.handleEndOfStream();
             }
+        } finally {
+            finished = true;
+            admission.release(remoteAddress());
         }
+    }
+
+    // One UTF-8 line without its \n (or \r\n); the last unterminated line at the end of the stream, then null
+    private String readLine() throws IOException {
+        partialLine.reset();
         while (true) {
-            try {
-                // If location is not yet set
-                if (!isLocationSet) {
-                    sendResponse(createMenu("Please set your current location:", false));
-                    String jsonRequest = in.readLine();
-                    JsonObject request = gson.fromJson(jsonRequest, JsonObject.class);
-                    if (request.has("currentLocation")) {
-                        currentLocation = request.get("currentLocation").getAsString();
-                        updateLocationInDatabase(username, currentLocation);
-                        isLocationSet = true;
-                    } else {
-                        sendError("Missing 'currentLocation' field in request");
-                    }
-                } else {
-                    sendResponse(createMenu("Options:", true));
-                    String jsonRequest = in.readLine();
-                    JsonObject request = gson.fromJson(jsonRequest, JsonObject.class);
-                    if (request.has("type")) {
-                        String type = request.get("type").getAsString();
-                        switch (type) {
-                            case "getWeather":
-                                handleGetWeather(currentLocation);
-                                break;
-                            case "updateLocation":
-                                if (request.has("currentLocation")) {
-                                    currentLocation = request.get("currentLocation").getAsString();
-                                    updateLocationInDatabase(username, currentLocation);
-                                } else {
-                                    sendError("Missing 'currentLocation' field in request");
-                                }
-                                break;
-                            case "disconnect":
-                                System.out.println("Client disconnected: " + client.getInetAddress());
-                                return; // Exit the run() to terminate the thread
-                            default:
-                                sendError("Invalid 'type' field in request");
-                                break;
-                        }
-                    } else {
-                        sendError("Missing 'type' field in request");
-                    }
-                }
-            } catch (IOException | SQLException e) {
-                LOGGER.severe("Exception occurred: " + e.getMessage());
-                try {
-                    sendError("An error occurred: " + e.getMessage());
-                } catch (IOException ioException) {
-                    LOGGER.severe("Error sending error response: " + ioException.getMessage());
+            if (position == limit) {
+                int read = in.read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    return partialLine.size() == 0 ? null : partialLine.toString(StandardCharsets.UTF_8.name());
                 }
+                position = 0;
+                limit = read;
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            if (partialLine.size() + position - start > MAX_LINE_BYTES) {
+                throw new LineTooLongException();
+            }
+            partialLine.write(buffer, start, position - start);
+            if (position < limit) {
+                position++; // The \n
+                String line = partialLine.toString(StandardCharsets.UTF_8.name());
+                return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
             }
         }
     }
 
-    private void handleGetWeather(String currentLocation) throws SQLException, IOException {
-        String query = "SELECT current_weather, current_temperature, forecast FROM weather_data WHERE location = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, currentLocation);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    String weather = rs.getString("current_weather");
-                    double temperature = rs.getDouble("current_temperature");
-                    String forecastJson = rs.getString("forecast");
+    // Whether another complete request line has already been read, so handling it won't wait for the client;
+    // part of a line doesn't count, the client may take any time to send the rest
+    private boolean lineBuffered() {
+        for (int i = position; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                    // Build JSON response
-                    JsonObject response = new JsonObject();
-                    response.addProperty("location", currentLocation);
-                    response.addProperty("current_weather", weather);
-                    response.addProperty("current_temperature", temperature);
+    boolean isFinished() {
+        return finished;
+    }
 
-                    // Parse and add forecast
-                    if (forecastJson != null) {
-                        JsonArray forecastArray = new Gson().fromJson(forecastJson, JsonArray.class);
-                        response.add("forecast", forecastArray);
-                    } else {
-                        response.addProperty("forecast", "No forecast available.");
-                    }
+    // Reaper thread: rejects the session if it timed out while waiting for a request, and closes the
+    // socket if the client stopped reading (no error line, it couldn't be written either)
+    boolean reapIfTimedOut(long now) {
+        if (admission.writeTimedOut(now, writeSince)) {
+            writeTimedOut = true;
+            Metrics.CONNECTIONS_WRITE_TIMEOUTS.increment();
+            LOGGER.warning("Write to " + remoteAddress() + " blocked for too long, closing the connection.");
+            try {
+                client.close(); // Not close(): its flush would wait for the lock the blocked writer holds
+            } catch (IOException e) {
+                LOGGER.warning("Error while closing a blocked connection: " + e.getMessage());
+            }
+            return true;
+        }
+        String code = admission.timedOut(now, lastActivity, partialSince, session.isListening());
+        if (code == null || !phase.compareAndSet(WAITING, REAPED)) {
+            return false;
+        }
+        (AdmissionControl.IDLE_TIMEOUT.equals(code) ? Metrics.CONNECTIONS_IDLE_TIMEOUTS : Metrics.CONNECTIONS_READ_TIMEOUTS).increment();
+        session.reject(code, AdmissionControl.timeoutMessage(code));
+        return true;
+    }
 
-                    sendResponse(response);
-                } else {
-                    sendError("Weather data not available for location: " + currentLocation);
-                }
+    @Override
+    public void send(String line) throws IOException {
+        send((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void send(byte[] line) throws IOException {
+        writeLock.lock();
+        try {
+            writeSince = System.currentTimeMillis();
+            out.write(line);
+            if (!moreInputBuffered) {
+                out.flush();
             }
+        } finally {
+            writeSince = 0;
+            writeLock.unlock();
         }
+        Metrics.BYTES_OUT.add(line.length);
     }
-    private JsonObject createMenu(String header, boolean isOptionsMenu) {
-        JsonObject menu = new JsonObject();
-        menu.addProperty("header", header);
-        if (isOptionsMenu) {
-            menu.addProperty("option1", "1. Get weather for current location");
-            menu.addProperty("option2", "2. Change current location");
+
+    private void flushQuietly() {
+        writeLock.lock();
+        try {
+            writeSince = System.currentTimeMillis();
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.severe("Error while writing output: " + e.getMessage());
+        } finally {
+            writeSince = 0;
+            writeLock.unlock();
         }
-        return menu;
     }
 
-    private JsonObject createMessage(String message) {
-        JsonObject response = new JsonObject();
-        response.addProperty("message", message);
-        return response;
+    @Override
+    public void close() throws IOException {
+        flushQuietly();
+        client.close();
     }
 
-    private void sendResponse(JsonObject response) throws IOException {
-        String jsonResponse = gson.toJson(response);
-        out.println(jsonResponse); // Send response as JSON
-        System.out.println("Sent response to client: " + jsonResponse);
+    @Override
+    public String remoteAddress() {
+        return String.valueOf(client.getInetAddress());
     }
 
-    private void sendError(String errorMessage) throws IOException {
-        JsonObject errorResponse = new JsonObject();
-        errorResponse.addProperty("error", errorMessage);
-        sendResponse(errorResponse);
+    private static final class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Counts the bytes actually read from the socket, below the reader's character decoding,
+    // and notes when the bytes of a new line started arriving
+    private final class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                Metrics.BYTES_IN.increment();
+                arrived();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                Metrics.BYTES_IN.add(read);
+                arrived();
+            }
+            return read;
+        }
+
+        private void arrived() {
+            if (partialSince == 0) {
+                partialSince = System.currentTimeMillis();
+            }
+        }
     }
 }
@@ -0,0 +1,389 @@
+package org.example;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * One node of a cluster of servers that share the database and split the locations between them
+ * with a {@link HashRing}. A node caches only the locations it owns: requests for other locations are
+ * forwarded to their owner, and the answer is relayed without being cached. Every upload's committed
+ * rows are sent to all other nodes, which drop them from their cache, update their location indexes
+ * and push them to their own subscribers, as if the upload had run there. With a history, every
+ * uploaded row, changed or not, is sent as well, so each node's history holds the whole cluster's uploads.
+ *
+ * <p>Nodes talk over the normal client port as sessions with {@code "role": "peer"}, through a
+ * {@link WeatherClient} per other node:
+ * <pre>
+ * {"type":"getRecords","locations":[...]}   answered with {"records":[...]} (the upload format; unknown locations left out)
+ * {"type":"weatherUpdated","records":[...]} answered with {"status":"ok"}
+ * {"type":"weatherObserved","uploadedAt":...,"records":[...]} answered with {"status":"ok"}
+ * </pre>
+ * A peer session is only opened for another node: with a cluster secret its handshake must carry the
+ * secret, without one it must come from the address of a configured node.
+ */
+public class Cluster implements AutoCloseable {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(Cluster.class.getName());
+    private static final int MAX_MESSAGE_RECORDS = 500; // Keeps update messages far below the NIO engine's line limit
+    private static final long RETRY_DOWN_MILLIS = 1000; // Forwards to a node that just failed are refused this long, instead of each waiting the timeout
+
+    private final String self;
+    private final List<String> nodes;
+    private final String secret; // Null when peers are recognized by their address
+    private final HashRing ring;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final WeatherUpdateListener local;
+
+    /**
+     * {@code nodes} are the client addresses (host:port) of all nodes, this one ({@code self}) included,
+     * and must be the same on every node, like {@code secret} (null or empty for none). {@code local}
+     * applies the updates other nodes send.
+     */
+    public Cluster(String self, List<String> nodes, String secret, int virtualNodes, int connectionsPerPeer, long timeoutMillis,
+                   WeatherUpdateListener local) throws IOException {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("This node (" + self + ") is not one of the cluster nodes " + nodes);
+        }
+        this.self = self;
+        this.nodes = new ArrayList<>(nodes);
+        this.secret = secret == null || secret.isEmpty() ? null : secret;
+        this.ring = new HashRing(nodes, virtualNodes);
+        this.local = local;
+        for (String node : nodes) {
+            if (!node.equals(self) && !peers.containsKey(node)) {
+                int colon = node.lastIndexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Cluster node must be host:port, got " + node);
+                }
+                peers.put(node, new Peer(node, new WeatherClient(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)),
+                        connectionsPerPeer, self, "peer", this.secret, timeoutMillis, timeoutMillis)));
+            }
+        }
+    }
+
+    /**
+     * Whether a peer handshake comes from another node: it must carry the cluster secret, or without a
+     * secret come from an address one of the nodes resolves to. {@code remoteAddress} is the engines'
+     * form, e.g. "/10.0.0.2".
+     */
+    public boolean acceptsPeer(String remoteAddress, String givenSecret) {
+        if (secret != null) {
+            return AdmissionControl.secretMatches(secret, givenSecret);
+        }
+        String ip = remoteAddress.substring(remoteAddress.lastIndexOf('/') + 1);
+        for (String node : nodes) {
+            try {
+                for (InetAddress address : InetAddress.getAllByName(node.substring(0, node.lastIndexOf(':')))) {
+                    if (address.getHostAddress().equals(ip)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                LOGGER.warning("Cannot resolve cluster node " + node + ": " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    public boolean owns(String location) {
+        return ring.owner(location).equals(self);
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    // Asks the owners of the locations for their weather; the answers are collected with Fetch.await
+    public Fetch fetch(Collection<String> locations) {
+        Map<String, JsonArray> byOwner = new LinkedHashMap<>();
+        for (String location : locations) {
+            byOwner.computeIfAbsent(ring.owner(location), owner -> new JsonArray()).add(location);
+        }
+        Fetch fetch = new Fetch();
+        long now = System.currentTimeMillis();
+        byOwner.forEach((owner, names) -> {
+            JsonObject request = new JsonObject();
+            request.addProperty("type", "getRecords");
+            request.add("locations", names);
+            Peer peer = peers.get(owner);
+            fetch.owners.add(peer);
+            if (peer == null) {
+                fetch.answers.add(failed(new IOException("Locations owned by this node were forwarded")));
+            } else if (now < peer.downUntil) {
+                fetch.answers.add(failed(new IOException("Node " + owner + " is unreachable")));
+            } else {
+                fetch.answers.add(peer.client.call(request.toString()));
+            }
+        });
+        Metrics.CLUSTER_FORWARDED.add(locations.size());
+        return fetch;
+    }
+
+    private static <T> CompletableFuture<T> failed(Exception error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    // Sends committed rows to every other node, in messages of at most MAX_MESSAGE_RECORDS rows; doesn't wait for them
+    public void broadcast(List<WeatherRecord> records) {
+        send("weatherUpdated", records, 0);
+    }
+
+    // Sends every row of a committed chunk, changed or not, to the other nodes' histories; doesn't wait for them
+    public void broadcastObserved(List<WeatherRecord> records, long uploadedAt) {
+        send("weatherObserved", records, uploadedAt);
+    }
+
+    private void send(String type, List<WeatherRecord> records, long uploadedAt) {
+        if (peers.isEmpty() || records.isEmpty()) {
+            return;
+        }
+        boolean update = uploadedAt == 0; // Only updates count as sent rows
+        for (int from = 0; from < records.size(); from += MAX_MESSAGE_RECORDS) {
+            List<WeatherRecord> slice = records.subList(from, Math.min(records.size(), from + MAX_MESSAGE_RECORDS));
+            String message = message(type, uploadedAt, slice);
+            for (Peer peer : peers.values()) {
+                peer.client.call(message).whenComplete((answer, error) -> {
+                    if (error == null && answer.startsWith("{\"error\"")) {
+                        error = new IOException(answer);
+                    }
+                    peer.delivered(update ? slice.size() : 0, error);
+                });
+            }
+        }
+    }
+
+    // Peer session: an update from another node, applied like one of this node's own uploads (but not sent on)
+    void apply(List<WeatherRecord> records) {
+        Metrics.CLUSTER_UPDATES_RECEIVED.add(records.size());
+        local.onWeatherUpdated(records);
+    }
+
+    // Peer session: the observations of another node's upload, recorded like this node's own
+    void applyObserved(List<WeatherRecord> records, long uploadedAt) {
+        local.onWeatherObserved(records, uploadedAt);
+    }
+
+    // Peer session: reads a request of another node
+    static PeerRequest readRequest(String line) throws IOException {
+        PeerRequest request = new PeerRequest();
+        try (JsonReader reader = new JsonReader(new StringReader(line))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "type":
+                        request.type = reader.nextString();
+                        break;
+                    case "id":
+                        request.id = reader.nextString(); // Numbers too, as the digits they were written with
+                        break;
+                    case "uploadedAt":
+                        request.uploadedAt = reader.nextLong();
+                        break;
+                    case "locations":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            request.locations.add(reader.nextString());
+                        }
+                        reader.endArray();
+                        break;
+                    case "records":
+                        readRecords(reader, request.records);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed peer request: " + e.getMessage());
+        }
+        return request;
+    }
+
+    // Peer session: the answer to getRecords
+    static String records(Collection<WeatherRecord> records) {
+        return message(null, 0, records);
+    }
+
+    // {"type":...,"uploadedAt":...,"records":[...]} with the records in the upload format, written without building
+    // a JSON tree; type and uploadedAt are left out when null or 0
+    private static String message(String type, long uploadedAt, Collection<WeatherRecord> records) {
+        StringWriter text = new StringWriter(64 + records.size() * 256);
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginObject();
+            if (type != null) {
+                out.name("type").value(type);
+            }
+            if (uploadedAt != 0) {
+                out.name("uploadedAt").value(uploadedAt);
+            }
+            out.name("records").beginArray();
+            for (WeatherRecord record : records) {
+                out.beginObject();
+                out.name("location").value(record.getLocation());
+                out.name("latitude").value(record.getLatitude());
+                out.name("longitude").value(record.getLongitude());
+                out.name("current_weather").value(record.getCurrentWeather());
+                out.name("current_temperature").value(record.getCurrentTemperature());
+                if (record.getForecastJson() != null) {
+                    out.name("forecast").jsonValue(record.getForecastJson());
+                }
+                if (record.getObservedAt() != 0) {
+                    out.name("observed_at").value(record.getObservedAt());
+                }
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // In memory, can't happen
+        }
+        return text.toString();
+    }
+
+    private static void readRecords(JsonReader reader, List<WeatherRecord> records) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            records.add(WeatherJsonReader.readRecord(reader, records.size() + 1));
+        }
+        reader.endArray();
+    }
+
+    @Override
+    public void close() {
+        peers.values().forEach(peer -> peer.client.close());
+    }
+
+    @Override
+    public String toString() {
+        return "Cluster[self=" + self + ", nodes=" + ring.size() + ", forwarded=" + Metrics.CLUSTER_FORWARDED.sum()
+                + ", updatesSent=" + Metrics.CLUSTER_UPDATES_SENT.sum() + ", updatesReceived=" + Metrics.CLUSTER_UPDATES_RECEIVED.sum() + "]";
+    }
+
+    // Forwarded lookups in flight, one request per owner
+    public static final class Fetch {
+        private final List<Peer> owners = new ArrayList<>();
+        private final List<CompletableFuture<String>> answers = new ArrayList<>();
+
+        // The weather the owners know, by location; waits at most the cluster timeout (WeatherClient enforces it)
+        public Map<String, WeatherRecord> await() throws IOException {
+            Map<String, WeatherRecord> found = new HashMap<>();
+            for (int i = 0; i < answers.size(); i++) {
+                String answer;
+                try {
+                    answer = answers.get(i).get();
+                } catch (ExecutionException e) {
+                    Metrics.CLUSTER_ERRORS.increment();
+                    Peer peer = owners.get(i);
+                    long now = System.currentTimeMillis();
+                    if (peer != null && now >= peer.downUntil && !(e.getCause() instanceof WeatherClient.ServerException)) {
+                        peer.downUntil = now + RETRY_DOWN_MILLIS; // Not extended by the refusals themselves
+                    }
+                    throw new IOException("Node " + owners.get(i) + " did not answer: " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for node " + owners.get(i));
+                }
+                try (JsonReader reader = new JsonReader(new StringReader(answer))) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (name.equals("records")) {
+                            List<WeatherRecord> records = new ArrayList<>();
+                            readRecords(reader, records);
+                            records.forEach(record -> found.put(record.getLocation(), record));
+                        } else if (name.equals("error") && reader.peek() == JsonToken.STRING) {
+                            Metrics.CLUSTER_ERRORS.increment();
+                            throw new IOException("Node " + owners.get(i) + " failed: " + reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                } catch (IllegalStateException e) {
+                    throw new IOException("Malformed answer from node " + owners.get(i) + ": " + e.getMessage());
+                }
+            }
+            return found;
+        }
+    }
+
+    static final class PeerRequest {
+        private String type;
+        private String id;
+        private long uploadedAt;
+        private final List<String> locations = new ArrayList<>();
+        private final List<WeatherRecord> records = new ArrayList<>();
+
+        String getType() {
+            return type;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        long getUploadedAt() {
+            return uploadedAt;
+        }
+
+        List<String> getLocations() {
+            return locations;
+        }
+
+        List<WeatherRecord> getRecords() {
+            return records;
+        }
+    }
+
+    // Another node; its updates are counted, and losing or regaining it is logged once
+    private static final class Peer {
+        private final String node;
+        private final WeatherClient client;
+        private volatile boolean reachable = true;
+        private volatile long downUntil; // See RETRY_DOWN_MILLIS
+
+        Peer(String node, WeatherClient client) {
+            this.node = node;
+            this.client = client;
+        }
+
+        @Override
+        public String toString() {
+            return node;
+        }
+
+        void delivered(int records, Throwable error) {
+            if (error == null) {
+                Metrics.CLUSTER_UPDATES_SENT.add(records);
+                if (!reachable) {
+                    reachable = true;
+                    LOGGER.info("Node " + node + " receives updates again.");
+                }
+            } else {
+                Metrics.CLUSTER_ERRORS.increment();
+                if (reachable) {
+                    reachable = false;
+                    LOGGER.warning("Node " + node + " missed an update, it serves cached rows until they expire: " + error.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Accepts client connections and drives a {@link ClientSession} for each of them.
+ * The engine is chosen when the server starts (see {@link Server#main}).
+ */
+public interface ConnectionEngine {
+
+    // Binds the port and serves connections until the server is stopped, within the admission limits:
+    // connections over the limit get one error line and are closed, timed out ones are rejected by their session
+    void serve(int port, AdmissionControl admission, Function<ClientSession.Output, ClientSession> sessionFactory) throws IOException;
+
+    static ConnectionEngine forName(String name) {
+        switch (name) {
+            case "thread":
+                return new ThreadPerConnectionEngine(false);
+            case "virtual":
+                return new ThreadPerConnectionEngine(true);
+            case "nio":
+                return new NioConnectionEngine(Integer.getInteger("nio.workers", Runtime.getRuntime().availableProcessors() * 8),
+                        Integer.getInteger("nio.maxQueuedRequests", 256), Long.getLong("nio.maxPendingBytes", 4L << 20));
+            default:
+                throw new IllegalArgumentException("Unknown connection engine: " + name + " (expected thread, virtual or nio)");
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package org.example;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of JDBC connections shared by all sessions. Each pooled connection keeps its own
+ * prepared statements, so the hot queries are parsed by PostgreSQL once per connection instead of
+ * once per request. Broken connections are detected on checkout/return and replaced transparently.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(ConnectionPool.class.getName());
+    private static final long VALIDATE_AFTER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final int statementCacheSize;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String user, String password, int maxSize, long acquireTimeoutMillis, int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    // Checks out a connection, opening a new one while below maxSize; close() the result to give it back
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+        long start = System.nanoTime();
+        try {
+            PooledConnection pooled = idle.poll();
+            while (true) {
+                if (pooled == null && tryReserveSlot()) {
+                    pooled = open();
+                } else if (pooled == null) {
+                    pooled = idle.poll(acquireTimeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), TimeUnit.MILLISECONDS);
+                    if (pooled == null) {
+                        timeouts.increment();
+                        throw new SQLException("Timed out after " + acquireTimeoutMillis + " ms waiting for a database connection.");
+                    }
+                }
+                if (validate(pooled)) {
+                    break;
+                }
+                pooled = idle.poll();
+            }
+            inUse.incrementAndGet();
+            pooled.checkedOut = true;
+            return pooled;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        } finally {
+            long waited = System.nanoTime() - start;
+            acquisitions.increment();
+            waitNanos.add(waited);
+            Metrics.DB_ACQUIRE.record(waited);
+        }
+    }
+
+    // Runs the work on a checked-out connection and gives it back; a failure marks the connection for validation
+    public <T> T withConnection(Work<T> work) throws SQLException {
+        try (PooledConnection db = acquire()) {
+            try {
+                return work.run(db);
+            } catch (SQLException e) {
+                throw db.failed(e);
+            }
+        }
+    }
+
+    private boolean tryReserveSlot() {
+        int current;
+        do {
+            current = created.get();
+            if (current >= maxSize) {
+                return false;
+            }
+        } while (!created.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private PooledConnection open() throws SQLException {
+        try {
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        } catch (SQLException e) {
+            created.decrementAndGet();
+            throw e;
+        }
+    }
+
+    // Connections that sat idle for a while or saw a failure while checked out are pinged before being handed out again
+    private boolean validate(PooledConnection pooled) {
+        boolean stale = pooled.suspect || System.nanoTime() - pooled.lastUsedNanos > VALIDATE_AFTER_IDLE_NANOS;
+        if (!stale) {
+            return true;
+        }
+        try {
+            if (pooled.connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                pooled.suspect = false;
+                return true;
+            }
+        } catch (SQLException e) {
+            LOGGER.warning("Connection validation failed: " + e.getMessage());
+        }
+        discard(pooled);
+        reconnects.increment();
+        return false;
+    }
+
+    private void release(PooledConnection pooled) {
+        pooled.checkedOut = false;
+        pooled.lastUsedNanos = System.nanoTime();
+        inUse.decrementAndGet();
+        try {
+            if (!pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback(); // Never hand out a connection in the middle of a transaction
+                pooled.connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            pooled.suspect = true;
+        }
+        if (closed || pooled.isClosedQuietly() || !idle.offer(pooled)) {
+            discard(pooled);
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        created.decrementAndGet();
+        pooled.closePhysically();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    public int getOpen() {
+        return created.get();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = acquisitions.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1_000_000.0 / count;
+    }
+
+    public double getUtilization() {
+        return (double) inUse.get() / maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pool[open=%d, inUse=%d/%d, utilization=%.0f%%, acquisitions=%d, avgWait=%.3f ms, timeouts=%d, reconnects=%d]",
+                getOpen(), getInUse(), maxSize, getUtilization() * 100, getAcquisitions(), getAverageWaitMillis(), getTimeouts(), getReconnects());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) != null) {
+            discard(pooled);
+        }
+    }
+
+    /** Work done on a checked-out connection, see {@link #withConnection}. */
+    @FunctionalInterface
+    public interface Work<T> {
+        T run(PooledConnection db) throws SQLException;
+    }
+
+    /**
+     * A checked-out connection. Statements returned by {@link #prepare} belong to the connection and
+     * must not be closed by the caller; closing the PooledConnection returns it to the pool.
+     */
+    public final class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private volatile long lastUsedNanos = System.nanoTime();
+        private volatile boolean suspect;
+        private boolean checkedOut;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        closeStatement(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        public PreparedStatement prepare(String query) throws SQLException {
+            PreparedStatement stmt = statements.get(query);
+            if (stmt == null || stmt.isClosed()) {
+                try {
+                    stmt = connection.prepareStatement(query);
+                } catch (SQLException e) {
+                    throw failed(e);
+                }
+                statements.put(query, stmt);
+            } else {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+
+        // Marks the connection for validation on its next checkout and returns e for rethrowing. Any failure
+        // counts, not just SQLState class 08: drivers report a dropped socket under other states too
+        public SQLException failed(SQLException e) {
+            suspect = true;
+            return e;
+        }
+
+        // Raw access for work that needs transactions; the statement cache still applies through prepare()
+        public Connection getConnection() {
+            return connection;
+        }
+
+        @Override
+        public void close() {
+            if (checkedOut) {
+                release(this);
+            }
+        }
+
+        private boolean isClosedQuietly() {
+            try {
+                return connection.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+
+        private void closePhysically() {
+            for (PreparedStatement stmt : statements.values()) {
+                closeStatement(stmt);
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warning("Error while closing a database connection: " + e.getMessage());
+            }
+        }
+
+        private void closeStatement(PreparedStatement stmt) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                LOGGER.warning("Error while closing a statement: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Storage inside the server process, so it can run without PostgreSQL. Weather rows and users live
+ * in concurrent maps, which makes every lookup a hash lookup. Durability comes from files in one
+ * directory:
+ *
+ * <ul>
+ *   <li>{@code log-<generation>.wal} – an append-only log. Every committed upload chunk and every user
+ *       flush is one frame (length, CRC-32, entries) written, and by default forced to disk, before it
+ *       becomes visible. A frame cut short by a crash fails its checksum and is dropped on restart.</li>
+ *   <li>{@code snapshot.dat} – every row at some point, and the generation of the first log that
+ *       comes after it. Taken periodically, once enough log has accumulated and at shutdown: the log
+ *       moves on to a new generation, the maps are copied, the snapshot is written to a temporary file
+ *       and renamed over the old one, and older logs are deleted.</li>
+ * </ul>
+ *
+ * Restarting reads the snapshot through a memory mapping and replays only the logs written after it.
+ */
+public class EmbeddedStorage implements WeatherStorage {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(EmbeddedStorage.class.getName());
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String LOCK_FILE = "storage.lock";
+    private static final int SNAPSHOT_MAGIC = 0x57534e50; // "WSNP"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_BYTES = 16; // Magic, version, generation to replay from
+    private static final int SNAPSHOT_FRAME_BYTES = 1 << 20;
+    private static final long MAP_WINDOW_BYTES = 64L << 20; // Mapped at a time while reading a file
+    // Entry types
+    private static final byte WEATHER = 1;
+    private static final byte REGISTER = 2; // A user, unless it exists already
+    private static final byte LOCATION = 3; // A user's location, if the user exists
+    private static final byte USER = 4; // A complete user, in snapshots
+
+    private final Path directory;
+    private final boolean fsync;
+    private final long snapshotLogBytes;
+    private final ConcurrentHashMap<String, WeatherRecord> weather = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final Object logLock = new Object(); // Appending to the log and applying the frame happen under it
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final ScheduledExecutorService snapshotter;
+    private FileLock directoryLock; // Held while open, so no other process appends to the logs or deletes them
+    private FileChannel log; // Guarded by logLock
+    private long generation; // Guarded by logLock
+    private volatile long logBytes; // Written since the last snapshot; only changed under logLock
+
+    private static final class User {
+        final String role;
+        final String location;
+
+        User(String role, String location) {
+            this.role = role;
+            this.location = location;
+        }
+    }
+
+    /**
+     * Opens (or creates) the storage in the directory and recovers its contents. Snapshots are taken
+     * every snapshotIntervalSeconds if anything was written, and as soon as the log since the last one
+     * exceeds snapshotLogBytes. With fsync off a commit only reaches the operating system, which
+     * survives a crash of the server but not of the machine. Fails if another storage, in this process
+     * or another, has the directory open.
+     */
+    public EmbeddedStorage(Path directory, boolean fsync, long snapshotIntervalSeconds, long snapshotLogBytes) throws SQLException {
+        this.directory = directory;
+        this.fsync = fsync;
+        this.snapshotLogBytes = snapshotLogBytes;
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new SQLException("Could not open the embedded storage in " + directory + ": " + e.getMessage(), e);
+        }
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (snapshotIntervalSeconds > 0) {
+            snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+        FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            directoryLock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            directoryLock = null;
+        }
+        if (directoryLock == null) {
+            lockChannel.close();
+            throw new IOException("it is in use by another server");
+        }
+        long replayFrom = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            replayFrom = loadSnapshot(snapshot);
+        }
+        long replayedBytes = 0;
+        generation = replayFrom;
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration < replayFrom) {
+                Files.delete(logPath(logGeneration)); // Already in the snapshot; left over from a crash before the cleanup
+                continue;
+            }
+            replayedBytes += replayLog(logPath(logGeneration));
+            generation = logGeneration;
+        }
+        log = openLog(generation);
+        logBytes = log.size();
+        System.out.println("Embedded storage: recovered " + weather.size() + " locations and " + users.size() + " users from "
+                + directory + " in " + (System.nanoTime() - start) / 1_000_000 + " ms (" + replayedBytes + " log bytes replayed).");
+    }
+
+    // Returns the generation of the first log written after the snapshot
+    private long loadSnapshot(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            if (channel.size() < SNAPSHOT_HEADER_BYTES) {
+                throw new IOException(snapshot + " is truncated (" + channel.size() + " bytes)");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER_BYTES);
+            if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException(snapshot + " is not a snapshot of this version");
+            }
+            long replayFrom = header.getLong();
+            if (readFrames(channel, SNAPSHOT_HEADER_BYTES) != channel.size()) {
+                throw new IOException(snapshot + " is damaged");
+            }
+            return replayFrom;
+        }
+    }
+
+    // Applies every intact frame, cuts off a torn tail; returns the bytes replayed
+    private long replayLog(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long end = readFrames(channel, 0);
+            if (end < channel.size()) {
+                LOGGER.warning("Discarding " + (channel.size() - end) + " bytes of an incomplete commit at the end of " + path);
+                channel.truncate(end);
+                channel.force(true);
+            }
+            return end;
+        }
+    }
+
+    // Applies the frames from 'position' on through a sliding memory mapping; returns where the intact frames end
+    private long readFrames(FileChannel channel, long position) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        CRC32 crc = new CRC32();
+        while (position + 8 <= size) {
+            if (window == null || position + 8 > windowStart + window.capacity()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_BYTES, size - position));
+            }
+            int offset = (int) (position - windowStart);
+            int length = window.getInt(offset);
+            int checksum = window.getInt(offset + 4);
+            if (length < 0 || position + 8 + length > size) {
+                break;
+            }
+            if (offset + 8 + length > window.capacity()) {
+                // The frame runs past the window: map again starting at the frame
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(MAP_WINDOW_BYTES, 8L + length), size - position));
+                offset = 0;
+            }
+            ByteBuffer payload = window.duplicate();
+            payload.position(offset + 8);
+            payload.limit(offset + 8 + length);
+            payload = payload.slice();
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(payload);
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    private void apply(ByteBuffer entries) throws IOException {
+        while (entries.hasRemaining()) {
+            byte type = entries.get();
+            switch (type) {
+                case WEATHER: {
+                    WeatherRecord record = new WeatherRecord(readString(entries), entries.getDouble(), entries.getDouble(),
+                            readString(entries), entries.getDouble(), readString(entries));
+                    weather.put(record.getLocation(), record);
+                    break;
+                }
+                case REGISTER: {
+                    String username = readString(entries);
+                    users.putIfAbsent(username, new User(readString(entries), null));
+                    break;
+                }
+                case LOCATION: {
+                    String username = readString(entries);
+                    String location = readString(entries);
+                    users.computeIfPresent(username, (key, user) -> new User(user.role, location));
+                    break;
+                }
+                case USER: {
+                    String username = readString(entries);
+                    users.put(username, new User(readString(entries), readString(entries)));
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown entry type " + type);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "log-*.wal")) {
+            for (Path path : logs) {
+                String name = path.getFileName().toString();
+                generations.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private Path logPath(long logGeneration) {
+        return directory.resolve("log-" + logGeneration + ".wal");
+    }
+
+    // Makes renames and new files in the directory durable. Windows can't open a directory, but NTFS
+    // journals these changes anyway
+    private void forceDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            if (!System.getProperty("os.name", "").startsWith("Windows")) {
+                throw e;
+            }
+        }
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        FileChannel channel = FileChannel.open(logPath(logGeneration), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    // Writes the frame to the log and then applies it, so the maps change in log order
+    private void commit(Entries entries) throws SQLException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        synchronized (logLock) {
+            long before = -1;
+            try {
+                ByteBuffer payload = entries.payload();
+                before = log.position();
+                writeFrame(log, payload.duplicate());
+                if (fsync) {
+                    log.force(false);
+                }
+                logBytes += log.position() - before;
+                apply(payload);
+            } catch (IOException e) {
+                // Don't leave half a frame for later commits to be appended after
+                try {
+                    if (before >= 0) {
+                        log.truncate(before);
+                        log.position(before);
+                    }
+                } catch (IOException truncateFailure) {
+                    e.addSuppressed(truncateFailure);
+                }
+                throw new SQLException("Could not write to the storage log: " + e.getMessage(), e);
+            }
+        }
+        Metrics.STORAGE_COMMIT.recordSince(start);
+        if (logBytes > snapshotLogBytes && !snapshotting.get()) {
+            snapshotter.execute(this::snapshotQuietly);
+        }
+    }
+
+    private static void writeFrame(FileChannel channel, ByteBuffer payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(payload.remaining());
+        header.putInt((int) crc.getValue());
+        header.flip();
+        ByteBuffer[] frame = {header, payload};
+        while (payload.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            LOGGER.warning("Snapshot failed, the log keeps growing until the next one: " + e.getMessage());
+        }
+    }
+
+    // Writes every row to a new snapshot and drops the logs it makes redundant; nothing to do if nothing was logged
+    public void snapshot() throws IOException {
+        if (!snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            List<WeatherRecord> weatherRows;
+            Map<String, User> userRows;
+            long replayFrom;
+            synchronized (logLock) {
+                if (logBytes == 0) {
+                    return;
+                }
+                // Commits wait for the copy; records are immutable, so copying the references is enough
+                weatherRows = new ArrayList<>(weather.values());
+                userRows = new HashMap<>(users);
+                FileChannel next = openLog(generation + 1);
+                if (fsync) {
+                    forceDirectory(); // Commits forced into the new log must not lose the file itself
+                }
+                log.close();
+                log = next;
+                generation++;
+                logBytes = 0;
+                replayFrom = generation;
+            }
+
+            Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES);
+                header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(replayFrom);
+                header.flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                Entries entries = new Entries();
+                for (WeatherRecord record : weatherRows) {
+                    entries.weather(record);
+                    if (entries.size() >= SNAPSHOT_FRAME_BYTES) {
+                        writeFrame(out, entries.payload());
+                        entries = new Entries();
+                    }
+                }
+                for (Map.Entry<String, User> user : userRows.entrySet()) {
+                    entries.user(user.getKey(), user.getValue());
+                    if (entries.size() >= SNAPSHOT_FRAME_BYTES) {
+                        writeFrame(out, entries.payload());
+                        entries = new Entries();
+                    }
+                }
+                if (!entries.isEmpty()) {
+                    writeFrame(out, entries.payload());
+                }
+                out.force(true);
+            }
+            Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            forceDirectory(); // The rename must be on disk before the logs it replaces are deleted
+            for (long logGeneration : logGenerations()) {
+                if (logGeneration < replayFrom) {
+                    Files.delete(logPath(logGeneration));
+                }
+            }
+            Metrics.STORAGE_SNAPSHOT.recordSince(start);
+        } finally {
+            snapshotting.set(false);
+        }
+    }
+
+    @Override
+    public WeatherRecord findWeather(String location) {
+        return weather.get(location);
+    }
+
+    @Override
+    public Map<String, WeatherRecord> findWeather(Collection<String> locations) {
+        Map<String, WeatherRecord> found = new HashMap<>();
+        for (String location : locations) {
+            WeatherRecord record = weather.get(location);
+            if (record != null) {
+                found.put(location, record);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void forEachWeather(Consumer<WeatherRecord> action) {
+        weather.values().forEach(action);
+    }
+
+    @Override
+    public Transaction beginWrite() {
+        return new EmbeddedTransaction();
+    }
+
+    // Writers mostly parse and encode; only their commits take turns
+    @Override
+    public int getMaxWriters() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> action) {
+        users.keySet().forEach(action);
+    }
+
+    @Override
+    public void writeUsers(Map<String, String> registrations, Map<String, String> locations) throws SQLException {
+        Entries entries = new Entries();
+        registrations.forEach(entries::register);
+        locations.forEach(entries::location);
+        commit(entries);
+    }
+
+    // Stops the periodic snapshots and takes a last one, so the next start has no log to replay
+    @Override
+    public void close() {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            LOGGER.warning("Final snapshot failed, the log will be replayed on the next start: " + e.getMessage());
+        }
+        synchronized (logLock) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOGGER.warning("Could not close the storage log: " + e.getMessage());
+            }
+        }
+        try {
+            directoryLock.channel().close(); // Releases the lock
+        } catch (IOException e) {
+            LOGGER.warning("Could not release the storage lock: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EmbeddedStorage[locations=" + weather.size() + ", users=" + users.size() + ", logBytes=" + logBytes + "]";
+    }
+
+    /**
+     * One upload writer's changes, kept until commit. Inserts are re-checked at commit time, so of two
+     * writers inserting the same new location only the first to commit writes it; the other's commit
+     * returns the location.
+     */
+    private final class EmbeddedTransaction implements Transaction {
+        private final Map<String, WeatherRecord> inserts = new LinkedHashMap<>();
+        private final Map<String, WeatherRecord> upserts = new LinkedHashMap<>();
+
+        @Override
+        public boolean[] insertNew(List<WeatherRecord> records) {
+            boolean[] inserted = new boolean[records.size()];
+            for (int i = 0; i < inserted.length; i++) {
+                WeatherRecord record = records.get(i);
+                if (pending(record.getLocation()) == null && !weather.containsKey(record.getLocation())) {
+                    inserts.put(record.getLocation(), record);
+                    inserted[i] = true;
+                }
+            }
+            return inserted;
+        }
+
+        @Override
+        public Map<String, Long> storedHashes(Collection<String> locations) {
+            Map<String, Long> storedHashes = new HashMap<>();
+            for (String location : locations) {
+                WeatherRecord record = pending(location);
+                if (record == null) {
+                    record = weather.get(location);
+                }
+                if (record != null) {
+                    storedHashes.put(location, record.getContentHash());
+                }
+            }
+            return storedHashes;
+        }
+
+        @Override
+        public void upsert(List<WeatherRecord> records) {
+            for (WeatherRecord record : records) {
+                inserts.remove(record.getLocation());
+                upserts.put(record.getLocation(), record);
+            }
+        }
+
+        private WeatherRecord pending(String location) {
+            WeatherRecord record = upserts.get(location);
+            return record != null ? record : inserts.get(location);
+        }
+
+        @Override
+        public Set<String> commit() throws SQLException {
+            Entries entries = new Entries();
+            Set<String> lost = new HashSet<>();
+            synchronized (logLock) {
+                for (WeatherRecord record : inserts.values()) {
+                    if (!weather.containsKey(record.getLocation())) {
+                        entries.weather(record);
+                    } else {
+                        lost.add(record.getLocation());
+                    }
+                }
+                for (WeatherRecord record : upserts.values()) {
+                    entries.weather(record);
+                }
+                EmbeddedStorage.this.commit(entries); // Reentrant: the check above and the write are one step
+            }
+            inserts.clear();
+            upserts.clear();
+            return lost;
+        }
+
+        @Override
+        public void close() {
+            inserts.clear();
+            upserts.clear();
+        }
+    }
+
+    // Entries being encoded for one frame: a type byte, then the fields; strings are a length (-1 for null) and UTF-8
+    private static final class Entries {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        void weather(WeatherRecord record) {
+            try {
+                out.writeByte(WEATHER);
+                writeString(record.getLocation());
+                out.writeDouble(record.getLatitude());
+                out.writeDouble(record.getLongitude());
+                writeString(record.getCurrentWeather());
+                out.writeDouble(record.getCurrentTemperature());
+                writeString(record.getForecastJson());
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // Never thrown by a ByteArrayOutputStream
+            }
+        }
+
+        void register(String username, String role) {
+            try {
+                out.writeByte(REGISTER);
+                writeString(username);
+                writeString(role);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void location(String username, String location) {
+            try {
+                out.writeByte(LOCATION);
+                writeString(username);
+                writeString(location);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void user(String username, User user) {
+            try {
+                out.writeByte(USER);
+                writeString(username);
+                writeString(user.role);
+                writeString(user.location);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        boolean isEmpty() {
+            return bytes.size() == 0;
+        }
+
+        ByteBuffer payload() {
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+    }
+}
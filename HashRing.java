@@ -0,0 +1,68 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Consistent hashing of location names onto cluster nodes. Every node is placed on a 64-bit ring at
+ * {@code virtualNodes} points and a key belongs to the node of the first point at or after its hash,
+ * so adding or removing one of N nodes moves only about 1/N of the keys, and the load evens out as
+ * the number of virtual nodes grows. Immutable; every node builds the same ring from the same list.
+ */
+public final class HashRing {
+    private final long[] points; // Sorted
+    private final String[] owners; // owners[i] is the node at points[i]
+    private final int nodes;
+
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A ring needs at least one node and one point per node");
+        }
+        this.nodes = nodes.size();
+        int size = nodes.size() * virtualNodes;
+        long[][] placed = new long[size][];
+        String[] names = nodes.toArray(new String[0]);
+        int count = 0;
+        for (int node = 0; node < names.length; node++) {
+            for (int point = 0; point < virtualNodes; point++) {
+                placed[count++] = new long[]{hash(names[node] + "#" + point), node};
+            }
+        }
+        // By point, then by node name, so a (very unlikely) collision resolves the same way on every node
+        Arrays.sort(placed, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : names[(int) a[1]].compareTo(names[(int) b[1]]));
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = placed[i][0];
+            owners[i] = names[(int) placed[i][1]];
+        }
+    }
+
+    public String owner(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1; // First point after the hash
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public int size() {
+        return nodes;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so close names land far apart
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,349 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator speaking the same protocol as {@link Client}: every simulated user does
+ * the role handshake, sets a location and then sends a mix of getWeather / updateLocation /
+ * disconnect requests, each one waiting for the menu line that ends the server's answer.
+ *
+ * <p>In the closed loop every session sends its next request as soon as the previous one completed
+ * (paced to {@code load.rate} when set). In the open loop requests are due on a fixed schedule and
+ * latency is measured from the time a request was due, not from when it could actually be sent.
+ * Both ways a stalled server shows up in the percentiles instead of silently slowing the senders
+ * down (coordinated omission): the open loop by construction, the closed loop by back-filling the
+ * requests a paced session missed.
+ *
+ * <p>Configured with system properties, e.g.
+ * {@code java -Dload.sessions=2000 -Dload.rate=20000 -Dload.mode=open org.example.LoadGenerator}.
+ */
+public class LoadGenerator {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(LoadGenerator.class.getName());
+    private static final String[] TYPES = {"getWeather", "updateLocation", "disconnect"};
+    private static final byte[] GET_WEATHER = "{\"type\":\"getWeather\"}\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DISCONNECT = "{\"type\":\"disconnect\"}\n".getBytes(StandardCharsets.UTF_8);
+
+    private final String host = System.getProperty("load.host", "localhost");
+    private final int port = Integer.getInteger("load.port", 6543);
+    private final int sessions = Integer.getInteger("load.sessions", 100);
+    private final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.warmup", 5));
+    private final long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 30));
+    private final double rate = Double.parseDouble(System.getProperty("load.rate", "0")); // Requests/s over all sessions, 0 = as fast as possible
+    private final boolean openLoop = "open".equalsIgnoreCase(System.getProperty("load.mode", "closed"));
+    private final double[] mix = parseMix(System.getProperty("load.mix", "getWeather=90,updateLocation=9,disconnect=1"));
+    private final String locationPrefix = System.getProperty("load.locationPrefix", "Town");
+    private final LocationPicker locations = new LocationPicker(Integer.getInteger("load.locations", 10_000),
+            System.getProperty("load.distribution", "zipf"), Double.parseDouble(System.getProperty("load.zipfExponent", "0.99")));
+
+    // Response time: from when the request was due (corrected); service time: from when it was sent
+    private final Map<String, LatencyHistogram> responseTimes = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> serviceTimes = new LinkedHashMap<>();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder connectionErrors = new LongAdder();
+    private long measureStart;
+    private long end;
+
+    public LoadGenerator() {
+        for (String type : new String[]{"register", "getWeather", "updateLocation"}) {
+            responseTimes.put(type, new LatencyHistogram());
+            serviceTimes.put(type, new LatencyHistogram());
+        }
+    }
+
+    public void run() throws InterruptedException {
+        if (openLoop && rate <= 0) {
+            throw new IllegalArgumentException("The open loop needs a target rate (-Dload.rate=)");
+        }
+        System.out.printf(Locale.ROOT, "Load: %d sessions against %s:%d, %s loop, target %s, %d s warm-up + %d s measured%n",
+                sessions, host, port, openLoop ? "open" : "closed", rate > 0 ? rate + " req/s" : "unlimited",
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos), TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+
+        long start = System.nanoTime();
+        measureStart = start + warmupNanos;
+        end = measureStart + durationNanos;
+        long interval = rate > 0 ? (long) (sessions * 1e9 / rate) : 0; // Time between two requests of one session
+        CountDownLatch done = new CountDownLatch(sessions);
+        ExecutorService executor = ThreadPerConnectionEngine.newVirtualThreadExecutor();
+        for (int i = 0; i < sessions; i++) {
+            // Spread the sessions' schedules over one interval so they don't all fire at once
+            long firstDue = start + (interval > 0 ? ThreadLocalRandom.current().nextLong(interval) : 0);
+            int sessionId = i;
+            executor.execute(() -> {
+                try {
+                    new Session("load-" + sessionId, interval, firstDue).run();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        long lastCompleted = 0;
+        while (!done.await(1, TimeUnit.SECONDS)) {
+            long now = completed.sum();
+            System.out.printf(Locale.ROOT, "[%3ds] %8d req/s, errors=%d, connection errors=%d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), now - lastCompleted, errors.sum(), connectionErrors.sum());
+            lastCompleted = now;
+        }
+        executor.shutdown();
+        report();
+    }
+
+    private void report() {
+        long requests = 0;
+        for (String type : responseTimes.keySet()) {
+            requests += serviceTimes.get(type).getCount();
+        }
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Throughput: %.1f req/s (%d requests in %d s), errors: %d, connection errors: %d%n",
+                requests / (durationNanos / 1e9), requests, TimeUnit.NANOSECONDS.toSeconds(durationNanos), errors.sum(), connectionErrors.sum());
+        printTable("Response time in ms (corrected for coordinated omission)", responseTimes);
+        printTable("Service time in ms (from the actual send)", serviceTimes);
+    }
+
+    private static void printTable(String title, Map<String, LatencyHistogram> histograms) {
+        System.out.println();
+        System.out.println(title);
+        System.out.printf(Locale.ROOT, "%-16s %10s %9s %9s %9s %9s %9s%n", "", "count", "p50", "p90", "p99", "p999", "max");
+        LatencyHistogram all = new LatencyHistogram();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            printRow(entry.getKey(), entry.getValue());
+            all.add(entry.getValue());
+        }
+        printRow("all", all);
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram) {
+        double ms = TimeUnit.MILLISECONDS.toNanos(1);
+        System.out.printf(Locale.ROOT, "%-16s %10d %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, histogram.getCount(),
+                histogram.getPercentileNanos(50) / ms, histogram.getPercentileNanos(90) / ms, histogram.getPercentileNanos(99) / ms,
+                histogram.getPercentileNanos(99.9) / ms, histogram.getMaxNanos() / ms);
+    }
+
+    // One simulated user: (re)connects, logs in and keeps sending requests until the run ends
+    private final class Session {
+        private final String username;
+        private final long interval;
+        private long due;
+        private Socket socket;
+        private BufferedReader in;
+        private OutputStream out;
+
+        Session(String username, long interval, long firstDue) {
+            this.username = username;
+            this.interval = interval;
+            this.due = firstDue;
+        }
+
+        void run() {
+            while (System.nanoTime() < end) {
+                waitUntilDue();
+                try {
+                    if (socket == null) {
+                        connect();
+                    } else {
+                        String type = pickType();
+                        if ("disconnect".equals(type)) {
+                            out.write(DISCONNECT);
+                            out.flush();
+                            closeQuietly(); // Reconnects (and logs in again) on the next turn
+                        } else if ("getWeather".equals(type)) {
+                            request("getWeather", GET_WEATHER);
+                        } else {
+                            request("updateLocation", locationRequest("{\"type\":\"updateLocation\",\"currentLocation\":\""));
+                        }
+                    }
+                } catch (IOException e) {
+                    if (connectionErrors.sum() == 0) {
+                        LOGGER.warning(username + ": " + e.getMessage()); // The first one tells why, the count tells how often
+                    }
+                    connectionErrors.increment();
+                    closeQuietly();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100)); // Back off, the server may be full
+                }
+                due += interval;
+            }
+            if (socket != null) {
+                try {
+                    out.write(DISCONNECT);
+                    out.flush();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+                closeQuietly();
+            }
+        }
+
+        // Handshake and first location, timed together as one "register" request
+        private void connect() throws IOException {
+            long intended = due;
+            long sent = System.nanoTime();
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), 10_000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(("{\"role\":\"user\",\"username\":\"" + username + "\"}\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            readUntilMenu();
+            out.write(locationRequest("{\"currentLocation\":\""));
+            out.flush();
+            readUntilMenu();
+            record("register", intended, sent);
+        }
+
+        private void request(String type, byte[] line) throws IOException {
+            long intended = due;
+            long sent = System.nanoTime();
+            out.write(line);
+            out.flush();
+            readUntilMenu();
+            record(type, intended, sent);
+        }
+
+        // Every answer ends with a menu line, which Gson serializes with "header" first
+        private void readUntilMenu() throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("{\"header\"")) {
+                    return;
+                }
+                if (line.startsWith("{\"error\"")) {
+                    errors.increment();
+                }
+            }
+            throw new IOException("Connection closed by the server");
+        }
+
+        private void record(String type, long intended, long sent) {
+            long now = System.nanoTime();
+            completed.increment();
+            if (sent < measureStart) {
+                return; // Still warming up
+            }
+            serviceTimes.get(type).record(now - sent);
+            if (openLoop) {
+                responseTimes.get(type).record(now - intended);
+            } else {
+                responseTimes.get(type).recordCorrected(now - sent, interval);
+            }
+        }
+
+        // Waits for the next scheduled slot; an open loop that fell behind sends at once to catch up
+        private void waitUntilDue() {
+            long now = System.nanoTime();
+            if (interval <= 0 || (!openLoop && due < now)) {
+                due = now; // A closed loop never sends the requests it missed, recordCorrected accounts for them
+            }
+            while (due > now) {
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+            }
+        }
+
+        private byte[] locationRequest(String prefix) {
+            return (prefix + locationPrefix + locations.next() + "\"}\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private void closeQuietly() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+                socket = null;
+            }
+        }
+    }
+
+    private String pickType() {
+        double r = ThreadLocalRandom.current().nextDouble();
+        for (int i = 0; i < TYPES.length; i++) {
+            if (r < mix[i]) {
+                return TYPES[i];
+            }
+        }
+        return TYPES[0];
+    }
+
+    // "getWeather=90,updateLocation=9,disconnect=1" -> cumulative probabilities in TYPES order
+    static double[] parseMix(String spec) {
+        double[] weights = new double[TYPES.length];
+        for (String part : spec.split(",")) {
+            String[] keyValue = part.trim().split("=");
+            int index = Arrays.asList(TYPES).indexOf(keyValue[0].trim());
+            if (keyValue.length != 2 || index < 0) {
+                throw new IllegalArgumentException("Invalid load.mix entry: " + part + " (expected getWeather|updateLocation|disconnect=weight)");
+            }
+            weights[index] = Double.parseDouble(keyValue[1].trim());
+        }
+        double total = Arrays.stream(weights).sum();
+        double[] cumulative = new double[TYPES.length];
+        double sum = 0;
+        for (int i = 0; i < TYPES.length; i++) {
+            sum += weights[i];
+            cumulative[i] = sum / total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Location indexes 0..count-1, either uniform or Zipfian (index 0 the most popular), the usual
+     * shape of real lookups where a few big cities get most of the traffic.
+     */
+    static final class LocationPicker {
+        private final int count;
+        private final double[] cumulative; // Null for the uniform distribution
+
+        LocationPicker(int count, String distribution, double exponent) {
+            this.count = count;
+            if ("uniform".equalsIgnoreCase(distribution)) {
+                cumulative = null;
+            } else if ("zipf".equalsIgnoreCase(distribution)) {
+                cumulative = new double[count];
+                double sum = 0;
+                for (int rank = 1; rank <= count; rank++) {
+                    sum += 1 / Math.pow(rank, exponent);
+                    cumulative[rank - 1] = sum;
+                }
+                for (int i = 0; i < count; i++) {
+                    cumulative[i] /= sum;
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown load.distribution: " + distribution + " (expected uniform or zipf)");
+            }
+        }
+
+        int next() {
+            Random random = ThreadLocalRandom.current();
+            if (cumulative == null) {
+                return random.nextInt(count);
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index >= 0 ? index : -index - 1, count - 1);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadGenerator().run();
+    }
+}
@@ -0,0 +1,277 @@
+package org.example;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Every known location name, for resolving what users type without asking PostgreSQL.
+ *
+ * <p>Names are looked up by a normalized key: lower case, diacritics removed, whitespace trimmed and
+ * collapsed (hyphens count as spaces), so "bucuresti", " București " and "BUCUREȘTI" all resolve to
+ * the stored spelling. The stored name is returned as one shared instance, which is then used for
+ * the cache and the database. Names that don't resolve get "did you mean" suggestions from a trigram
+ * index: candidates are ranked by the Dice coefficient of their trigrams, rarest trigrams first.
+ *
+ * <p>The index is loaded at startup and grows with uploads. Once loaded it knows every name this
+ * server wrote, but other programs may insert rows too, so a name it doesn't know is still looked up
+ * in the database (and added here when found). {@link #isComplete()} tells whether the startup load
+ * succeeded.
+ */
+public class LocationNameIndex implements WeatherUpdateListener {
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final int MAX_SCANNED_POSTINGS = 50_000; // Per suggestion lookup, rarest trigrams first
+    private static final double MIN_SIMILARITY = 0.45;
+
+    // Normalized key -> the stored name (the first one, if several names share a key)
+    private final ConcurrentHashMap<String, String> byKey = new ConcurrentHashMap<>();
+    // Stored names whose key was already taken by another spelling, so they still resolve exactly
+    private final ConcurrentHashMap<String, String> collisions = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, int[]> postings = new HashMap<>(); // Trigram -> ids; the first element is the count. Guarded by lock
+    private String[] names = new String[1024]; // Guarded by lock
+    private short[] trigramCounts = new short[1024]; // Guarded by lock
+    private int size; // Guarded by lock
+    private volatile boolean complete;
+
+    // Adds every name and marks the index complete; meant for the startup load
+    public void load(Collection<WeatherRecord> records) {
+        addAll(records);
+        complete = true;
+    }
+
+    @Override
+    public void onWeatherUpdated(List<WeatherRecord> records) {
+        addAll(records);
+    }
+
+    void addAll(Collection<WeatherRecord> records) {
+        lock.writeLock().lock();
+        try {
+            for (WeatherRecord record : records) {
+                add(record.getLocation());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void add(String name) {
+        String key = normalize(name);
+        String existing = byKey.putIfAbsent(key, name);
+        if (existing != null) {
+            if (!existing.equals(name)) {
+                collisions.putIfAbsent(name, name);
+            }
+            return; // Already indexed under this key
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            trigramCounts = Arrays.copyOf(trigramCounts, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        Set<String> trigrams = trigrams(key);
+        trigramCounts[id] = (short) Math.min(Short.MAX_VALUE, trigrams.size());
+        for (String trigram : trigrams) {
+            int[] list = postings.get(trigram);
+            if (list == null) {
+                list = new int[4];
+            } else if (list[0] + 1 == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+            list[++list[0]] = id;
+            postings.put(trigram, list);
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int size() {
+        return byKey.size() + collisions.size();
+    }
+
+    // The stored name the input refers to, or null if no stored name normalizes like it
+    public String resolve(String input) {
+        if (input == null) {
+            return null;
+        }
+        String exact = collisions.get(input);
+        if (exact != null) {
+            return exact;
+        }
+        return byKey.get(normalize(input));
+    }
+
+    /**
+     * Up to 'limit' stored names that look like the input, most similar first. A name needs at least
+     * {@code minShared} of the query's trigrams to reach {@link #MIN_SIMILARITY}, so it must appear in
+     * one of the rarest {@code lists - minShared + 1} posting lists. Only those are scanned for
+     * candidates; the common trigrams (often in most of the index) are only looked for in the names of
+     * candidates that could still make the cut.
+     */
+    public List<String> suggest(String input, int limit) {
+        List<String> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+        Set<String> queryTrigrams = trigrams(normalize(input));
+        int queryCount = queryTrigrams.size();
+        lock.readLock().lock();
+        try {
+            // The query's trigrams that occur at all, rarest first
+            List<String> present = new ArrayList<>();
+            for (String trigram : queryTrigrams) {
+                if (postings.containsKey(trigram)) {
+                    present.add(trigram);
+                }
+            }
+            present.sort((a, b) -> Integer.compare(postings.get(a)[0], postings.get(b)[0]));
+            List<int[]> lists = new ArrayList<>();
+            for (String trigram : present) {
+                lists.add(postings.get(trigram));
+            }
+            // Dice >= t with shared <= candidate count gives shared >= t * q / (2 - t)
+            int minShared = (int) Math.ceil(MIN_SIMILARITY * queryCount / (2 - MIN_SIMILARITY));
+            int seedLists = Math.min(lists.size(), Math.max(1, lists.size() - minShared + 1));
+            int scanned = 0;
+            int scannedLists = 0;
+            while (scannedLists < seedLists && (scanned == 0 || scanned + lists.get(scannedLists)[0] <= MAX_SCANNED_POSTINGS)) {
+                scanned += lists.get(scannedLists++)[0]; // Lists past the budget are probed like the common ones
+            }
+
+            // Open-addressing counts, at most half full: candidate id -> number of scanned lists it appears in
+            int capacity = Integer.highestOneBit(Math.max(16, scanned * 2)) * 2;
+            int[] ids = new int[capacity];
+            int[] counts = new int[capacity];
+            int[] used = new int[scanned]; // Occupied slots in insertion order, so only those are visited below
+            int usedCount = 0;
+            Arrays.fill(ids, -1);
+            for (int i = 0; i < scannedLists; i++) {
+                int[] list = lists.get(i);
+                for (int j = 1; j <= list[0]; j++) {
+                    int hash = list[j] * 0x9E3779B9;
+                    int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+                    while (ids[slot] != -1 && ids[slot] != list[j]) {
+                        slot = (slot + 1) & (capacity - 1);
+                    }
+                    if (ids[slot] == -1) {
+                        ids[slot] = list[j];
+                        used[usedCount++] = slot;
+                    }
+                    counts[slot]++;
+                }
+            }
+
+            // Candidates that could still reach the threshold as {upper bound (float bits), slot}, so that
+            // sorting the longs sorts by bound (positive floats order like their bits)
+            int probedLists = lists.size() - scannedLists;
+            long[] candidates = new long[64];
+            int candidateCount = 0;
+            for (int u = 0; u < usedCount; u++) {
+                int slot = used[u];
+                float upperBound = 2.0f * (counts[slot] + probedLists) / (queryCount + trigramCounts[ids[slot]]);
+                if (upperBound >= MIN_SIMILARITY) {
+                    if (candidateCount == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                    }
+                    candidates[candidateCount++] = (long) Float.floatToIntBits(upperBound) << 32 | slot;
+                }
+            }
+            Arrays.sort(candidates, 0, candidateCount);
+
+            List<double[]> best = new ArrayList<>(); // {similarity, id}, most similar first, at most 'limit'
+            for (int c = candidateCount - 1; c >= 0; c--) {
+                float upperBound = Float.intBitsToFloat((int) (candidates[c] >>> 32));
+                if (best.size() == limit && upperBound <= best.get(limit - 1)[0]) {
+                    break; // Nobody left can beat what we have
+                }
+                int slot = (int) candidates[c];
+                int id = ids[slot];
+                int shared = counts[slot];
+                if (probedLists > 0) {
+                    // Cheaper to look for the common trigrams in the name than in their huge posting lists
+                    String padded = "  " + normalize(names[id]) + " ";
+                    for (int i = scannedLists; i < present.size(); i++) {
+                        if (padded.contains(present.get(i))) {
+                            shared++;
+                        }
+                    }
+                }
+                double similarity = 2.0 * shared / (queryCount + trigramCounts[id]);
+                if (similarity >= MIN_SIMILARITY && (best.size() < limit || similarity > best.get(best.size() - 1)[0])) {
+                    int at = 0;
+                    while (at < best.size() && best.get(at)[0] >= similarity) {
+                        at++;
+                    }
+                    best.add(at, new double[] {similarity, id});
+                    if (best.size() > limit) {
+                        best.remove(limit);
+                    }
+                }
+            }
+            for (double[] match : best) {
+                result.add(names[(int) match[1]]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationNameIndex[names=" + size() + ", complete=" + complete + "]";
+    }
+
+    // Lower case without diacritics, trimmed, inner whitespace, hyphens and underscores collapsed to one space
+    static String normalize(String name) {
+        String text = name;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                // Decompose ("ș" -> "s" + comma below) and drop the marks; a few letters don't decompose
+                text = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                        .replace("ß", "ss").replace("ł", "l").replace("Ł", "L").replace("ø", "o").replace("Ø", "O")
+                        .replace("đ", "d").replace("Đ", "D").replace("æ", "ae").replace("Æ", "AE").replace("ı", "i");
+                break;
+            }
+        }
+        StringBuilder key = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || c == '-' || c == '_') {
+                space = key.length() > 0;
+            } else {
+                if (space) {
+                    key.append(' ');
+                    space = false;
+                }
+                key.append(c);
+            }
+        }
+        return key.toString().toLowerCase(Locale.ROOT);
+    }
+
+    // The distinct trigrams of "  key ", so the start of a name weighs more than its end
+    private static Set<String> trigrams(String key) {
+        String padded = "  " + key + " ";
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+}
@@ -0,0 +1,125 @@
+package org.example;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms. Hot paths keep a reference to
+ * their metric in a static field, so recording is a lock-free {@link LongAdder} or histogram update
+ * with no map lookup. {@link #render()} produces the plain-text page served by {@link MetricsEndpoint}.
+ */
+public final class Metrics {
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    // Requests, timed from the moment the line was parsed until the response was queued
+    public static final LatencyHistogram GET_WEATHER = histogram("request_getWeather");
+    public static final LatencyHistogram GET_WEATHER_BATCH = histogram("request_getWeatherBatch");
+    public static final LatencyHistogram GET_NEAREST_WEATHER = histogram("request_getNearestWeather");
+    public static final LatencyHistogram GET_LOCATIONS_WITHIN = histogram("request_getLocationsWithin");
+    public static final LatencyHistogram GET_TEMPERATURE_RANKING = histogram("request_getTemperatureRanking");
+    public static final LatencyHistogram GET_LOCATIONS_BY_FORECAST = histogram("request_getLocationsByForecast");
+    public static final LatencyHistogram GET_FORECAST_AVERAGES = histogram("request_getForecastAverages");
+    public static final LatencyHistogram GET_HISTORY = histogram("request_getHistory");
+    public static final LatencyHistogram GET_HISTORY_SUMMARY = histogram("request_getHistorySummary");
+    public static final LatencyHistogram UPDATE_LOCATION = histogram("request_updateLocation");
+    public static final LatencyHistogram REGISTER = histogram("request_register");
+    public static final LatencyHistogram UPLOAD = histogram("request_upload");
+    public static final LongAdder ERRORS = counter("responses_error");
+    // Location names resolved through normalization, and unknown names answered with suggestions
+    public static final LongAdder LOCATIONS_NORMALIZED = counter("locations_normalized");
+    public static final LongAdder LOCATIONS_REJECTED = counter("locations_rejected");
+
+    // Database work, including the wait for a pooled connection where the caller needs one
+    public static final LatencyHistogram DB_ACQUIRE = histogram("db_acquire");
+    public static final LatencyHistogram DB_FIND_WEATHER = histogram("db_findWeather");
+    public static final LatencyHistogram DB_FIND_WEATHER_BATCH = histogram("db_findWeatherBatch");
+    public static final LatencyHistogram DB_WEATHER_BATCH = histogram("db_weatherBatch");
+    public static final LatencyHistogram DB_USER_FLUSH = histogram("db_userFlush");
+    // Embedded storage: appending (and forcing) one commit to the log, and writing a snapshot
+    public static final LatencyHistogram STORAGE_COMMIT = histogram("storage_commit");
+    public static final LatencyHistogram STORAGE_SNAPSHOT = histogram("storage_snapshot");
+    // History: observations recorded, and flushes that checkpointed or sealed partitions
+    public static final LongAdder HISTORY_OBSERVATIONS = counter("history_observations");
+    public static final LatencyHistogram HISTORY_FLUSH = histogram("history_flush");
+
+    // Connections and traffic, counted by the connection engines
+    public static final LongAdder CONNECTIONS_OPENED = counter("connections_opened");
+    public static final LongAdder CONNECTIONS_CLOSED = counter("connections_closed");
+    public static final LongAdder BYTES_IN = counter("bytes_in");
+    public static final LongAdder BYTES_OUT = counter("bytes_out");
+    // Admission control: connections refused or closed for timing out, requests over a user's rate
+    // and uploads refused because the upload queue was full; NIO connections that had to stop reading
+    // because their requests or responses piled up
+    public static final LongAdder CONNECTIONS_REJECTED = counter("connections_rejected");
+    public static final LongAdder CONNECTIONS_IDLE_TIMEOUTS = counter("connections_idle_timeouts");
+    public static final LongAdder CONNECTIONS_READ_TIMEOUTS = counter("connections_read_timeouts");
+    public static final LongAdder CONNECTIONS_WRITE_TIMEOUTS = counter("connections_write_timeouts");
+    public static final LongAdder REQUESTS_RATE_LIMITED = counter("requests_rate_limited");
+    public static final LongAdder UPLOADS_REJECTED = counter("uploads_rejected");
+    public static final LongAdder CONNECTIONS_READ_PAUSED = counter("connections_read_paused");
+
+    // Cluster: lookups forwarded to their owner (time and locations), upload rows sent to and received
+    // from other nodes, and forwards or updates that failed
+    public static final LatencyHistogram CLUSTER_FORWARD = histogram("cluster_forward");
+    public static final LongAdder CLUSTER_FORWARDED = counter("cluster_forwarded");
+    public static final LongAdder CLUSTER_UPDATES_SENT = counter("cluster_updates_sent");
+    public static final LongAdder CLUSTER_UPDATES_RECEIVED = counter("cluster_updates_received");
+    public static final LongAdder CLUSTER_ERRORS = counter("cluster_errors");
+
+    // Push subscriptions: fan-out time per committed chunk, messages and updates written, updates
+    // replaced by a newer one before they were sent, and writes postponed for a full connection
+    public static final LatencyHistogram PUSH_FANOUT = histogram("push_fanout");
+    public static final LongAdder PUSH_MESSAGES = counter("push_messages");
+    public static final LongAdder PUSH_UPDATES = counter("push_updates");
+    public static final LongAdder PUSH_COALESCED = counter("push_coalesced");
+    public static final LongAdder PUSH_DEFERRED = counter("push_deferred");
+
+    static {
+        gauge("connections_active", () -> CONNECTIONS_OPENED.sum() - CONNECTIONS_CLOSED.sum());
+    }
+
+    private Metrics() {
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    // Sampled when the page is rendered; registering the same name again replaces the supplier
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    // One "name value" line per metric, sorted by name; latencies are in microseconds
+    public static String render() {
+        Map<String, String> lines = new TreeMap<>();
+        counters.forEach((name, counter) -> lines.put(name + "_total", Long.toString(counter.sum())));
+        gauges.forEach((name, gauge) -> lines.put(name, Long.toString(gauge.getAsLong())));
+        histograms.forEach((name, histogram) -> {
+            lines.put(name + "_count", Long.toString(histogram.getCount()));
+            lines.put(name + "_mean_us", micros(histogram.getMeanNanos()));
+            lines.put(name + "_p50_us", micros(histogram.getPercentileNanos(50)));
+            lines.put(name + "_p90_us", micros(histogram.getPercentileNanos(90)));
+            lines.put(name + "_p99_us", micros(histogram.getPercentileNanos(99)));
+            lines.put(name + "_p999_us", micros(histogram.getPercentileNanos(99.9)));
+            lines.put(name + "_max_us", micros(histogram.getMaxNanos()));
+        });
+        StringBuilder page = new StringBuilder();
+        lines.forEach((name, value) -> page.append(name).append(' ').append(value).append('\n'));
+        return page.toString();
+    }
+
+    private static String micros(double nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0); // Always a dot, whatever the default locale
+    }
+}
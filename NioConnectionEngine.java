@@ -0,0 +1,381 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Event-loop engine: a single selector thread owns every socket and splits the incoming bytes into
+ * newline-delimited requests. Requests are handed to a small worker pool (database calls block), and
+ * each connection is drained by at most one worker at a time so its requests stay in order. The
+ * selector thread also checks the admission timeouts, skipping connections that have work queued.
+ *
+ * <p>A client that pipelines faster than its requests are answered, or that doesn't read its responses,
+ * would grow its queues without limit. Once too many requests or response bytes are queued for a
+ * connection the selector stops reading from it, and starts again when half of them are gone.
+ */
+public class NioConnectionEngine implements ConnectionEngine {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(NioConnectionEngine.class.getName());
+    private static final int MAX_LINE_BYTES = 1 << 20; // Requests are small JSON objects
+    private static final int MAX_GATHER = 64; // Queued response lines written with one system call
+
+    private final ExecutorService workers;
+    private final int maxQueuedRequests;
+    private final long maxPendingBytes;
+    private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER]; // Only used by the selector thread
+    private Selector selector;
+
+    public NioConnectionEngine(int workerThreads, int maxQueuedRequests, long maxPendingBytes) {
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.maxQueuedRequests = Math.max(1, maxQueuedRequests);
+        this.maxPendingBytes = Math.max(1, maxPendingBytes);
+    }
+
+    @Override
+    public void serve(int port, AdmissionControl admission, Function<ClientSession.Output, ClientSession> sessionFactory) throws IOException {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Server started on port " + port);
+
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024); // Shared, only the selector thread reads
+            long checkInterval = admission.getCheckIntervalMillis();
+            long nextCheck = System.currentTimeMillis() + checkInterval;
+            while (true) {
+                selector.select(checkInterval > 0 ? checkInterval : 1000);
+                registerPendingWrites();
+                long now = System.currentTimeMillis();
+                if (now >= nextCheck) {
+                    nextCheck = now + (checkInterval > 0 ? checkInterval : 1000);
+                    if (checkInterval > 0) {
+                        reapTimedOut(now);
+                    }
+                    admission.sweep();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(serverChannel, admission, sessionFactory);
+                        } else {
+                            NioConnection connection = (NioConnection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (key.attachment() instanceof NioConnection) {
+                            ((NioConnection) key.attachment()).endOfStream();
+                        }
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, AdmissionControl admission,
+                        Function<ClientSession.Output, ClientSession> sessionFactory) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        String address = String.valueOf(((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+        if (!admission.tryOpen(address)) {
+            // The error fits in the empty send buffer of a new socket, so one non-blocking write is enough
+            try (SocketChannel refused = channel) {
+                refused.configureBlocking(false);
+                refused.write(ByteBuffer.wrap((AdmissionControl.rejection(AdmissionControl.TOO_MANY_CONNECTIONS,
+                        "Too many connections, try again later") + "\n").getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                LOGGER.warning("Error while refusing a connection: " + e.getMessage());
+            }
+            return;
+        }
+        NioConnection connection = new NioConnection(channel, address, admission);
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true); // Responses are written in several small pieces; don't let Nagle hold them back
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connection.session = sessionFactory.apply(connection);
+        connection.submit(connection.session::start);
+    }
+
+    // Selector thread: rejects the connections that timed out while nothing of theirs was queued or running
+    private void reapTimedOut(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).reapIfTimedOut(now);
+            }
+        }
+    }
+
+    // Interest ops are only changed on the selector thread; workers queue the connection and wake it up
+    private void registerPendingWrites() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            if (!connection.key.isValid()) {
+                continue;
+            }
+            try {
+                connection.flush();
+                connection.updateReadInterest();
+            } catch (IOException e) {
+                connection.endOfStream();
+            }
+        }
+    }
+
+    private final class NioConnection implements ClientSession.Output {
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedTasks = new AtomicInteger(); // tasks.size() without walking the queue
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong outboundBytes = new AtomicLong(); // Queued and not completely written yet
+        private final AdmissionControl admission;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean closeRequested;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private long partialSince; // When the bytes of an unfinished line started arriving, 0 between lines (selector thread)
+        private boolean reaped; // Selector thread
+        private long reapedAt; // Selector thread
+        private volatile boolean readPaused; // OP_READ cleared for backpressure; only the selector thread sets it
+        private SelectionKey key;
+        private ClientSession session;
+
+        NioConnection(SocketChannel channel, String remoteAddress, AdmissionControl admission) {
+            this.channel = channel;
+            this.remoteAddress = remoteAddress;
+            this.admission = admission;
+        }
+
+        // Selector thread: the session answers the timeout on a worker, like any other request
+        void reapIfTimedOut(long now) {
+            if (reaped && closeRequested && now - reapedAt >= admission.getCheckIntervalMillis()) {
+                // The client stopped reading, so the error line can't be written; don't wait for it any longer
+                key.cancel();
+                closeQuietly();
+                return;
+            }
+            if (reaped || draining.get() || !tasks.isEmpty()) {
+                return;
+            }
+            // A paused connection isn't being read, so its unfinished line can't time out
+            String code = admission.timedOut(now, lastActivity, readPaused ? 0 : partialSince, session.isListening());
+            if (code != null) {
+                reaped = true;
+                reapedAt = now;
+                (AdmissionControl.IDLE_TIMEOUT.equals(code) ? Metrics.CONNECTIONS_IDLE_TIMEOUTS : Metrics.CONNECTIONS_READ_TIMEOUTS).increment();
+                submit(() -> session.reject(code, AdmissionControl.timeoutMessage(code)));
+            }
+        }
+
+        // Selector thread: splits what arrived into lines and queues them for the session
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                endOfStream();
+                return;
+            }
+            Metrics.BYTES_IN.add(read);
+            if (reaped) {
+                return; // Closing, whatever else arrives is dropped
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    String line = partialLine.toString(StandardCharsets.UTF_8.name());
+                    partialLine.reset();
+                    partialSince = 0;
+                    if (line.endsWith("\r")) {
+                        line = line.substring(0, line.length() - 1);
+                    }
+                    String request = line;
+                    submit(() -> session.handleLine(request));
+                } else if (partialLine.size() >= MAX_LINE_BYTES) {
+                    LOGGER.warning("Request line too long from " + remoteAddress + ", closing connection.");
+                    endOfStream();
+                    return;
+                } else {
+                    if (partialSince == 0) {
+                        partialSince = System.currentTimeMillis();
+                    }
+                    partialLine.write(b);
+                }
+            }
+            updateReadInterest();
+        }
+
+        // Selector thread: stops reading while the connection has too much queued, and resumes once
+        // both the requests and the response bytes are down to half their limit
+        void updateReadInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            if (!readPaused) {
+                if (queuedTasks.get() >= maxQueuedRequests || outboundBytes.get() >= maxPendingBytes) {
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    Metrics.CONNECTIONS_READ_PAUSED.increment();
+                }
+            } else if (queuedTasks.get() <= maxQueuedRequests / 2 && outboundBytes.get() <= maxPendingBytes / 2) {
+                readPaused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                if (partialSince != 0) {
+                    partialSince = System.currentTimeMillis(); // The rest of the line couldn't arrive while paused
+                }
+            }
+        }
+
+        void endOfStream() {
+            key.cancel();
+            closeQuietly();
+            submit(session::handleEndOfStream);
+        }
+
+        void submit(Runnable task) {
+            queuedTasks.incrementAndGet();
+            tasks.add(task);
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        // Worker thread: runs queued requests one after another, never two at once for the same session
+        private void drain() {
+            do {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    if (session.isClosed()) {
+                        tasks.clear();
+                        queuedTasks.set(0);
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.severe("Exception occurred: " + e.getMessage());
+                    }
+                    if (queuedTasks.decrementAndGet() == maxQueuedRequests / 2 && readPaused) {
+                        pendingWrites.add(this); // The selector thread decides whether to read again
+                        selector.wakeup();
+                    }
+                }
+                lastActivity = System.currentTimeMillis();
+                draining.set(false);
+            } while (!tasks.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+        // Selector thread: writes as much as the socket accepts and waits for OP_WRITE for the rest.
+        // Pipelined responses pile up in the queue, so they go out with gathering writes.
+        void flush() throws IOException {
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : outbound) {
+                    gather[count++] = buffer;
+                    if (count == MAX_GATHER) {
+                        break;
+                    }
+                }
+                channel.write(gather, 0, count);
+                for (int i = 0; i < count; i++) {
+                    if (gather[i].hasRemaining()) {
+                        Arrays.fill(gather, null);
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outboundBytes.addAndGet(-gather[i].limit());
+                    outbound.poll();
+                }
+                Arrays.fill(gather, 0, count, null);
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            updateReadInterest();
+            if (closeRequested) {
+                key.cancel();
+                closeQuietly();
+            }
+        }
+
+        @Override
+        public void send(String line) {
+            send((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void send(byte[] line) {
+            outboundBytes.addAndGet(line.length);
+            outbound.add(ByteBuffer.wrap(line)); // Shares the array, the selector thread only reads it
+            Metrics.BYTES_OUT.add(line.length);
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        @Override
+        public void close() {
+            closeRequested = true; // Closed by the selector once everything queued has been written
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        @Override
+        public long pendingBytes() {
+            return outboundBytes.get();
+        }
+
+        @Override
+        public boolean sendBlocks() {
+            return false; // Queued for the selector thread
+        }
+
+        @Override
+        public String remoteAddress() {
+            return remoteAddress;
+        }
+
+        private void closeQuietly() {
+            if (released.compareAndSet(false, true)) {
+                admission.release(remoteAddress);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.severe("Error while closing the connection: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package org.example;
+
+import com.google.gson.stream.JsonReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Multi-core variant of {@link WeatherIngest} for large files. The file is memory-mapped and cut into
+ * chunks of whole records, the chunks are parsed on a fork/join pool, and the parsed records go to a
+ * set of writer threads through bounded queues. Records are routed to writers by location, so the
+ * same location is always written by the same transaction stream. Chunks are parsed in any order
+ * but handed to the writers in file order, so each writer sees its locations' records in the order
+ * of the file and a location that appears twice is stored exactly as {@link WeatherIngest} stores
+ * it (see {@link WeatherWriter}: the first record in a plain upload, the last in a delta upload).
+ * Parsers and writers run at the minimum priority of the {@link UploadScheduler} thread that starts
+ * the upload.
+ */
+public class ParallelWeatherIngest {
+    private static final long MAX_MAPPING_BYTES = Integer.MAX_VALUE;
+    private static final List<WeatherRecord> END_OF_INPUT = new ArrayList<>();
+
+    private final WeatherStorage storage;
+    private final int batchSize;
+    private final int chunkSize;
+    private final WeatherUpdateListener listener;
+    private final ForkJoinPool parsers;
+    private final int writerCount;
+    private final long chunkBytes;
+    private final int queueCapacity;
+
+    public ParallelWeatherIngest(WeatherStorage storage, int batchSize, int chunkSize, WeatherUpdateListener listener,
+                                 int parserThreads, int writerCount, long chunkBytes) {
+        this.storage = storage;
+        this.batchSize = batchSize;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+        this.parsers = new ForkJoinPool(parserThreads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, null, false);
+        this.writerCount = writerCount;
+        this.chunkBytes = chunkBytes;
+        this.queueCapacity = Math.max(4, parserThreads * 2); // In batches; bounds the records held in memory
+    }
+
+    public WeatherIngest.Result load(Path path, boolean delta, WeatherIngest.ProgressListener progress) throws IOException, SQLException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long totalBytes = channel.size();
+            List<long[]> chunks = findChunks(channel, chunkBytes);
+
+            Upload upload = new Upload(channel, delta);
+            Thread[] writers = new Thread[writerCount];
+            for (int i = 0; i < writerCount; i++) {
+                BlockingQueue<List<WeatherRecord>> queue = upload.queues.get(i);
+                writers[i] = UploadScheduler.newThread(() -> upload.runWriter(queue), "ingest-writer-" + i);
+                writers[i].start();
+            }
+
+            ForkJoinTask<Void> parsing = parsers.submit(new ParseTask(upload, chunks, parsers.getParallelism()));
+            try {
+                // Report progress from the upload's scheduler thread while parsers and writers do the work
+                while (!parsing.isDone()) {
+                    try {
+                        parsing.get(1, TimeUnit.SECONDS);
+                    } catch (TimeoutException e) {
+                        progress.onProgress(upload.result(totalBytes, start));
+                    } catch (ExecutionException e) {
+                        upload.fail(e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        upload.fail(e);
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                upload.fail(e); // The admin went away; parsers stop at their next batch
+                throw e;
+            } finally {
+                parsing.quietlyJoin();
+                for (BlockingQueue<List<WeatherRecord>> queue : upload.queues) {
+                    upload.put(queue, END_OF_INPUT);
+                }
+                for (Thread writer : writers) {
+                    joinUninterruptibly(writer);
+                }
+            }
+
+            Throwable failure = upload.failure.get();
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof SQLException) {
+                throw (SQLException) failure;
+            } else if (failure != null) {
+                throw new IOException("Parallel upload failed: " + failure.getMessage(), failure);
+            }
+            return upload.result(totalBytes, start);
+        }
+    }
+
+    /**
+     * Single sequential pass over the bytes that finds where top-level records start and end and
+     * groups them into chunks of roughly {@code chunkBytes}. It only tracks nesting and strings, so
+     * it runs far faster than the JSON parsing that the chunks are split up for.
+     * Returns {start, end} file offsets; each chunk starts at a '{' and ends after a '}'.
+     */
+    static List<long[]> findChunks(FileChannel channel, long chunkBytes) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long size = channel.size();
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        boolean arrayClosed = false;
+        long chunkStart = -1;
+        long recordEnd = -1;
+
+        for (long windowStart = 0; windowStart < size; windowStart += MAX_MAPPING_BYTES) {
+            long windowSize = Math.min(MAX_MAPPING_BYTES, size - windowStart);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+            for (int i = 0; i < windowSize; i++) {
+                byte b = window.get(i);
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                    continue;
+                }
+                long offset = windowStart + i;
+                switch (b) {
+                    case '"':
+                        inString = true;
+                        break;
+                    case '[':
+                    case '{':
+                        if (depth == 0 && b != '[') {
+                            throw new IOException("Expected a JSON array at offset " + offset);
+                        }
+                        if (depth == 1 && chunkStart < 0) {
+                            chunkStart = offset;
+                        }
+                        depth++;
+                        break;
+                    case ']':
+                    case '}':
+                        depth--;
+                        if (depth == 1) {
+                            recordEnd = offset + 1;
+                            if (chunkStart >= 0 && recordEnd - chunkStart >= chunkBytes) {
+                                chunks.add(new long[]{chunkStart, recordEnd});
+                                chunkStart = -1;
+                            }
+                        } else if (depth == 0) {
+                            arrayClosed = true;
+                        } else if (depth < 0) {
+                            throw new IOException("Unbalanced ']' or '}' at offset " + offset);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        if (!arrayClosed || depth != 0) {
+            throw new IOException("Unexpected end of file: the top-level array is not closed");
+        }
+        if (chunkStart >= 0) {
+            chunks.add(new long[]{chunkStart, recordEnd});
+        }
+        return chunks;
+    }
+
+    /** State shared by the parsers, the writers and the reporting thread of one upload. */
+    private final class Upload {
+        final FileChannel channel;
+        final boolean delta;
+        final List<BlockingQueue<List<WeatherRecord>>> queues = new ArrayList<>();
+        final AtomicInteger nextToParse = new AtomicInteger();
+        private final Object turn = new Object();
+        private int nextToHandOver; // The chunk whose records go to the writers next; guarded by turn
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicLong recordsParsed = new AtomicLong();
+        final AtomicLong bytesParsed = new AtomicLong();
+        final AtomicLong recordsWritten = new AtomicLong();
+        final AtomicLong recordsInserted = new AtomicLong();
+        final AtomicLong recordsUpdated = new AtomicLong();
+        final AtomicLong recordsUnchanged = new AtomicLong();
+
+        Upload(FileChannel channel, boolean delta) {
+            this.channel = channel;
+            this.delta = delta;
+            for (int i = 0; i < writerCount; i++) {
+                queues.add(new ArrayBlockingQueue<>(queueCapacity));
+            }
+        }
+
+        // One parser: takes the chunks in file order, so the earliest chunk not handed over yet is always being parsed
+        // and a parser never waits for a chunk that no one works on. Each parser holds at most one parsed chunk.
+        void parseChunks(List<long[]> chunks) {
+            for (int i = nextToParse.getAndIncrement(); i < chunks.size(); i = nextToParse.getAndIncrement()) {
+                try {
+                    parseChunk(chunks.get(i), i);
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        // Parses the chunk, then waits for the chunks before it to be handed to the writers and hands over its own
+        private void parseChunk(long[] chunk, int chunkIndex) throws IOException {
+            List<List<WeatherRecord>> perWriter = null;
+            try {
+                if (failure.get() == null) {
+                    perWriter = parse(chunk);
+                }
+            } finally {
+                try {
+                    awaitTurn(chunkIndex);
+                    if (perWriter != null && failure.get() == null) {
+                        handOver(perWriter);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(e);
+                } finally {
+                    synchronized (turn) {
+                        nextToHandOver = Math.max(nextToHandOver, chunkIndex + 1); // Never back: a failed wait may have moved it on
+                        turn.notifyAll();
+                    }
+                }
+            }
+            if (perWriter != null) {
+                bytesParsed.addAndGet(chunk[1] - chunk[0]);
+            }
+        }
+
+        // The chunk's records by writer, in file order; held until it is the chunk's turn
+        private List<List<WeatherRecord>> parse(long[] chunk) throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+            // The chunk is "{...}, {...}": wrapping it in brackets makes it a valid array on its own
+            InputStream in = new SequenceInputStream(new ByteArrayInputStream(new byte[]{'['}),
+                    new SequenceInputStream(new ByteBufferInputStream(buffer), new ByteArrayInputStream(new byte[]{']'})));
+            List<List<WeatherRecord>> perWriter = new ArrayList<>(writerCount);
+            for (int i = 0; i < writerCount; i++) {
+                perWriter.add(new ArrayList<>());
+            }
+            try (JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    WeatherRecord record = WeatherJsonReader.readRecord(reader, recordsParsed.incrementAndGet());
+                    perWriter.get(Math.floorMod(record.getLocation().hashCode(), writerCount)).add(record);
+                }
+                reader.endArray();
+            }
+            return perWriter;
+        }
+
+        private void awaitTurn(int chunkIndex) throws InterruptedException {
+            synchronized (turn) {
+                while (nextToHandOver < chunkIndex) {
+                    turn.wait();
+                }
+            }
+        }
+
+        private void handOver(List<List<WeatherRecord>> perWriter) {
+            for (int i = 0; i < writerCount; i++) {
+                List<WeatherRecord> records = perWriter.get(i);
+                for (int from = 0; from < records.size(); from += batchSize) {
+                    put(queues.get(i), new ArrayList<>(records.subList(from, Math.min(records.size(), from + batchSize))));
+                }
+            }
+        }
+
+        // Each writer has its own transaction (a pooled connection with PostgreSQL) and commits every chunkSize records, like WeatherIngest
+        void runWriter(BlockingQueue<List<WeatherRecord>> queue) {
+            try (WeatherWriter writer = new WeatherWriter(storage, batchSize, chunkSize, delta, listener)) {
+                long[] reported = new long[3];
+                while (true) {
+                    List<WeatherRecord> batch = queue.take();
+                    if (batch == END_OF_INPUT) {
+                        break;
+                    }
+                    if (failure.get() != null) {
+                        continue; // Keep draining so blocked parsers can finish
+                    }
+                    for (WeatherRecord record : batch) {
+                        writer.write(record);
+                    }
+                    recordsWritten.addAndGet(batch.size());
+                    report(writer, reported);
+                }
+                if (failure.get() == null) {
+                    writer.commit();
+                    report(writer, reported);
+                }
+            } catch (SQLException | RuntimeException e) {
+                fail(e);
+                drain(queue);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+
+        // Adds what the writer did since the last call to the upload-wide counters
+        private void report(WeatherWriter writer, long[] reported) {
+            recordsInserted.addAndGet(writer.getRecordsInserted() - reported[0]);
+            recordsUpdated.addAndGet(writer.getRecordsUpdated() - reported[1]);
+            recordsUnchanged.addAndGet(writer.getRecordsUnchanged() - reported[2]);
+            reported[0] = writer.getRecordsInserted();
+            reported[1] = writer.getRecordsUpdated();
+            reported[2] = writer.getRecordsUnchanged();
+        }
+
+        void put(BlockingQueue<List<WeatherRecord>> queue, List<WeatherRecord> batch) {
+            try {
+                while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    if (failure.get() != null && batch != END_OF_INPUT) {
+                        return; // Writers are gone or discarding, drop the batch
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+
+        private void drain(BlockingQueue<List<WeatherRecord>> queue) {
+            try {
+                while (queue.take() != END_OF_INPUT) {
+                    // Discard until the coordinator signals the end
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void fail(Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+
+        WeatherIngest.Result result(long totalBytes, long start) {
+            return new WeatherIngest.Result(recordsWritten.get(), recordsInserted.get(), recordsUpdated.get(), recordsUnchanged.get(),
+                    bytesParsed.get(), totalBytes, System.nanoTime() - start);
+        }
+    }
+
+    /** Splits itself in halves until each task is one parser, which then parses chunks until none are left. */
+    private static final class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Upload upload;
+        private final List<long[]> chunks;
+        private final int parsers;
+
+        ParseTask(Upload upload, List<long[]> chunks, int parsers) {
+            this.upload = upload;
+            this.chunks = chunks;
+            this.parsers = parsers;
+        }
+
+        @Override
+        protected void compute() {
+            if (parsers > 1) {
+                invokeAll(new ParseTask(upload, chunks, parsers / 2), new ParseTask(upload, chunks, parsers - parsers / 2));
+            } else {
+                upload.parseChunks(chunks);
+            }
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.example;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Storage in PostgreSQL, through the connection pool: the weather_data and users tables.
+ */
+public class PostgresStorage implements WeatherStorage {
+    private static final String FIND_WEATHER_QUERY = "SELECT latitude, longitude, current_weather, current_temperature, forecast FROM weather_data WHERE location = ?";
+    private static final String FIND_WEATHER_BATCH_QUERY = "SELECT location, latitude, longitude, current_weather, current_temperature, forecast " +
+            "FROM weather_data WHERE location = ANY(?)";
+    private static final String ALL_WEATHER_QUERY = "SELECT location, latitude, longitude, current_weather, current_temperature, forecast FROM weather_data";
+    private static final String INSERT_QUERY = "INSERT INTO weather_data (location, latitude, longitude, current_weather, current_temperature, forecast, content_hash) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT (location) DO NOTHING";
+    private static final String UPSERT_QUERY = "INSERT INTO weather_data (location, latitude, longitude, current_weather, current_temperature, forecast, content_hash) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT (location) DO UPDATE SET latitude = EXCLUDED.latitude, longitude = EXCLUDED.longitude, current_weather = EXCLUDED.current_weather, " +
+            "current_temperature = EXCLUDED.current_temperature, forecast = EXCLUDED.forecast, content_hash = EXCLUDED.content_hash " +
+            "WHERE weather_data.content_hash IS DISTINCT FROM EXCLUDED.content_hash";
+    private static final String STORED_HASHES_QUERY = "SELECT location, content_hash FROM weather_data WHERE location = ANY(?)";
+    private static final String REGISTER_QUERY = "INSERT INTO users (username, role) VALUES (?, ?) ON CONFLICT (username) DO NOTHING";
+    private static final String UPDATE_LOCATION_QUERY = "UPDATE users SET current_location = ? WHERE username = ?";
+
+    private final ConnectionPool pool;
+
+    public PostgresStorage(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    // Databases created before content hashing existed get the column on first start
+    public void migrate() throws SQLException {
+        pool.withConnection(db -> {
+            try (Statement stmt = db.getConnection().createStatement()) {
+                stmt.execute("ALTER TABLE weather_data ADD COLUMN IF NOT EXISTS content_hash BIGINT");
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public WeatherRecord findWeather(String location) throws SQLException {
+        return pool.withConnection(db -> {
+            PreparedStatement stmt = db.prepare(FIND_WEATHER_QUERY);
+            stmt.setString(1, location);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return new WeatherRecord(location, rs.getDouble("latitude"), rs.getDouble("longitude"),
+                        rs.getString("current_weather"), rs.getDouble("current_temperature"), rs.getString("forecast"));
+            }
+        });
+    }
+
+    // One query for all of them
+    @Override
+    public Map<String, WeatherRecord> findWeather(Collection<String> locations) throws SQLException {
+        return pool.withConnection(db -> {
+            Map<String, WeatherRecord> found = new HashMap<>();
+            PreparedStatement stmt = db.prepare(FIND_WEATHER_BATCH_QUERY);
+            stmt.setArray(1, db.getConnection().createArrayOf("varchar", locations.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    WeatherRecord record = readRecord(rs);
+                    found.put(record.getLocation(), record);
+                }
+            }
+            return found;
+        });
+    }
+
+    @Override
+    public void forEachWeather(Consumer<WeatherRecord> action) throws SQLException {
+        pool.withConnection(db -> {
+            db.getConnection().setAutoCommit(false); // PostgreSQL only streams with a fetch size inside a transaction
+            try {
+                PreparedStatement stmt = db.prepare(ALL_WEATHER_QUERY);
+                stmt.setFetchSize(10_000);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        action.accept(readRecord(rs));
+                    }
+                }
+                db.getConnection().commit();
+            } finally {
+                db.getConnection().setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    private static WeatherRecord readRecord(ResultSet rs) throws SQLException {
+        return new WeatherRecord(rs.getString("location"), rs.getDouble("latitude"), rs.getDouble("longitude"),
+                rs.getString("current_weather"), rs.getDouble("current_temperature"), rs.getString("forecast"));
+    }
+
+    @Override
+    public Transaction beginWrite() throws SQLException {
+        return new PostgresTransaction(pool.acquire());
+    }
+
+    // One pooled connection per writer; uploads get at most half of the pool, the rest is kept for lookups
+    @Override
+    public int getMaxWriters() {
+        return Math.max(1, pool.getMaxSize() / 2);
+    }
+
+    @Override
+    public void forEachUsername(Consumer<String> action) throws SQLException {
+        pool.withConnection(db -> {
+            PreparedStatement stmt = db.prepare("SELECT username FROM users");
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    action.accept(rs.getString("username"));
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void writeUsers(Map<String, String> registrations, Map<String, String> locations) throws SQLException {
+        pool.withConnection(db -> {
+            db.getConnection().setAutoCommit(false);
+            // Registrations first, so a new user's location update finds the row
+            if (!registrations.isEmpty()) {
+                PreparedStatement stmt = db.prepare(REGISTER_QUERY);
+                for (Map.Entry<String, String> entry : registrations.entrySet()) {
+                    stmt.setString(1, entry.getKey());
+                    stmt.setString(2, entry.getValue());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            if (!locations.isEmpty()) {
+                PreparedStatement stmt = db.prepare(UPDATE_LOCATION_QUERY);
+                for (Map.Entry<String, String> entry : locations.entrySet()) {
+                    stmt.setString(1, entry.getValue());
+                    stmt.setString(2, entry.getKey());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+            db.getConnection().commit();
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return pool.toString();
+    }
+
+    // A pooled connection in a transaction, held until the writer closes it
+    private static final class PostgresTransaction implements Transaction {
+        private final ConnectionPool.PooledConnection db;
+
+        PostgresTransaction(ConnectionPool.PooledConnection db) throws SQLException {
+            this.db = db;
+            try {
+                db.getConnection().setAutoCommit(false);
+            } catch (SQLException e) {
+                db.failed(e);
+                db.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean[] insertNew(List<WeatherRecord> records) throws SQLException {
+            try {
+                PreparedStatement stmt = db.prepare(INSERT_QUERY);
+                for (WeatherRecord record : records) {
+                    addToBatch(stmt, record);
+                }
+                int[] counts = stmt.executeBatch();
+                boolean[] inserted = new boolean[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    // SUCCESS_NO_INFO shows up with reWriteBatchedInserts=true; treat it as a change to be safe
+                    inserted[i] = counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO;
+                }
+                return inserted;
+            } catch (SQLException e) {
+                throw db.failed(e);
+            }
+        }
+
+        @Override
+        public Map<String, Long> storedHashes(Collection<String> locations) throws SQLException {
+            Map<String, Long> storedHashes = new HashMap<>();
+            try {
+                PreparedStatement stmt = db.prepare(STORED_HASHES_QUERY);
+                stmt.setArray(1, db.getConnection().createArrayOf("varchar", locations.toArray()));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        long hash = rs.getLong("content_hash");
+                        storedHashes.put(rs.getString("location"), rs.wasNull() ? null : hash);
+                    }
+                }
+            } catch (SQLException e) {
+                throw db.failed(e);
+            }
+            return storedHashes;
+        }
+
+        @Override
+        public void upsert(List<WeatherRecord> records) throws SQLException {
+            try {
+                PreparedStatement stmt = db.prepare(UPSERT_QUERY);
+                for (WeatherRecord record : records) {
+                    addToBatch(stmt, record);
+                }
+                stmt.executeBatch();
+            } catch (SQLException e) {
+                throw db.failed(e);
+            }
+        }
+
+        private void addToBatch(PreparedStatement stmt, WeatherRecord record) throws SQLException {
+            stmt.setString(1, record.getLocation());
+            stmt.setDouble(2, record.getLatitude());
+            stmt.setDouble(3, record.getLongitude());
+            stmt.setString(4, record.getCurrentWeather());
+            stmt.setDouble(5, record.getCurrentTemperature());
+            stmt.setObject(6, record.getForecastJson(), java.sql.Types.OTHER); // Insert JSON as type "OTHER" for PostgreSQL
+            stmt.setLong(7, record.getContentHash());
+            stmt.addBatch();
+        }
+
+        @Override
+        public Set<String> commit() throws SQLException {
+            try {
+                db.getConnection().commit();
+            } catch (SQLException e) {
+                throw db.failed(e);
+            }
+            return Collections.emptySet();
+        }
+
+        // Uncommitted work is rolled back when the connection goes back to the pool
+        @Override
+        public void close() {
+            db.close();
+        }
+    }
+}
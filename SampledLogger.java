@@ -0,0 +1,55 @@
+package org.example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Logs roughly one in {@code sampleRate} messages, off the calling thread. Messages are built only
+ * when sampled, handed to a bounded queue and written by a single daemon thread; when that thread
+ * falls behind, further messages are dropped and counted instead of slowing the request path down.
+ */
+public class SampledLogger {
+    private final java.util.logging.Logger logger;
+    private final int sampleRate;
+    private final BlockingQueue<String> queue;
+    private final LongAdder dropped = new LongAdder();
+
+    public SampledLogger(java.util.logging.Logger logger, int sampleRate, int queueCapacity) {
+        this.logger = logger;
+        this.sampleRate = sampleRate;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        if (sampleRate > 0) {
+            Thread writer = new Thread(this::writeLoop, "sampled-log-" + logger.getName());
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    // A sample rate of 0 disables the log, 1 logs every message
+    public void info(Supplier<String> message) {
+        if (sampleRate <= 0 || (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0)) {
+            return;
+        }
+        if (!queue.offer(message.get())) {
+            dropped.increment();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                String message = queue.take();
+                long droppedSoFar = dropped.sumThenReset();
+                if (droppedSoFar > 0) {
+                    logger.logp(java.util.logging.Level.INFO, logger.getName(), null, "(" + droppedSoFar + " sampled messages dropped)");
+                }
+                logger.logp(java.util.logging.Level.INFO, logger.getName(), null, message); // Attributed to the owning class
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,45 +1,302 @@
 package org.example;
 
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.io.IOException;
-import java.sql.Connection;
+import java.nio.file.Paths;
 import java.sql.SQLException;
-import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
-    private Connection connection;
+    private ConnectionPool pool; // Only with PostgreSQL storage
+    private WeatherStorage storage;
+    private WeatherCache weatherCache;
+    private WeatherIngest weatherIngest;
+    private UserWriteBehind userWrites;
+    private SubscriptionIndex subscriptions;
+    private SpatialIndex spatialIndex;
+    private LocationNameIndex nameIndex;
+    private WeatherColumns weatherColumns;
+    private WeatherHistory history; // Null when disabled or unavailable
+    private AdmissionControl admission;
+    private UploadScheduler uploads;
+    private Cluster cluster; // Null unless -Dcluster.nodes is set
     private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(Server.class.getName());
 
-    public void start() {
-        final int PORT = 6543;
-        connectToDatabase();
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started on port " + PORT);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new ClientThread(clientSocket, connection).start();
-            }
+    public void start(ConnectionEngine engine) {
+        final int PORT = Integer.getInteger("server.port", 6543);
+        createStorage();
+        weatherCache = new WeatherCache(Integer.getInteger("cache.maxEntries", 100_000),
+                Long.getLong("cache.ttlSeconds", 300), Long.getLong("cache.negativeTtlSeconds", 30));
+        subscriptions = new SubscriptionIndex(Integer.getInteger("push.maxLocations", 100),
+                Long.getLong("push.maxPendingBytes", 1L << 20), Long.getLong("push.retryMs", 100),
+                Integer.getInteger("push.writerThreads", 32));
+        createLocationIndexes();
+        createCluster(PORT);
+        createHistory();
+        createAdmissionControl();
+        createIngest();
+        createUserWriteBehind();
+        startStatsReporter();
+        startMetricsEndpoint();
+        try {
+            engine.serve(PORT, admission, output -> new ClientSession(output, storage, weatherCache, weatherIngest, userWrites, subscriptions, spatialIndex, nameIndex, weatherColumns, history, admission, cluster));
         } catch (IOException e) {
             LOGGER.severe("IOException occurred: " + e.getMessage());
         }
     }
 
+    // -Dstorage=postgres (default) or embedded, which keeps everything under -Dstorage.dir and needs no database server
+    private void createStorage() {
+        String engine = System.getProperty("storage", "postgres");
+        switch (engine) {
+            case "postgres":
+                connectToDatabase();
+                break;
+            case "embedded":
+                try {
+                    storage = new EmbeddedStorage(Paths.get(System.getProperty("storage.dir", "weather-data")),
+                            Boolean.parseBoolean(System.getProperty("storage.fsync", "true")),
+                            Long.getLong("storage.snapshotIntervalSeconds", 300), Long.getLong("storage.snapshotLogBytes", 256L << 20));
+                } catch (SQLException e) {
+                    LOGGER.severe("SQLException occurred: " + e.getMessage());
+                    throw new RuntimeException("Failed to open the embedded storage.");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown storage: " + engine + " (expected postgres or embedded)");
+        }
+    }
+
     private void connectToDatabase() {
+        String url = System.getProperty("db.url", "jdbc:postgresql://localhost:5432/weather_db");
+        String user = System.getProperty("db.user", "postgres");
+        String password = System.getProperty("db.password", "1q2w3e");
+        int poolSize = Integer.getInteger("db.pool.size", Runtime.getRuntime().availableProcessors() * 2);
+        long acquireTimeoutMillis = Long.getLong("db.pool.timeoutMs", 5000);
+        int statementCacheSize = Integer.getInteger("db.pool.statementCache", 32);
+        pool = new ConnectionPool(url, user, password, poolSize, acquireTimeoutMillis, statementCacheSize);
+        PostgresStorage postgres = new PostgresStorage(pool);
+
+        // Use one connection up front so a bad configuration still fails at startup
         try {
-            String url = "jdbc:postgresql://localhost:5432/weather_db";
-            String user = "postgres";
-            String password = "1q2w3e";
-            connection = DriverManager.getConnection(url, user, password);
+            postgres.migrate();
             System.out.println("Connected to the database successfully.");
+            storage = postgres;
         } catch (SQLException e) {
-            LOGGER.severe("IOException occurred: " + e.getMessage());
+            LOGGER.severe("SQLException occurred: " + e.getMessage());
             throw new RuntimeException("Failed to connect to the database.");
         }
     }
 
+    private void createIngest() {
+        int batchSize = Integer.getInteger("ingest.batchSize", 500);
+        int chunkSize = Integer.getInteger("ingest.chunkSize", 10_000);
+        // Applied here, then sent to the other nodes of the cluster, which apply them the same way
+        WeatherUpdateListener onUpdate = new WeatherUpdateListener() {
+            @Override
+            public void onWeatherUpdated(List<WeatherRecord> records) {
+                applyUpdate(records);
+                if (cluster != null) {
+                    cluster.broadcast(records);
+                }
+            }
+
+            @Override
+            public void onWeatherObserved(List<WeatherRecord> records, long uploadedAt) {
+                if (history != null) {
+                    history.record(records, uploadedAt);
+                    if (cluster != null) {
+                        cluster.broadcastObserved(records, uploadedAt);
+                    }
+                }
+            }
+        };
+
+        // Parallel uploads: no more writers than cores, and the uploads running at once together no more than
+        // the storage allows (half of the pooled connections, so lookups always find some)
+        int cores = Runtime.getRuntime().availableProcessors();
+        int writers = Math.max(1, Math.min(Integer.getInteger("ingest.writers", cores), storage.getMaxWriters() / uploads.getMaxConcurrent()));
+        ParallelWeatherIngest parallelIngest = new ParallelWeatherIngest(storage, batchSize, chunkSize, onUpdate,
+                Integer.getInteger("ingest.parserThreads", cores), writers, Long.getLong("ingest.parallelChunkBytes", 8L << 20));
+        weatherIngest = new WeatherIngest(storage, batchSize, chunkSize, onUpdate,
+                parallelIngest, Long.getLong("ingest.parallelThresholdBytes", 64L << 20), uploads);
+    }
+
+    // Committed rows leave the cache first, so subscribers that react to a push read the new data
+    private void applyUpdate(List<WeatherRecord> records) {
+        records.forEach(record -> weatherCache.invalidate(record.getLocation()));
+        nameIndex.onWeatherUpdated(records);
+        spatialIndex.onWeatherUpdated(records);
+        weatherColumns.onWeatherUpdated(records);
+        subscriptions.onWeatherUpdated(records);
+    }
+
+    // -Dcluster.nodes=host:port,... (every node, this one included, in any order but the same on all of them)
+    // splits the locations between the nodes; this node is -Dcluster.self, by default localhost:<server.port>
+    private void createCluster(int port) {
+        String nodes = System.getProperty("cluster.nodes");
+        if (nodes == null || nodes.trim().isEmpty()) {
+            return;
+        }
+        if (pool == null) {
+            LOGGER.warning("Cluster nodes must share one PostgreSQL database; with embedded storage each node only sees its own uploads.");
+        }
+        List<String> members = new ArrayList<>();
+        Arrays.stream(nodes.split(",")).map(String::trim).filter(node -> !node.isEmpty()).forEach(members::add);
+        try {
+            cluster = new Cluster(System.getProperty("cluster.self", "localhost:" + port), members, System.getProperty("cluster.secret"),
+                    Integer.getInteger("cluster.virtualNodes", 128), Integer.getInteger("cluster.connections", 2),
+                    Long.getLong("cluster.timeoutMs", 2000), new WeatherUpdateListener() {
+                        @Override
+                        public void onWeatherUpdated(List<WeatherRecord> records) {
+                            applyUpdate(records);
+                        }
+
+                        @Override
+                        public void onWeatherObserved(List<WeatherRecord> records, long uploadedAt) {
+                            if (history != null) {
+                                history.record(records, uploadedAt);
+                            }
+                        }
+                    });
+        } catch (IOException e) {
+            LOGGER.severe("IOException occurred: " + e.getMessage());
+            throw new RuntimeException("Failed to set up the cluster.");
+        }
+        System.out.println("Cluster of " + members.size() + " nodes, this node is " + cluster.getSelf() + ".");
+    }
+
+    // Connection limits, timeouts and per-user request rates (0 turns a limit off), and the upload queue
+    private void createAdmissionControl() {
+        admission = new AdmissionControl(Integer.getInteger("connections.max", 10_000), Integer.getInteger("connections.maxPerAddress", 0),
+                TimeUnit.SECONDS.toMillis(Long.getLong("connections.idleTimeoutSeconds", 300)),
+                TimeUnit.SECONDS.toMillis(Long.getLong("connections.readTimeoutSeconds", 30)),
+                Double.parseDouble(System.getProperty("users.requestsPerSecond", "0")), Integer.getInteger("users.requestBurst", 20),
+                System.getProperty("users.serviceSecret"));
+        uploads = new UploadScheduler(Integer.getInteger("ingest.maxConcurrent", 1), Integer.getInteger("ingest.maxQueued", 4));
+    }
+
+    // Every stored location, for name resolution, nearest/radius queries and analytics; uploads keep them current
+    private void createLocationIndexes() {
+        spatialIndex = new SpatialIndex();
+        nameIndex = new LocationNameIndex();
+        weatherColumns = new WeatherColumns();
+        long start = System.nanoTime();
+        try {
+            List<WeatherRecord> locations = readStoredWeather();
+            spatialIndex.update(locations);
+            nameIndex.load(locations);
+            System.out.println("Indexed " + locations.size() + " locations in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        } catch (SQLException e) {
+            LOGGER.warning("Could not load the location indexes, unknown names will be looked up in the database: " + e.getMessage());
+        }
+    }
+
+    // Fills the weather columns as it reads, and keeps only names and coordinates for the other indexes
+    private List<WeatherRecord> readStoredWeather() throws SQLException {
+        List<WeatherRecord> locations = new ArrayList<>();
+        List<WeatherRecord> chunk = new ArrayList<>();
+        storage.forEachWeather(record -> {
+            chunk.add(record);
+            locations.add(new WeatherRecord(record.getLocation(), record.getLatitude(), record.getLongitude(), null, 0, null));
+            if (chunk.size() == 10_000) {
+                weatherColumns.update(chunk);
+                chunk.clear();
+            }
+        });
+        weatherColumns.update(chunk);
+        return locations;
+    }
+
+    // Every uploaded observation under -Dhistory.dir; -Dhistory.enabled=false turns it off
+    private void createHistory() {
+        if (!Boolean.parseBoolean(System.getProperty("history.enabled", "true"))) {
+            return;
+        }
+        try {
+            history = new WeatherHistory(Paths.get(System.getProperty("history.dir", "weather-history")),
+                    TimeUnit.HOURS.toSeconds(Long.getLong("history.partitionHours", 24)), Long.getLong("history.flushIntervalSeconds", 60),
+                    TimeUnit.DAYS.toSeconds(Long.getLong("history.retentionDays", 0)), Integer.getInteger("history.maxPoints", 50_000));
+        } catch (IOException e) {
+            LOGGER.warning("Could not open the weather history, uploads will not be recorded: " + e.getMessage());
+        }
+    }
+
+    private void createUserWriteBehind() {
+        userWrites = new UserWriteBehind(storage, Long.getLong("users.flushIntervalMs", 200), Integer.getInteger("users.flushThreshold", 1000));
+        try {
+            userWrites.loadKnownUsers();
+        } catch (SQLException e) {
+            LOGGER.warning("Could not preload known users, every first login will be written: " + e.getMessage());
+        }
+        // Acknowledged registrations and location changes must reach the database before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            userWrites.close();
+            if (cluster != null) {
+                cluster.close();
+            }
+            if (history != null) {
+                history.close();
+            }
+            storage.close();
+        }, "shutdown-flush"));
+    }
+
+    // Periodic report: pool wait time and utilization tell whether db.pool.size is right,
+    // the cache hit ratio whether cache.maxEntries and the TTLs are
+    private void startStatsReporter() {
+        long statsIntervalSeconds = Long.getLong("db.pool.statsInterval", 60);
+        if (statsIntervalSeconds > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "server-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> LOGGER.info(storage + " " + weatherCache + " " + userWrites + " " + subscriptions + " " + spatialIndex + " " + nameIndex + " " + weatherColumns + (history != null ? " " + history : "") + " " + admission + " " + uploads + (cluster != null ? " " + cluster : "")), statsIntervalSeconds, statsIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // Plain-text metrics on http://127.0.0.1:<metrics.port>/metrics; a port of 0 or below turns it off
+    private void startMetricsEndpoint() {
+        if (pool != null) {
+            Metrics.gauge("db_pool_in_use", pool::getInUse);
+            Metrics.gauge("db_pool_open", pool::getOpen);
+            Metrics.gauge("db_pool_timeouts", pool::getTimeouts);
+        }
+        Metrics.gauge("cache_entries", weatherCache::size);
+        Metrics.gauge("cache_hits", weatherCache::getHits);
+        Metrics.gauge("cache_negative_hits", weatherCache::getNegativeHits);
+        Metrics.gauge("cache_misses", weatherCache::getMisses);
+        Metrics.gauge("cache_coalesced", weatherCache::getCoalesced);
+        Metrics.gauge("users_pending", userWrites::getPending);
+        Metrics.gauge("push_subscriptions", subscriptions::getSubscriptions);
+        Metrics.gauge("spatial_locations", spatialIndex::size);
+        Metrics.gauge("location_names", nameIndex::size);
+        Metrics.gauge("weather_columns_rows", weatherColumns::size);
+        Metrics.gauge("uploads_running", uploads::getRunning);
+        Metrics.gauge("uploads_queued", uploads::getQueued);
+        if (history != null) {
+            Metrics.gauge("history_open_observations", history::getOpenObservations);
+            Metrics.gauge("history_sealed_files", history::getSealedFiles);
+        }
+        int metricsPort = Integer.getInteger("metrics.port", 6544);
+        if (metricsPort > 0) {
+            try {
+                new MetricsEndpoint(metricsPort).start();
+            } catch (IOException e) {
+                LOGGER.warning("Could not start the metrics endpoint on port " + metricsPort + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Usage: Server [thread|virtual|nio]  (defaults to the -Dengine property, then "thread")
     public static void main( String[] args )
     {
-        new Server().start();
+        String engineName = args.length > 0 ? args[0] : System.getProperty("engine", "thread");
+        new Server().start(ConnectionEngine.forName(engineName));
     }
 }
\ No newline at end of file
@@ -0,0 +1,392 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-memory index of the coordinates of every location, for nearest-location and radius queries.
+ *
+ * <p>Points are kept as unit vectors on the sphere, so the straight-line (chord) distance between two
+ * points orders them exactly like the great-circle distance, with no special cases at the poles or
+ * the date line. They live in a small forest of immutable k-d trees whose sizes roughly double: an
+ * upload's new or moved locations become a new tree, merged with every tree that is not bigger than
+ * it, so each point is rebuilt O(log n) times over its life. A moved location's old point is only
+ * marked dead and skipped by searches, until dead points outnumber live ones and everything is
+ * rebuilt into one tree. Searches read the current forest without locking; updates are applied on a
+ * single background thread, so uploads never wait for a rebuild.
+ */
+public class SpatialIndex implements WeatherUpdateListener {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(SpatialIndex.class.getName());
+    static final double EARTH_RADIUS_KM = 6371.0088; // Mean radius
+
+    private final Map<String, Point> current = new HashMap<>(); // Guarded by this
+    private final ExecutorService updater = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "spatial-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile KdTree[] trees = new KdTree[0];
+    private volatile int size;
+    private int dead; // Guarded by this
+
+    // A location returned by a search, with its great-circle distance from the query point
+    public static final class Match {
+        private final String location;
+        private final double latitude;
+        private final double longitude;
+        private final double distanceKm;
+
+        Match(Point point, double chord2) {
+            this.location = point.location;
+            this.latitude = point.latitude;
+            this.longitude = point.longitude;
+            this.distanceKm = 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(chord2) / 2));
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public double getDistanceKm() {
+            return distanceKm;
+        }
+    }
+
+    // Ingest thread: only queues the records, the trees are rebuilt on the index's own thread
+    @Override
+    public void onWeatherUpdated(List<WeatherRecord> records) {
+        updater.execute(() -> {
+            try {
+                update(records);
+            } catch (RuntimeException e) {
+                LOGGER.severe("Could not update the spatial index: " + e.getMessage());
+            }
+        });
+    }
+
+    // Adds new locations and moves changed ones; rows whose coordinates didn't change cost a map lookup
+    synchronized void update(Collection<WeatherRecord> records) {
+        List<Point> added = new ArrayList<>();
+        for (WeatherRecord record : records) {
+            Point previous = current.get(record.getLocation());
+            if (previous != null && previous.latitude == record.getLatitude() && previous.longitude == record.getLongitude()) {
+                continue;
+            }
+            Point point = new Point(record.getLocation(), record.getLatitude(), record.getLongitude());
+            current.put(point.location, point);
+            if (previous != null) {
+                previous.dead = true;
+                dead++;
+            }
+            added.add(point);
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+
+        List<KdTree> forest = new ArrayList<>(Arrays.asList(trees));
+        List<KdTree> kept = new ArrayList<>();
+        if (dead > current.size()) {
+            // Mostly dead weight: start over from the live points
+            added = new ArrayList<>(current.values());
+            forest.clear();
+            dead = 0;
+        }
+        // Like carrying in a binary counter: the new tree absorbs every tree that is not bigger than it
+        forest.sort(Comparator.comparingInt(KdTree::size));
+        for (KdTree tree : forest) {
+            if (tree.size() <= added.size()) {
+                dead -= tree.addLivePoints(added);
+            } else {
+                kept.add(tree);
+            }
+        }
+        kept.add(new KdTree(added.toArray(new Point[0])));
+        trees = kept.toArray(new KdTree[0]);
+        size = current.size();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The closest location, or null while the index is empty
+    public Match nearest(double latitude, double longitude) {
+        List<Match> matches = nearest(latitude, longitude, 1, Double.POSITIVE_INFINITY);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    // Up to 'limit' locations within radiusKm of the point, closest first
+    public List<Match> nearest(double latitude, double longitude, int limit, double radiusKm) {
+        double[] query = toUnitVector(latitude, longitude);
+        // Chord length for the radius; half the circumference or more covers the whole sphere
+        double maxChord2 = radiusKm >= Math.PI * EARTH_RADIUS_KM ? Double.POSITIVE_INFINITY
+                : square(2 * Math.sin(radiusKm / (2 * EARTH_RADIUS_KM)));
+        Candidates candidates = new Candidates(Math.max(1, limit), maxChord2);
+        for (KdTree tree : trees) {
+            tree.search(query, candidates);
+        }
+        return candidates.sorted();
+    }
+
+    @Override
+    public String toString() {
+        return "SpatialIndex[locations=" + size + ", trees=" + trees.length + "]";
+    }
+
+    static double[] toUnitVector(double latitude, double longitude) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        double cosLat = Math.cos(lat);
+        return new double[] {cosLat * Math.cos(lon), cosLat * Math.sin(lon), Math.sin(lat)};
+    }
+
+    private static double square(double value) {
+        return value * value;
+    }
+
+    private static final class Point {
+        final String location;
+        final double latitude;
+        final double longitude;
+        volatile boolean dead; // Superseded by a newer point for the same location
+
+        Point(String location, double latitude, double longitude) {
+            this.location = location;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    // The best matches found so far: a max-heap on squared chord length, capped at 'limit' entries
+    private static final class Candidates {
+        private final Point[] points;
+        private final double[] chord2;
+        private int count;
+        private double bound; // Anything at or beyond this can't make it in
+
+        Candidates(int limit, double maxChord2) {
+            this.points = new Point[limit];
+            this.chord2 = new double[limit];
+            this.bound = maxChord2;
+        }
+
+        void offer(Point point, double distance2) {
+            if (distance2 > bound || (count == points.length && distance2 == bound)) {
+                return;
+            }
+            if (count < points.length) {
+                int i = count++;
+                while (i > 0 && chord2[(i - 1) / 2] < distance2) {
+                    points[i] = points[(i - 1) / 2];
+                    chord2[i] = chord2[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                points[i] = point;
+                chord2[i] = distance2;
+            } else {
+                // Replace the farthest and sift down
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= count) {
+                        break;
+                    }
+                    if (child + 1 < count && chord2[child + 1] > chord2[child]) {
+                        child++;
+                    }
+                    if (chord2[child] <= distance2) {
+                        break;
+                    }
+                    points[i] = points[child];
+                    chord2[i] = chord2[child];
+                    i = child;
+                }
+                points[i] = point;
+                chord2[i] = distance2;
+            }
+            if (count == points.length) {
+                bound = chord2[0];
+            }
+        }
+
+        double bound() {
+            return bound;
+        }
+
+        List<Match> sorted() {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingDouble(i -> chord2[i]));
+            List<Match> matches = new ArrayList<>(count);
+            for (int i : order) {
+                matches.add(new Match(points[i], chord2[i]));
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * Immutable k-d tree in one array: the node of a range is its middle element, its children the
+     * halves on either side. Coordinates are stored inline (x, y, z per point) so a search walks
+     * primitive arrays; each node splits on the axis along which its range is widest.
+     */
+    private static final class KdTree {
+        private final Point[] points;
+        private final double[] coords;
+        private final byte[] axes;
+
+        KdTree(Point[] points) {
+            this.points = points;
+            this.coords = new double[points.length * 3];
+            this.axes = new byte[points.length];
+            for (int i = 0; i < points.length; i++) {
+                double[] vector = toUnitVector(points[i].latitude, points[i].longitude);
+                System.arraycopy(vector, 0, coords, i * 3, 3);
+            }
+            build(0, points.length);
+        }
+
+        int size() {
+            return points.length;
+        }
+
+        // Appends the points that are still current, returns how many dead ones were left behind
+        int addLivePoints(List<Point> target) {
+            int deadPoints = 0;
+            for (Point point : points) {
+                if (point.dead) {
+                    deadPoints++;
+                } else {
+                    target.add(point);
+                }
+            }
+            return deadPoints;
+        }
+
+        private void build(int lo, int hi) {
+            while (hi - lo > 1) {
+                int axis = widestAxis(lo, hi);
+                int mid = (lo + hi) >>> 1;
+                select(lo, hi - 1, mid, axis);
+                axes[mid] = (byte) axis;
+                // Recurse into the smaller half, loop on the larger one
+                if (mid - lo < hi - mid - 1) {
+                    build(lo, mid);
+                    lo = mid + 1;
+                } else {
+                    build(mid + 1, hi);
+                    hi = mid;
+                }
+            }
+        }
+
+        private int widestAxis(int lo, int hi) {
+            int best = 0;
+            double bestSpread = -1;
+            for (int axis = 0; axis < 3; axis++) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = lo; i < hi; i++) {
+                    double value = coords[i * 3 + axis];
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+                if (max - min > bestSpread) {
+                    bestSpread = max - min;
+                    best = axis;
+                }
+            }
+            return best;
+        }
+
+        // Quickselect: puts the k-th smallest on 'axis' at k, smaller ones before it, larger after
+        private void select(int left, int right, int k, int axis) {
+            while (right > left) {
+                double pivot = coords[((left + right) >>> 1) * 3 + axis];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (coords[i * 3 + axis] < pivot) {
+                        i++;
+                    }
+                    while (coords[j * 3 + axis] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                if (k <= j) {
+                    right = j;
+                } else if (k >= i) {
+                    left = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void swap(int a, int b) {
+            Point point = points[a];
+            points[a] = points[b];
+            points[b] = point;
+            for (int axis = 0; axis < 3; axis++) {
+                double value = coords[a * 3 + axis];
+                coords[a * 3 + axis] = coords[b * 3 + axis];
+                coords[b * 3 + axis] = value;
+            }
+        }
+
+        void search(double[] query, Candidates candidates) {
+            search(0, points.length, query, candidates);
+        }
+
+        private void search(int lo, int hi, double[] query, Candidates candidates) {
+            if (lo >= hi) {
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            double dx = query[0] - coords[mid * 3];
+            double dy = query[1] - coords[mid * 3 + 1];
+            double dz = query[2] - coords[mid * 3 + 2];
+            if (!points[mid].dead) {
+                candidates.offer(points[mid], dx * dx + dy * dy + dz * dz);
+            }
+            if (hi - lo == 1) {
+                return;
+            }
+            int axis = axes[mid];
+            double split = axis == 0 ? dx : axis == 1 ? dy : dz;
+            // Near side first, the far side only if the splitting plane is closer than the worst candidate
+            if (split < 0) {
+                search(lo, mid, query, candidates);
+                if (split * split <= candidates.bound()) {
+                    search(mid + 1, hi, query, candidates);
+                }
+            } else {
+                search(mid + 1, hi, query, candidates);
+                if (split * split <= candidates.bound()) {
+                    search(lo, mid, query, candidates);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Push subscriptions: which sessions want to hear about which locations, and the fan-out that sends
+ * them the new weather when an upload changes it.
+ *
+ * <p>The ingest thread that committed a chunk only filters it against the index and hands the
+ * subscribed records to a single fan-out thread, so it never waits for a client. The fan-out
+ * encodes every record once and collects, per subscriber, the latest response of each of its
+ * locations. Each subscriber then gets one push message per chunk: connections of the NIO engine only
+ * queue it, so the fan-out thread sends it itself, and blocking connections get a task on the writer
+ * executor, since their writes may park. A subscriber that can't keep up doesn't build a backlog: while its last push is
+ * still being written (or its connection has too much queued), newer updates replace older ones for
+ * the same location, so what it holds is bounded by the number of locations it follows.
+ */
+public class SubscriptionIndex implements WeatherUpdateListener {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(SubscriptionIndex.class.getName());
+
+    private final ConcurrentHashMap<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriptions = new AtomicInteger();
+    private final ScheduledExecutorService fanOut;
+    private final ExecutorService writers;
+    private final int maxLocationsPerSubscriber;
+    private final long maxPendingBytes;
+    private final long retryMillis;
+
+    /**
+     * writerThreads bounds the threads that write pushes to blocking connections when virtual threads
+     * are not available (before Java 21); with them every write gets its own virtual thread.
+     */
+    public SubscriptionIndex(int maxLocationsPerSubscriber, long maxPendingBytes, long retryMillis, int writerThreads) {
+        this.maxLocationsPerSubscriber = maxLocationsPerSubscriber;
+        this.maxPendingBytes = maxPendingBytes;
+        this.retryMillis = retryMillis;
+        this.fanOut = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "push-fanout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Writes to a slow blocking socket park the writer until the engine's reaper closes the connection (past
+        // the read timeout). Virtual threads park for free; platform threads are bounded, later pushes wait their turn
+        ExecutorService virtualThreads = ThreadPerConnectionEngine.newVirtualThreadExecutorIfAvailable();
+        this.writers = virtualThreads != null ? virtualThreads : Executors.newFixedThreadPool(writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "push-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Subscriber newSubscriber(ClientSession.Output output, boolean binary) {
+        return new Subscriber(output, binary);
+    }
+
+    public int getSubscriptions() {
+        return subscriptions.get();
+    }
+
+    // Ingest thread: keeps only the records somebody follows, the rest of the work happens on the fan-out thread
+    @Override
+    public void onWeatherUpdated(List<WeatherRecord> records) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        List<WeatherRecord> subscribed = new ArrayList<>();
+        for (WeatherRecord record : records) {
+            if (subscribers.containsKey(record.getLocation())) {
+                subscribed.add(record);
+            }
+        }
+        if (!subscribed.isEmpty()) {
+            fanOut.execute(() -> fanOut(subscribed));
+        }
+    }
+
+    private void fanOut(List<WeatherRecord> records) {
+        long start = System.nanoTime();
+        Set<Subscriber> touched = new HashSet<>();
+        for (WeatherRecord record : records) {
+            Set<Subscriber> followers = subscribers.get(record.getLocation());
+            if (followers == null) {
+                continue;
+            }
+            WeatherResponse response = WeatherResponse.of(record); // Encoded once for all of them
+            for (Subscriber subscriber : followers) {
+                if (subscriber.offer(response)) {
+                    touched.add(subscriber);
+                }
+            }
+        }
+        for (Subscriber subscriber : touched) {
+            subscriber.schedule();
+        }
+        Metrics.PUSH_FANOUT.recordSince(start);
+    }
+
+    private void add(String location, Subscriber subscriber) {
+        subscribers.compute(location, (key, followers) -> {
+            if (followers == null) {
+                followers = ConcurrentHashMap.newKeySet();
+            }
+            if (followers.add(subscriber)) {
+                subscriptions.incrementAndGet();
+            }
+            return followers;
+        });
+    }
+
+    private void remove(String location, Subscriber subscriber) {
+        subscribers.computeIfPresent(location, (key, followers) -> {
+            if (followers.remove(subscriber)) {
+                subscriptions.decrementAndGet();
+            }
+            return followers.isEmpty() ? null : followers;
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "SubscriptionIndex[locations=" + subscribers.size() + ", subscriptions=" + subscriptions.get() + "]";
+    }
+
+    /**
+     * One session's subscriptions: the location it follows (its current location, moved along by
+     * updateLocation) plus any extra locations, and the updates not yet written to it.
+     */
+    public final class Subscriber {
+        private final ClientSession.Output output;
+        private final boolean binary;
+        private final Set<String> extraLocations = new HashSet<>();
+        private String followedLocation;
+        private Map<String, WeatherResponse> pending = new LinkedHashMap<>();
+        private boolean scheduled; // A writer task is running or waiting for the connection to drain
+        private boolean closed;
+
+        private Subscriber(ClientSession.Output output, boolean binary) {
+            this.output = output;
+            this.binary = binary;
+        }
+
+        // Follows the session's current location, replacing the previous one (null stops following)
+        public synchronized void follow(String location) {
+            if (closed || (location == null ? followedLocation == null : location.equals(followedLocation))) {
+                return;
+            }
+            String previous = followedLocation;
+            followedLocation = location;
+            if (previous != null && !extraLocations.contains(previous)) {
+                remove(previous, this);
+            }
+            if (location != null && !extraLocations.contains(location)) {
+                add(location, this);
+            }
+        }
+
+        // False if the subscriber already has the maximum number of extra locations
+        public synchronized boolean subscribe(String location) {
+            if (closed || extraLocations.contains(location)) {
+                return !closed;
+            }
+            if (extraLocations.size() >= maxLocationsPerSubscriber) {
+                return false;
+            }
+            extraLocations.add(location);
+            if (!location.equals(followedLocation)) {
+                add(location, this);
+            }
+            return true;
+        }
+
+        public synchronized void unsubscribe(String location) {
+            if (extraLocations.remove(location) && !location.equals(followedLocation)) {
+                remove(location, this);
+            }
+        }
+
+        public synchronized List<String> getLocations() {
+            List<String> locations = new ArrayList<>();
+            if (followedLocation != null) {
+                locations.add(followedLocation);
+            }
+            for (String location : extraLocations) {
+                if (!location.equals(followedLocation)) {
+                    locations.add(location);
+                }
+            }
+            return locations;
+        }
+
+        // Leaves the index for good and drops whatever was not sent yet
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            for (String location : getLocations()) {
+                remove(location, this);
+            }
+            closed = true;
+            extraLocations.clear();
+            followedLocation = null;
+            pending.clear();
+        }
+
+        // Fan-out thread: the latest response per location wins
+        private synchronized boolean offer(WeatherResponse response) {
+            if (closed) {
+                return false;
+            }
+            if (pending.put(response.getRecord().getLocation(), response) != null) {
+                Metrics.PUSH_COALESCED.increment();
+            }
+            return true;
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (scheduled || closed || pending.isEmpty()) {
+                    return;
+                }
+                scheduled = true;
+            }
+            dispatch();
+        }
+
+        private void dispatch() {
+            if (output.sendBlocks()) {
+                writers.execute(this::write);
+            } else {
+                write();
+            }
+        }
+
+        // Writer task: sends what is pending as one message, and again if more arrived in the meantime
+        private void write() {
+            while (true) {
+                Map<String, WeatherResponse> updates;
+                synchronized (this) {
+                    if (closed || pending.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (output.pendingBytes() > maxPendingBytes) {
+                        // The client isn't reading; keep coalescing and look again later
+                        Metrics.PUSH_DEFERRED.increment();
+                        fanOut.schedule(this::dispatch, retryMillis, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    updates = pending;
+                    pending = new LinkedHashMap<>();
+                }
+                try {
+                    output.send(binary ? BinaryProtocol.pushFrame(updates.values()) : pushLine(updates.values()));
+                    Metrics.PUSH_MESSAGES.increment();
+                    Metrics.PUSH_UPDATES.add(updates.size());
+                } catch (IOException e) {
+                    LOGGER.warning("Could not push weather updates to " + output.remoteAddress() + ": " + e.getMessage());
+                    close();
+                }
+            }
+        }
+    }
+
+    // {"event":"weatherUpdate","results":[<getWeather response>, ...]}, spliced from the pre-serialized responses
+    static byte[] pushLine(Collection<WeatherResponse> updates) {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64 + updates.size() * 256);
+        byte[] prefix = "{\"event\":\"weatherUpdate\",\"results\":[".getBytes(StandardCharsets.UTF_8);
+        line.write(prefix, 0, prefix.length);
+        boolean first = true;
+        for (WeatherResponse update : updates) {
+            if (!first) {
+                line.write(',');
+            }
+            first = false;
+            byte[] json = update.getJsonLine();
+            line.write(json, 0, json.length - 1); // Without its newline
+        }
+        line.write(']');
+        line.write('}');
+        line.write('\n');
+        return line.toByteArray();
+    }
+}
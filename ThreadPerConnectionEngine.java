@@ -0,0 +1,112 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * The classic blocking model: one {@link ClientThread} per accepted socket. With {@code virtual}
+ * set, the threads are virtual threads, so idle sessions no longer pin an OS thread each. A
+ * "connection-reaper" thread closes the connections that run into the admission timeouts.
+ */
+public class ThreadPerConnectionEngine implements ConnectionEngine {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(ThreadPerConnectionEngine.class.getName());
+    private final boolean virtual;
+    private final Set<ClientThread> connections = ConcurrentHashMap.newKeySet();
+
+    public ThreadPerConnectionEngine(boolean virtual) {
+        this.virtual = virtual;
+    }
+
+    @Override
+    public void serve(int port, AdmissionControl admission, Function<ClientSession.Output, ClientSession> sessionFactory) throws IOException {
+        ExecutorService executor = virtual ? newVirtualThreadExecutor() : null;
+        startReaper(admission);
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Server started on port " + port);
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                if (!admission.tryOpen(String.valueOf(clientSocket.getInetAddress()))) {
+                    refuse(clientSocket);
+                    continue;
+                }
+                ClientThread clientThread;
+                try {
+                    clientThread = new ClientThread(clientSocket, sessionFactory, admission);
+                } catch (RuntimeException e) {
+                    admission.release(String.valueOf(clientSocket.getInetAddress()));
+                    clientSocket.close();
+                    LOGGER.severe("Could not set up the connection: " + e.getMessage());
+                    continue;
+                }
+                connections.add(clientThread);
+                if (executor != null) {
+                    executor.execute(clientThread); // Runs the session loop on a virtual thread
+                } else {
+                    clientThread.start();
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    // The error fits in the empty send buffer of a new socket, so this doesn't block the accept loop
+    private static void refuse(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            OutputStream out = socket.getOutputStream();
+            out.write((AdmissionControl.rejection(AdmissionControl.TOO_MANY_CONNECTIONS, "Too many connections, try again later") + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.warning("Error while refusing a connection: " + e.getMessage());
+        }
+    }
+
+    // Checks every connection for timeouts (and forgets finished ones), and drops unused rate limit buckets
+    private void startReaper(AdmissionControl admission) {
+        long interval = admission.getCheckIntervalMillis();
+        Thread reaper = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval > 0 ? interval : 1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                connections.removeIf(connection -> connection.isFinished() || (interval > 0 && connection.reapIfTimedOut(now)));
+                admission.sweep();
+            }
+        }, "connection-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    // Virtual threads only exist on Java 21+, so look them up reflectively and keep running on older JDKs
+    static ExecutorService newVirtualThreadExecutor() {
+        ExecutorService executor = newVirtualThreadExecutorIfAvailable();
+        if (executor == null) {
+            LOGGER.warning("Virtual threads require Java 21 or newer, falling back to a cached thread pool.");
+            return Executors.newCachedThreadPool();
+        }
+        return executor;
+    }
+
+    // A virtual thread per task, or null before Java 21
+    static ExecutorService newVirtualThreadExecutorIfAvailable() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.example;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs admin uploads on a small pool of their own, so bulk loading can't take over the threads
+ * and connections that serve user lookups. At most {@code maxConcurrent} uploads run at once; up
+ * to {@code maxQueued} more wait, smallest file first (then in arrival order), and anything beyond
+ * that is refused with a {@link RejectedExecutionException}. The pool threads run at minimum
+ * priority, which the OS may or may not honour, and so do the parser and writer threads a parallel
+ * upload starts from them ({@link #newThread}). Nobody waits for an upload: its result completes a
+ * future on the upload thread, so connection threads go back to serving requests.
+ */
+public class UploadScheduler {
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger admitted = new AtomicInteger(); // Running plus queued
+    private final AtomicLong sequence = new AtomicLong();
+
+    public UploadScheduler(int maxConcurrent, int maxQueued) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(this.maxConcurrent, this.maxConcurrent, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> newThread(runnable, "upload-" + threadCount.incrementAndGet()));
+    }
+
+    // A minimum priority daemon thread, for the pool and for the threads an upload starts itself
+    static Thread newThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    }
+
+    // Queues the upload of a file of the given size; the future completes on the upload thread once it has run.
+    // Refused right away when the queue is full.
+    public <T> CompletableFuture<T> submit(long bytes, Callable<T> upload) {
+        if (admitted.incrementAndGet() > maxConcurrent + maxQueued) {
+            admitted.decrementAndGet();
+            Metrics.UPLOADS_REJECTED.increment();
+            throw new RejectedExecutionException("Too many uploads in progress (" + maxConcurrent + " running, "
+                    + maxQueued + " waiting), try again later");
+        }
+        Upload<T> task = new Upload<>(upload, bytes, sequence.getAndIncrement());
+        executor.execute(task);
+        return task.result;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getRunning() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "Uploads[running=" + getRunning() + "/" + maxConcurrent + ", queued=" + getQueued() + "/" + maxQueued
+                + ", rejected=" + Metrics.UPLOADS_REJECTED.sum() + "]";
+    }
+
+    // Ordered in the queue by file size, then arrival; frees its slot and completes its result once it has run
+    private final class Upload<T> extends FutureTask<T> implements Comparable<Upload<?>> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long bytes;
+        private final long sequence;
+
+        Upload(Callable<T> upload, long bytes, long sequence) {
+            super(upload);
+            this.bytes = bytes;
+            this.sequence = sequence;
+        }
+
+        @Override
+        protected void done() {
+            admitted.decrementAndGet();
+            try {
+                result.complete(get());
+            } catch (ExecutionException e) {
+                result.completeExceptionally(e.getCause());
+            } catch (CancellationException | InterruptedException e) {
+                result.completeExceptionally(e); // get() doesn't block in done(); only a cancelled upload ends up here
+            }
+        }
+
+        @Override
+        public int compareTo(Upload<?> other) {
+            int bySize = Long.compare(bytes, other.bytes);
+            return bySize != 0 ? bySize : Long.compare(sequence, other.sequence);
+        }
+    }
+}
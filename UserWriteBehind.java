@@ -0,0 +1,150 @@
+package org.example;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind buffer for the users table. Sessions hand over registrations and location changes
+ * and continue without waiting for the storage; a background flusher writes them in one batched
+ * transaction every {@code flushIntervalMillis}, or sooner once {@code flushThreshold} users are
+ * pending. Repeated location changes of the same user between two flushes collapse into one UPDATE,
+ * and users already known to exist are never re-inserted.
+ *
+ * <p>Pending writes are only dropped from the buffer after their transaction committed, and
+ * {@link #close()} (run from the server's shutdown hook) flushes whatever is left.
+ */
+public class UserWriteBehind implements AutoCloseable {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(UserWriteBehind.class.getName());
+    private static final int SHUTDOWN_FLUSH_ATTEMPTS = 5;
+
+    private final WeatherStorage storage;
+    private final int flushThreshold;
+    private final int maxPending;
+    private final Set<String> knownUsers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, String> pendingRegistrations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> pendingLocations = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final LongAdder registrationsSkipped = new LongAdder();
+    private final LongAdder updatesCoalesced = new LongAdder();
+    private final LongAdder rowsFlushed = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushFailures = new LongAdder();
+
+    public UserWriteBehind(WeatherStorage storage, long flushIntervalMillis, int flushThreshold) {
+        this.storage = storage;
+        this.flushThreshold = flushThreshold;
+        this.maxPending = flushThreshold * 10;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "user-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Seeds the known-user set so returning users are not re-inserted on every login
+    public void loadKnownUsers() throws SQLException {
+        storage.forEachUsername(knownUsers::add);
+    }
+
+    public void register(String username, String role) throws SQLException {
+        if (knownUsers.contains(username)) {
+            registrationsSkipped.increment();
+            return;
+        }
+        pendingRegistrations.putIfAbsent(username, role);
+        afterWrite();
+    }
+
+    public void updateLocation(String username, String currentLocation) throws SQLException {
+        if (username == null) {
+            return; // Sessions without a username never had a row to update
+        }
+        if (pendingLocations.put(username, currentLocation) != null) {
+            updatesCoalesced.increment();
+        }
+        afterWrite();
+    }
+
+    private void afterWrite() throws SQLException {
+        int pending = pendingRegistrations.size() + pendingLocations.size();
+        if (pending >= maxPending) {
+            flush(); // The database is falling behind: make the caller wait instead of growing without bound
+        } else if (pending >= flushThreshold && flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushQuietly() {
+        flushScheduled.set(false);
+        try {
+            flush();
+        } catch (SQLException e) {
+            flushFailures.increment();
+            LOGGER.warning("Write-behind flush failed, will retry: " + e.getMessage());
+        }
+    }
+
+    // Writes a snapshot of everything pending in one transaction; entries changed meanwhile stay pending
+    public synchronized void flush() throws SQLException {
+        if (pendingRegistrations.isEmpty() && pendingLocations.isEmpty()) {
+            return;
+        }
+        Map<String, String> registrations = new HashMap<>(pendingRegistrations);
+        Map<String, String> locations = new HashMap<>(pendingLocations);
+
+        long start = System.nanoTime();
+        storage.writeUsers(registrations, locations);
+        Metrics.DB_USER_FLUSH.recordSince(start);
+
+        for (Map.Entry<String, String> entry : registrations.entrySet()) {
+            knownUsers.add(entry.getKey());
+            pendingRegistrations.remove(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : locations.entrySet()) {
+            pendingLocations.remove(entry.getKey(), entry.getValue()); // Keeps a newer location for the next flush
+        }
+        rowsFlushed.add(registrations.size() + locations.size());
+        flushes.increment();
+    }
+
+    public int getPending() {
+        return pendingRegistrations.size() + pendingLocations.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("users[pending=%d, flushes=%d, rowsFlushed=%d, coalesced=%d, registrationsSkipped=%d, flushFailures=%d]",
+                getPending(), flushes.sum(), rowsFlushed.sum(), updatesCoalesced.sum(), registrationsSkipped.sum(), flushFailures.sum());
+    }
+
+    // Stops the background flusher and writes everything still pending, retrying a few times
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int attempt = 1; attempt <= SHUTDOWN_FLUSH_ATTEMPTS && getPending() > 0; attempt++) {
+            try {
+                flush();
+            } catch (SQLException e) {
+                LOGGER.severe("Final write-behind flush failed (attempt " + attempt + "): " + e.getMessage());
+            }
+        }
+        if (getPending() > 0) {
+            LOGGER.severe("Shutting down with " + getPending() + " unwritten user changes: " + pendingRegistrations + " " + pendingLocations);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package org.example;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of weather rows, with their pre-built responses, shared by all sessions.
+ * Entries are split over lock-striped segments, each an access-ordered LRU map, and also expire after
+ * a TTL. Locations that are not in the database are cached as well (with a shorter TTL) so unknown
+ * names don't hit PostgreSQL on every request. Uploads invalidate the locations they touch.
+ *
+ * <p>Concurrent misses on one location share a single load: the first caller reads the row and the
+ * others wait for its result. Invalidating a location marks its load in flight as stale, so a row read
+ * before the upload is returned to the callers already waiting but never cached.
+ */
+public class WeatherCache {
+    private static final int SEGMENTS = 16;
+
+    // Fetches a row from the database on a miss; returns null when the location is unknown
+    public interface Loader {
+        WeatherResponse load(String location) throws SQLException;
+    }
+
+    // Fetches several rows with one query; locations missing from the result are unknown
+    public interface BatchLoader {
+        Map<String, WeatherResponse> loadAll(List<String> locations) throws SQLException;
+    }
+
+    // A load in flight; guarded by its segment's monitor, except the future
+    private static final class Load {
+        final CompletableFuture<WeatherResponse> result = new CompletableFuture<>();
+        boolean stale; // The location was invalidated while loading
+
+        WeatherResponse await() throws SQLException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return result.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true; // The loader finishes on its own; keep waiting for it
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof SQLException) {
+                            throw new SQLException(cause.getMessage(), ((SQLException) cause).getSQLState(), cause);
+                        }
+                        throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        final WeatherResponse response; // null for a cached "not found"
+        final long expiresAtNanos;
+
+        Entry(WeatherResponse response, long expiresAtNanos) {
+            this.response = response;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder(); // Misses that waited for another caller's load
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public WeatherCache(int maxEntries, long ttlSeconds, long negativeTtlSeconds) {
+        int perSegment = Math.max(1, maxEntries / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+    }
+
+    // Returns the cached response, loading (and caching) it on a miss; null means the location is unknown
+    public WeatherResponse get(String location, Loader loader) throws SQLException {
+        Entry entry = lookup(location, System.nanoTime());
+        if (entry != null) {
+            return entry.response;
+        }
+
+        misses.increment();
+        Map<String, Load> claimed = new HashMap<>(1);
+        Map<String, Load> waiting = new HashMap<>(1);
+        Entry cached = claim(location, claimed, waiting);
+        if (cached != null) {
+            return cached.response;
+        }
+        if (!waiting.isEmpty()) {
+            return waiting.get(location).await();
+        }
+        Load load = claimed.get(location);
+        WeatherResponse response;
+        try {
+            response = loader.load(location);
+        } catch (SQLException | RuntimeException | Error e) {
+            release(claimed, e);
+            throw e;
+        }
+        store(location, response, load);
+        return response;
+    }
+
+    /**
+     * Resolves many locations in one pass: cached ones are served from memory and all the others are
+     * loaded with a single call. The result keeps the request order (without duplicates) and maps
+     * unknown locations to null.
+     */
+    public Map<String, WeatherResponse> getAll(Collection<String> locations, BatchLoader loader) throws SQLException {
+        Map<String, WeatherResponse> result = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.nanoTime();
+        for (String location : locations) {
+            if (result.containsKey(location)) {
+                continue;
+            }
+            Entry entry = lookup(location, now);
+            result.put(location, entry == null ? null : entry.response);
+            if (entry == null) {
+                missing.add(location);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        misses.add(missing.size());
+        Map<String, Load> claimed = new LinkedHashMap<>();
+        Map<String, Load> waiting = new LinkedHashMap<>();
+        for (String location : missing) {
+            Entry cached = claim(location, claimed, waiting);
+            if (cached != null) {
+                result.put(location, cached.response);
+            }
+        }
+        if (!claimed.isEmpty()) {
+            Map<String, WeatherResponse> loaded;
+            try {
+                loaded = loader.loadAll(new ArrayList<>(claimed.keySet()));
+            } catch (SQLException | RuntimeException | Error e) {
+                release(claimed, e);
+                throw e;
+            }
+            for (Map.Entry<String, Load> load : claimed.entrySet()) {
+                WeatherResponse response = loaded.get(load.getKey());
+                result.put(load.getKey(), response);
+                store(load.getKey(), response, load.getValue());
+            }
+        }
+        for (Map.Entry<String, Load> load : waiting.entrySet()) {
+            result.put(load.getKey(), load.getValue().await());
+        }
+        return result;
+    }
+
+    // After a miss: the entry if another caller stored it meanwhile, else the location joins the load in
+    // flight (waiting) or gets a new one that this caller must complete (claimed)
+    private Entry claim(String location, Map<String, Load> claimed, Map<String, Load> waiting) {
+        Segment segment = segmentFor(location);
+        synchronized (segment) {
+            Entry entry = segment.get(location);
+            if (entry != null && entry.expiresAtNanos - System.nanoTime() > 0) {
+                return entry;
+            }
+            Load load = segment.loading.get(location);
+            if (load != null) {
+                coalesced.increment();
+                waiting.put(location, load);
+            } else {
+                load = new Load();
+                segment.loading.put(location, load);
+                claimed.put(location, load);
+            }
+        }
+        return null;
+    }
+
+    // The loads of a failed loader call: their waiters get the same error, and the next miss tries again
+    private void release(Map<String, Load> claimed, Throwable error) {
+        for (Map.Entry<String, Load> load : claimed.entrySet()) {
+            Segment segment = segmentFor(load.getKey());
+            synchronized (segment) {
+                segment.loading.remove(load.getKey(), load.getValue());
+            }
+            load.getValue().result.completeExceptionally(error);
+        }
+    }
+
+    // The live entry for a location, counting the hit; null on a miss
+    private Entry lookup(String location, long now) {
+        Segment segment = segmentFor(location);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(location);
+            if (entry != null && entry.expiresAtNanos - now <= 0) {
+                segment.remove(location);
+                expirations.increment();
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            if (entry.response == null) {
+                negativeHits.increment();
+            } else {
+                hits.increment();
+            }
+        }
+        return entry;
+    }
+
+    private void store(String location, WeatherResponse response, Load load) {
+        Segment segment = segmentFor(location);
+        synchronized (segment) {
+            segment.loading.remove(location, load);
+            // An upload may have changed the row while we were reading it; don't cache what we read then
+            if (!load.stale) {
+                long ttl = response == null ? negativeTtlNanos : ttlNanos;
+                segment.put(location, new Entry(response, System.nanoTime() + ttl));
+            }
+        }
+        load.result.complete(response);
+    }
+
+    public void invalidate(String location) {
+        Segment segment = segmentFor(location);
+        synchronized (segment) {
+            segment.remove(location);
+            Load load = segment.loading.remove(location); // Later misses start a fresh load
+            if (load != null) {
+                load.stale = true;
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        long lookups = getHits() + getNegativeHits() + getMisses();
+        double hitRatio = lookups == 0 ? 0 : (double) (getHits() + getNegativeHits()) / lookups;
+        return String.format("cache[size=%d, hits=%d, negativeHits=%d, misses=%d, coalesced=%d, hitRatio=%.1f%%, evictions=%d, expirations=%d]",
+                size(), getHits(), getNegativeHits(), getMisses(), getCoalesced(), hitRatio * 100, getEvictions(), getExpirations());
+    }
+
+    private Segment segmentFor(String location) {
+        int hash = location.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    // Access-ordered map that drops its least recently used entry once full; guarded by its own monitor
+    private final class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int maxEntries;
+        private final Map<String, Load> loading = new HashMap<>(); // Misses being loaded
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WeatherCache.Entry> eldest) { // Qualified: LinkedHashMap has its own Entry
+            if (size() > maxEntries) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
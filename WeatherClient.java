@@ -0,0 +1,766 @@
+package org.example;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Asynchronous client library for programs that call the server, apart from the console {@link Client}.
+ * Every call returns at once with a {@link CompletableFuture}; requests of any number of callers and
+ * users share a small pool of persistent pipelined connections that speak the binary protocol, and the
+ * answers are matched by request id and decoded straight from the read buffer (no JSON objects for
+ * weather; acknowledgements and errors are read with a streaming JSON reader).
+ *
+ * <p>One I/O thread drives all connections. Futures are completed on it, so callbacks that block or
+ * take long should be attached with the {@code *Async} variants. A request fails with a
+ * {@link TimeoutException} when it isn't answered within the request timeout (waiting for a connection
+ * included) and with a {@link ServerException} when the server answers with an error. Broken
+ * connections are reopened when there is work for them, backing off while the server is unreachable;
+ * requests already sent on a connection that breaks fail, those not sent yet move to another one.
+ *
+ * <pre>
+ * try (WeatherClient client = new WeatherClient("localhost", 6543, 2, "weather-service", 2000, 5000)) {
+ *     client.getWeather("Bucharest").thenAccept(weather -> System.out.println(weather.getCurrentTemperature()));
+ * }
+ * </pre>
+ */
+public class WeatherClient implements AutoCloseable {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(WeatherClient.class.getName());
+    private static final long TICK_MILLIS = 50; // Resolution of the timeouts
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final int MAX_FRAME_BYTES = 64 << 20;
+    private static final long HANDSHAKE_ID = 0;
+    private static final byte EXPECTS_TEXT = -1; // Answered with a JSON frame that is handed over as text
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String role;
+    private final String secret; // Sent in the handshake; null for none
+    private final long connectTimeoutMillis;
+    private final long requestTimeoutMillis;
+    private final Selector selector;
+    private final Connection[] connections;
+    private final List<Connection> uploads = new ArrayList<>(); // I/O thread
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Request> waiting = new ArrayDeque<>(); // I/O thread: requests without a connection yet
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread ioThread;
+    private volatile boolean closed;
+    private long nextId = HANDSHAKE_ID + 1; // I/O thread
+    private String lastError = "not connected yet"; // I/O thread
+
+    /**
+     * Connects lazily: the pool's connections are opened by the first requests. {@code username} is the
+     * user the connections log in as, and the only user {@link #updateLocation} may act for.
+     */
+    public WeatherClient(String host, int port, int connections, String username, long connectTimeoutMillis,
+                         long requestTimeoutMillis) throws IOException {
+        this(host, port, connections, username, "user", null, connectTimeoutMillis, requestTimeoutMillis);
+    }
+
+    /**
+     * A trusted service: with the server's {@code -Dusers.serviceSecret}, requests that act for a
+     * particular user (like {@link #updateLocation}) may name any user, and count against that user's
+     * request rate.
+     */
+    public WeatherClient(String host, int port, int connections, String username, String serviceSecret,
+                         long connectTimeoutMillis, long requestTimeoutMillis) throws IOException {
+        this(host, port, connections, username, "user", serviceSecret, connectTimeoutMillis, requestTimeoutMillis);
+    }
+
+    // Cluster nodes talk to each other as "peer" (see Cluster)
+    WeatherClient(String host, int port, int connections, String username, String role, String secret,
+                  long connectTimeoutMillis, long requestTimeoutMillis) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.role = role;
+        this.secret = secret;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.selector = Selector.open();
+        this.connections = new Connection[Math.max(1, connections)];
+        for (int i = 0; i < this.connections.length; i++) {
+            this.connections[i] = new Connection(null);
+        }
+        this.ioThread = new Thread(this::run, "weather-client-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    // The current weather of a location; fails with a ServerException if the server has none
+    public CompletableFuture<Weather> getWeather(String location) {
+        JsonObject request = new JsonObject();
+        request.addProperty("type", "getWeather");
+        request.addProperty("location", location);
+        return submit(new Request(request.toString(), BinaryProtocol.FRAME_WEATHER, deadline(requestTimeoutMillis)));
+    }
+
+    // Several locations in one request (at most the server's protocol.maxBatch); unknown locations are left out of the result
+    public CompletableFuture<Map<String, Weather>> getWeather(Collection<String> locations) {
+        JsonObject request = new JsonObject();
+        request.addProperty("type", "getWeatherBatch");
+        JsonArray names = new JsonArray();
+        locations.forEach(names::add);
+        request.add("locations", names);
+        return submit(new Request(request.toString(), BinaryProtocol.FRAME_WEATHER_BATCH, deadline(requestTimeoutMillis)));
+    }
+
+    // Stores the user's current location (registering the user if they are new); another user than the
+    // one the client logged in as needs a service secret
+    public CompletableFuture<Void> updateLocation(String user, String location) {
+        JsonObject request = new JsonObject();
+        request.addProperty("type", "updateLocation");
+        request.addProperty("username", user);
+        request.addProperty("currentLocation", location);
+        return submit(new Request(request.toString(), BinaryProtocol.FRAME_JSON, deadline(requestTimeoutMillis)));
+    }
+
+    /**
+     * Uploads a weather file on a connection of its own (the server reads {@code filePath} from its own
+     * disk). Uploads may wait in the server's queue, so they have their own timeout; 0 waits for as long
+     * as it takes.
+     */
+    public CompletableFuture<UploadResult> upload(String filePath, boolean delta, long timeoutMillis) {
+        JsonObject request = new JsonObject();
+        request.addProperty("role", "admin");
+        request.addProperty("filePath", filePath);
+        request.addProperty("delta", delta);
+        Request upload = new Request(request.toString(), (byte) 0, timeoutMillis > 0 ? deadline(timeoutMillis) : Long.MAX_VALUE);
+        upload.upload = true;
+        return submit(upload);
+    }
+
+    // A request given as a serialized JSON object (the id is added to it), answered with the text of a JSON object
+    CompletableFuture<String> call(String json) {
+        return submit(new Request(json, EXPECTS_TEXT, deadline(requestTimeoutMillis)));
+    }
+
+    private static long deadline(long timeoutMillis) {
+        return System.currentTimeMillis() + timeoutMillis;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> submit(Request request) {
+        if (closed) {
+            request.future.completeExceptionally(new IOException("Client closed"));
+        } else {
+            submitted.add(request);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup(); // One wakeup for everything submitted until the I/O thread looks again
+            }
+        }
+        return (CompletableFuture<T>) (CompletableFuture<?>) request.future;
+    }
+
+    // Fails everything still waiting and closes the connections
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select(TICK_MILLIS);
+                wakeupPending.set(false);
+                long now = System.currentTimeMillis();
+                Request request;
+                while ((request = submitted.poll()) != null) {
+                    if (request.upload) {
+                        Connection upload = new Connection(request);
+                        uploads.add(upload);
+                        upload.open(now);
+                    } else {
+                        waiting.add(request);
+                    }
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((Connection) key.attachment()).handle(key, now);
+                }
+                selector.selectedKeys().clear();
+                dispatch(now);
+                expire(now);
+                for (Connection connection : connections) {
+                    connection.flush(now);
+                }
+                for (Connection upload : uploads) {
+                    upload.flush(now);
+                }
+                uploads.removeIf(upload -> upload.channel == null);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.severe("Weather client stopped: " + e.getMessage());
+        } finally {
+            closed = true;
+            IOException error = new IOException("Client closed");
+            for (Connection connection : connections) {
+                connection.fail(error, false, 0);
+            }
+            for (Connection upload : uploads) {
+                upload.fail(error, false, 0);
+            }
+            Request request;
+            while ((request = waiting.poll()) != null || (request = submitted.poll()) != null) {
+                request.future.completeExceptionally(error);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warning("Error while closing the selector: " + e.getMessage());
+            }
+        }
+    }
+
+    // Hands waiting requests to the open connection with the fewest in flight, reopening closed ones first
+    private void dispatch(long now) {
+        if (waiting.isEmpty()) {
+            return;
+        }
+        for (Connection connection : connections) {
+            if (connection.channel == null && now >= connection.reconnectAt) {
+                connection.open(now);
+            }
+        }
+        while (!waiting.isEmpty()) {
+            Connection least = null;
+            for (Connection connection : connections) {
+                if (connection.channel != null && (least == null || connection.inFlight.size() < least.inFlight.size())) {
+                    least = connection;
+                }
+            }
+            if (least == null) {
+                return;
+            }
+            least.send(waiting.poll(), now);
+        }
+    }
+
+    // Requests all share one timeout, so the oldest ones are at the front of every queue
+    private void expire(long now) {
+        while (!waiting.isEmpty() && now >= waiting.peek().deadline) {
+            waiting.poll().future.completeExceptionally(new TimeoutException("No connection to " + host + ":" + port
+                    + " within " + requestTimeoutMillis + " ms (" + lastError + ")"));
+        }
+        for (Connection connection : connections) {
+            connection.expire(now);
+        }
+        for (Connection upload : uploads) {
+            upload.expire(now);
+        }
+    }
+
+    private static Reply readReply(String json) throws IOException {
+        Reply reply = new Reply();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "status":
+                        reply.status = reader.nextString();
+                        break;
+                    case "error":
+                        reply.error = reader.nextString();
+                        break;
+                    case "code":
+                        reply.code = reader.nextString();
+                        break;
+                    case "retryAfterMs":
+                        reply.retryAfterMillis = reader.nextLong();
+                        break;
+                    case "progress":
+                        reply.progress = true;
+                        reader.skipValue();
+                        break;
+                    case "inserted":
+                        reply.inserted = reader.nextLong();
+                        reply.uploaded = true;
+                        break;
+                    case "updated":
+                        reply.updated = reader.nextLong();
+                        break;
+                    case "unchanged":
+                        reply.unchanged = reader.nextLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed reply: " + e.getMessage());
+        }
+        return reply;
+    }
+
+    // The fields the client looks at in JSON replies (acknowledgements, errors, upload messages)
+    private static final class Reply {
+        private String status;
+        private String error;
+        private String code;
+        private long retryAfterMillis;
+        private boolean progress;
+        private boolean uploaded;
+        private long inserted;
+        private long updated;
+        private long unchanged;
+
+        ServerException toException() {
+            return new ServerException(error, code, retryAfterMillis);
+        }
+    }
+
+    private static final class Request {
+        private final String json; // The request object, serialized by the caller's thread
+        private final byte expects; // The frame type of a successful answer
+        private final long deadline;
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private boolean upload;
+        private long sentAt;
+
+        Request(String json, byte expects, long deadline) {
+            this.json = json;
+            this.expects = expects;
+            this.deadline = deadline;
+        }
+    }
+
+    // A pooled connection (binary frames), or the connection of one upload (JSON lines); only used on the I/O thread
+    private final class Connection {
+        private final Request upload;
+        private final LinkedHashMap<Long, Request> inFlight = new LinkedHashMap<>(); // In the order they were sent
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        private SocketChannel channel; // Null while closed
+        private SelectionKey key;
+        private boolean handshakePending; // Nothing sent on it has been answered yet
+        private long connectDeadline;
+        private long lastReadAt;
+        private long reconnectAt;
+        private int failures;
+        private String closeReason; // An error the server sent without an id, just before closing
+
+        Connection(Request upload) {
+            this.upload = upload;
+        }
+
+        void open(long now) {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                boolean connected = channel.connect(new InetSocketAddress(host, port));
+                key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                connectDeadline = connected ? 0 : now + connectTimeoutMillis;
+                handshakePending = true;
+                closeReason = null;
+                in.clear();
+                if (upload != null) {
+                    outbound.add(line(upload.json)); // The admin handshake carries the upload
+                } else {
+                    JsonObject handshake = new JsonObject();
+                    handshake.addProperty("role", role);
+                    handshake.addProperty("username", username);
+                    if (secret != null) {
+                        handshake.addProperty("secret", secret);
+                    }
+                    handshake.addProperty("pipelined", true);
+                    handshake.addProperty("protocol", "binary");
+                    handshake.addProperty("id", HANDSHAKE_ID);
+                    outbound.add(line(handshake.toString()));
+                }
+            } catch (IOException e) {
+                fail(e, true, now);
+            }
+        }
+
+        void send(Request request, long now) {
+            long id = nextId++;
+            request.sentAt = now;
+            inFlight.put(id, request);
+            outbound.add(line("{\"id\":" + id + (request.json.length() > 2 ? "," : "") + request.json.substring(1)));
+        }
+
+        private ByteBuffer line(String json) {
+            return ByteBuffer.wrap((json + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void handle(SelectionKey key, long now) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isConnectable() && channel.finishConnect()) {
+                    connectDeadline = 0;
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(now);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(now);
+                }
+            } catch (IOException e) {
+                fail(e, true, now);
+            }
+        }
+
+        // Writes what the socket takes; everything queued goes out with as few system calls as possible
+        void flush(long now) {
+            if (channel == null || !channel.isConnected() || outbound.isEmpty()) {
+                return;
+            }
+            try {
+                ByteBuffer[] buffers = outbound.toArray(new ByteBuffer[0]);
+                channel.write(buffers);
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    outbound.poll();
+                }
+                key.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                fail(e, true, now);
+            }
+        }
+
+        private void read(long now) throws IOException {
+            int read = channel.read(in);
+            if (read < 0) {
+                throw new IOException("Connection closed by the server" + (closeReason != null ? ": " + closeReason : ""));
+            }
+            lastReadAt = now;
+            in.flip();
+            if (upload != null) {
+                readLines();
+            } else {
+                readFrames();
+            }
+            if (channel == null) {
+                return; // Done (an upload finished) or failed while reading
+            }
+            in.compact();
+        }
+
+        private void readFrames() throws IOException {
+            while (in.remaining() >= 4) {
+                if (in.get(in.position()) == '{') {
+                    readLines(); // Refused before the session started: a JSON line, not a frame
+                    return;
+                }
+                int length = in.getInt(in.position());
+                if (length < 3 || length > MAX_FRAME_BYTES) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    if (4 + length > in.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(Math.max(4 + length, in.capacity() * 2));
+                        larger.put(in);
+                        larger.flip();
+                        in = larger;
+                    }
+                    return;
+                }
+                int end = in.position() + 4 + length;
+                in.position(in.position() + 4);
+                byte type = in.get();
+                long id = readId();
+                Request request = id < 0 ? null : inFlight.remove(id);
+                if (id == HANDSHAKE_ID) {
+                    handshakePending = false;
+                    failures = 0;
+                } else if (type == BinaryProtocol.FRAME_JSON && request != null && request.expects == EXPECTS_TEXT) {
+                    handshakePending = false;
+                    request.future.complete(BinaryProtocol.readUtf8(in, end - in.position())); // Errors included
+                } else if (type == BinaryProtocol.FRAME_JSON) {
+                    Reply reply = readReply(BinaryProtocol.readUtf8(in, end - in.position()));
+                    if (id < 0 && reply.error != null) {
+                        closeReason = reply.error; // Turned away (a timeout), the connection closes next
+                    } else if (request != null) {
+                        handshakePending = false;
+                        if (reply.error != null) {
+                            request.future.completeExceptionally(reply.toException());
+                        } else if (request.expects == BinaryProtocol.FRAME_JSON) {
+                            request.future.complete(null);
+                        } else {
+                            request.future.completeExceptionally(new IOException("Unexpected answer: " + reply.status));
+                        }
+                    }
+                } else if (request != null) {
+                    handshakePending = false;
+                    if (type == BinaryProtocol.FRAME_WEATHER && request.expects == type) {
+                        request.future.complete(BinaryProtocol.readWeather(in));
+                    } else if (type == BinaryProtocol.FRAME_WEATHER_BATCH && request.expects == type) {
+                        request.future.complete(BinaryProtocol.readWeatherBatch(in));
+                    } else {
+                        request.future.completeExceptionally(new IOException("Unexpected frame type " + type));
+                    }
+                }
+                in.position(end); // Pushes and answers to timed out requests are skipped whole
+            }
+        }
+
+        // The id of pipelined requests is a number in JSON text; -1 when there is none
+        private long readId() throws IOException {
+            int length = in.getShort() & 0xffff;
+            if (length == 0 || length == 0xffff) {
+                return -1;
+            }
+            if (length > in.remaining()) {
+                throw new IOException("Truncated frame id");
+            }
+            long id = 0;
+            for (int i = 0; i < length; i++) {
+                byte digit = in.get();
+                if (digit < '0' || digit > '9') {
+                    id = -1;
+                } else if (id >= 0) {
+                    id = id * 10 + (digit - '0');
+                }
+            }
+            return id;
+        }
+
+        // Upload progress and the final message, or an error line that turned a pooled connection away
+        private void readLines() throws IOException {
+            int start = in.position();
+            for (int i = start; i < in.limit(); i++) {
+                if (in.get(i) != '\n') {
+                    continue;
+                }
+                in.position(start);
+                Reply reply = readReply(BinaryProtocol.readUtf8(in, i - start));
+                in.position(i + 1);
+                start = i + 1;
+                if (upload == null) {
+                    if (reply.error != null) {
+                        throw reply.toException();
+                    }
+                } else if (reply.error != null) {
+                    fail(reply.toException(), false, 0); // The server would wait for another path; this upload is over
+                    return;
+                } else if (reply.uploaded) {
+                    upload.future.complete(new UploadResult(reply.inserted, reply.updated, reply.unchanged));
+                    close();
+                    return;
+                }
+            }
+            in.position(start);
+        }
+
+        void expire(long now) {
+            if (channel == null) {
+                return;
+            }
+            if (connectDeadline != 0 && now >= connectDeadline) {
+                fail(new IOException("Connect timed out after " + connectTimeoutMillis + " ms"), true, now);
+                return;
+            }
+            if (upload != null) {
+                if (now >= upload.deadline) {
+                    fail(new TimeoutException("Upload not finished within its timeout"), false, now);
+                }
+                return;
+            }
+            for (Iterator<Request> it = inFlight.values().iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (now < request.deadline) {
+                    break;
+                }
+                it.remove();
+                request.future.completeExceptionally(new TimeoutException("No answer within " + requestTimeoutMillis + " ms"));
+                if (lastReadAt < request.sentAt) {
+                    // Nothing at all has come back since it was sent: presume the connection dead and open another
+                    fail(new IOException("Connection stopped answering"), true, now);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Closes the connection and fails its requests. Requests on a connection that never got an
+         * answer were not seen by the server, so with {@code retry} they go back to wait for another.
+         */
+        void fail(Exception error, boolean retry, long now) {
+            if (upload != null) {
+                upload.future.completeExceptionally(error);
+            } else if (retry) {
+                lastError = error.getMessage();
+                failures++;
+                reconnectAt = now + Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(failures - 1, 10));
+            }
+            List<Request> unanswered = new ArrayList<>(inFlight.values());
+            inFlight.clear();
+            if (retry && handshakePending) {
+                for (int i = unanswered.size() - 1; i >= 0; i--) {
+                    waiting.addFirst(unanswered.get(i));
+                }
+            } else {
+                IOException lost = error instanceof IOException ? (IOException) error
+                        : new IOException(error.getMessage(), error);
+                unanswered.forEach(request -> request.future.completeExceptionally(lost));
+            }
+            close();
+        }
+
+        private void close() {
+            if (channel == null) {
+                return;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warning("Error while closing a connection: " + e.getMessage());
+            }
+            channel = null;
+            outbound.clear();
+            in = ByteBuffer.allocate(64 * 1024);
+        }
+    }
+
+    // The weather of one location, as the binary protocol carries it
+    public static final class Weather {
+        private final String location;
+        private final String currentWeather;
+        private final double currentTemperature;
+        private final List<ForecastDay> forecast;
+        private final String forecastJson;
+
+        Weather(String location, String currentWeather, double currentTemperature, List<ForecastDay> forecast, String forecastJson) {
+            this.location = location;
+            this.currentWeather = currentWeather;
+            this.currentTemperature = currentTemperature;
+            this.forecast = forecast;
+            this.forecastJson = forecastJson;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public String getCurrentWeather() {
+            return currentWeather;
+        }
+
+        public double getCurrentTemperature() {
+            return currentTemperature;
+        }
+
+        // Empty when there is no forecast, or when it doesn't have the usual day list (see getForecastJson)
+        public List<ForecastDay> getForecast() {
+            return forecast;
+        }
+
+        // The forecast as stored, only for forecasts that aren't a list of days; null otherwise
+        public String getForecastJson() {
+            return forecastJson;
+        }
+
+        @Override
+        public String toString() {
+            return location + ": " + currentWeather + ", " + currentTemperature + "°C, forecast " + (forecastJson != null ? forecastJson : forecast);
+        }
+    }
+
+    public static final class ForecastDay {
+        private final String weather;
+        private final double temperature;
+
+        ForecastDay(String weather, double temperature) {
+            this.weather = weather;
+            this.temperature = temperature;
+        }
+
+        public String getWeather() {
+            return weather;
+        }
+
+        public double getTemperature() {
+            return temperature;
+        }
+
+        @Override
+        public String toString() {
+            return weather + " " + temperature + "°C";
+        }
+    }
+
+    public static final class UploadResult {
+        private final long inserted;
+        private final long updated;
+        private final long unchanged;
+
+        UploadResult(long inserted, long updated, long unchanged) {
+            this.inserted = inserted;
+            this.updated = updated;
+            this.unchanged = unchanged;
+        }
+
+        public long getInserted() {
+            return inserted;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+
+        public long getUnchanged() {
+            return unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return inserted + " inserted, " + updated + " updated, " + unchanged + " unchanged";
+        }
+    }
+
+    // An error answered by the server; the code is one of AdmissionControl's, or null for a failed request
+    public static class ServerException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final String code;
+        private final long retryAfterMillis;
+
+        public ServerException(String message, String code, long retryAfterMillis) {
+            super(message);
+            this.code = code;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        // How long to wait before trying again, for RATE_LIMITED; 0 otherwise
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+}
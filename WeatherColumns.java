@@ -0,0 +1,492 @@
+package org.example;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * The weather of every location in columns, for questions across locations (hottest places, where
+ * rain is forecast, average forecast temperature per condition) that would otherwise mean a full
+ * table scan and parsing every forecast.
+ *
+ * <p>Each location is a row number into parallel arrays: current temperature, current condition.
+ * Conditions are dictionary-encoded as small ints. Forecasts are flattened into two shared arrays
+ * (temperature, condition code) and each row points at its days with a start and a length; a
+ * forecast that grows is appended at the end and the old days become garbage, compacted away once
+ * there is more garbage than forecast. Queries are parallel streams over row numbers that
+ * accumulate into primitive arrays, so a scan allocates nothing per row.
+ *
+ * <p>Rows are added and changed by uploads (and the startup load) under a write lock; queries hold
+ * the read lock while they run.
+ */
+public class WeatherColumns implements WeatherUpdateListener {
+    private static final long MASK_OVERFLOW = 1L << 63;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Everything below is guarded by lock
+    private final Map<String, Integer> rows = new HashMap<>();
+    private final Map<String, Integer> conditionCodes = new HashMap<>();
+    private final List<String> conditions = new ArrayList<>();
+    private String[] locations = new String[1024];
+    private double[] temperatures = new double[1024];
+    private int[] currentConditions = new int[1024];
+    private int[] forecastStart = new int[1024];
+    private int[] forecastDays = new int[1024];
+    // Per row, bit c set if some forecast day has condition code c; MASK_OVERFLOW stands for every code from 63 up
+    private long[] forecastMasks = new long[1024];
+    private double[] forecastTemperatures = new double[4096];
+    private int[] forecastConditions = new int[4096];
+    private int forecastEnd; // Used length of the forecast arrays, garbage included
+    private int forecastLive; // Days that belong to a current forecast
+    private int size;
+
+    // A location and its current temperature, as ranked by hottest/coldest
+    public static final class RankedLocation {
+        private final String location;
+        private final double temperature;
+
+        RankedLocation(String location, double temperature) {
+            this.location = location;
+            this.temperature = temperature;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public double getTemperature() {
+            return temperature;
+        }
+    }
+
+    // Average forecast temperature over every forecast day with one condition
+    public static final class ConditionAverage {
+        private final String condition;
+        private final double averageTemperature;
+        private final long days;
+
+        ConditionAverage(String condition, double averageTemperature, long days) {
+            this.condition = condition;
+            this.averageTemperature = averageTemperature;
+            this.days = days;
+        }
+
+        public String getCondition() {
+            return condition;
+        }
+
+        public double getAverageTemperature() {
+            return averageTemperature;
+        }
+
+        public long getDays() {
+            return days;
+        }
+    }
+
+    @Override
+    public void onWeatherUpdated(List<WeatherRecord> records) {
+        update(records);
+    }
+
+    // Forecasts are parsed before taking the lock, queries only wait for the array updates
+    public void update(Collection<WeatherRecord> records) {
+        List<Forecast> forecasts = new ArrayList<>(records.size());
+        for (WeatherRecord record : records) {
+            forecasts.add(Forecast.parse(record.getForecastJson()));
+        }
+        lock.writeLock().lock();
+        try {
+            int i = 0;
+            for (WeatherRecord record : records) {
+                set(record, forecasts.get(i++));
+            }
+            if (forecastEnd - forecastLive > forecastLive) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void set(WeatherRecord record, Forecast forecast) {
+        Integer existing = rows.get(record.getLocation());
+        int row;
+        if (existing != null) {
+            row = existing;
+        } else {
+            if (size == locations.length) {
+                int capacity = size * 2;
+                locations = Arrays.copyOf(locations, capacity);
+                temperatures = Arrays.copyOf(temperatures, capacity);
+                currentConditions = Arrays.copyOf(currentConditions, capacity);
+                forecastStart = Arrays.copyOf(forecastStart, capacity);
+                forecastDays = Arrays.copyOf(forecastDays, capacity);
+                forecastMasks = Arrays.copyOf(forecastMasks, capacity);
+            }
+            row = size++;
+            rows.put(record.getLocation(), row);
+            locations[row] = record.getLocation();
+            forecastStart[row] = forecastEnd;
+            forecastDays[row] = 0;
+        }
+        temperatures[row] = record.getCurrentTemperature();
+        currentConditions[row] = code(record.getCurrentWeather());
+
+        // A forecast that fits where the old one was is overwritten in place
+        if (forecast.days > forecastDays[row]) {
+            if (forecastEnd + forecast.days > forecastTemperatures.length) {
+                int capacity = Math.max(forecastTemperatures.length * 2, forecastEnd + forecast.days);
+                forecastTemperatures = Arrays.copyOf(forecastTemperatures, capacity);
+                forecastConditions = Arrays.copyOf(forecastConditions, capacity);
+            }
+            Arrays.fill(forecastConditions, forecastStart[row], forecastStart[row] + forecastDays[row], -1);
+            forecastStart[row] = forecastEnd;
+            forecastEnd += forecast.days;
+        }
+        int start = forecastStart[row];
+        long mask = 0;
+        for (int day = 0; day < forecast.days; day++) {
+            int code = code(forecast.conditions[day]);
+            forecastTemperatures[start + day] = forecast.temperatures[day];
+            forecastConditions[start + day] = code;
+            mask |= maskBit(code);
+        }
+        forecastMasks[row] = mask;
+        // Days the forecast no longer has become garbage
+        Arrays.fill(forecastConditions, start + forecast.days, start + Math.max(forecast.days, forecastDays[row]), -1);
+        forecastLive += forecast.days - forecastDays[row];
+        forecastDays[row] = forecast.days;
+    }
+
+    // -1 for a missing condition; garbage forecast days are -1 too, so scans can skip them without looking at rows
+    private int code(String condition) {
+        if (condition == null) {
+            return -1;
+        }
+        Integer code = conditionCodes.get(condition);
+        if (code == null) {
+            code = conditions.size();
+            conditions.add(condition);
+            conditionCodes.put(condition, code);
+        }
+        return code;
+    }
+
+    private static long maskBit(int code) {
+        return code < 63 ? 1L << code : MASK_OVERFLOW;
+    }
+
+    // Copies every row's forecast to the front, in row order, dropping the garbage
+    private void compact() {
+        double[] compactTemperatures = new double[Math.max(4096, forecastLive * 2)];
+        int[] compactConditions = new int[compactTemperatures.length];
+        int end = 0;
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(forecastTemperatures, forecastStart[row], compactTemperatures, end, forecastDays[row]);
+            System.arraycopy(forecastConditions, forecastStart[row], compactConditions, end, forecastDays[row]);
+            forecastStart[row] = end;
+            end += forecastDays[row];
+        }
+        forecastTemperatures = compactTemperatures;
+        forecastConditions = compactConditions;
+        forecastEnd = end;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The 'limit' hottest (or coldest) locations by current temperature, hottest (coldest) first. A
+     * non-null condition only ranks locations whose current weather is that condition (ignoring case).
+     */
+    public List<RankedLocation> rankByTemperature(int limit, boolean coldest, String condition) {
+        lock.readLock().lock();
+        try {
+            boolean[] wanted = condition == null ? null : matchingCodes(condition);
+            double sign = coldest ? -1 : 1;
+            double[] temperatures = this.temperatures; // Locals, so the scan doesn't reload the fields
+            int[] currentConditions = this.currentConditions;
+            TopN top = IntStream.range(0, size).parallel().collect(() -> new TopN(limit), (partial, row) -> {
+                int code = currentConditions[row];
+                if (wanted == null || (code >= 0 && wanted[code])) {
+                    partial.offer(row, sign * temperatures[row]);
+                }
+            }, TopN::addAll);
+            List<RankedLocation> ranked = new ArrayList<>(top.count);
+            for (int row : top.sortedRows()) {
+                ranked.add(new RankedLocation(locations[row], temperatures[row]));
+            }
+            return ranked;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Locations with at least one forecast day of the given condition (ignoring case), in the order
+     * they were first stored. Returns the number of such locations and the names of the first 'limit'.
+     */
+    public int findByForecast(String condition, int limit, List<String> firstLocations) {
+        lock.readLock().lock();
+        try {
+            boolean[] wanted = matchingCodes(condition);
+            long wantedMask = 0;
+            for (int code = 0; code < wanted.length; code++) {
+                wantedMask |= wanted[code] ? maskBit(code) : 0;
+            }
+            long[] forecastMasks = this.forecastMasks;
+            int[] forecastStart = this.forecastStart;
+            int[] forecastDays = this.forecastDays;
+            int[] forecastConditions = this.forecastConditions;
+            long exactBits = wantedMask & ~MASK_OVERFLOW;
+            boolean checkOverflow = (wantedMask & MASK_OVERFLOW) != 0;
+            FirstMatches matches = IntStream.range(0, size).parallel().filter(row -> {
+                long mask = forecastMasks[row];
+                if ((mask & exactBits) != 0) {
+                    return true;
+                }
+                if (!checkOverflow || (mask & MASK_OVERFLOW) == 0) {
+                    return false;
+                }
+                // Rare: a condition past the first 63, look at the days themselves
+                int end = forecastStart[row] + forecastDays[row];
+                for (int i = forecastStart[row]; i < end; i++) {
+                    int code = forecastConditions[i];
+                    if (code >= 0 && wanted[code]) {
+                        return true;
+                    }
+                }
+                return false;
+            }).collect(() -> new FirstMatches(limit), FirstMatches::add, FirstMatches::addAll);
+            for (int i = 0; i < matches.kept; i++) {
+                firstLocations.add(locations[matches.rows[i]]);
+            }
+            return matches.count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Average forecast temperature per condition over every location's forecast, most frequent condition first
+    public List<ConditionAverage> forecastAverages() {
+        lock.readLock().lock();
+        try {
+            int codes = conditions.size();
+            int[] forecastConditions = this.forecastConditions;
+            double[] forecastTemperatures = this.forecastTemperatures;
+            // {sum of temperatures, number of days} per condition code, straight over the flattened days
+            double[] totals = IntStream.range(0, forecastEnd).parallel().collect(() -> new double[codes * 2], (partial, i) -> {
+                int code = forecastConditions[i];
+                if (code >= 0) {
+                    partial[code * 2] += forecastTemperatures[i];
+                    partial[code * 2 + 1]++;
+                }
+            }, (left, right) -> {
+                for (int i = 0; i < left.length; i++) {
+                    left[i] += right[i];
+                }
+            });
+            List<ConditionAverage> averages = new ArrayList<>();
+            for (int code = 0; code < codes; code++) {
+                long days = (long) totals[code * 2 + 1];
+                if (days > 0) {
+                    averages.add(new ConditionAverage(conditions.get(code), totals[code * 2] / days, days));
+                }
+            }
+            averages.sort((a, b) -> Long.compare(b.days, a.days));
+            return averages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Which condition codes spell the given condition, ignoring case ("rainy" and "Rainy" are one condition)
+    private boolean[] matchingCodes(String condition) {
+        boolean[] wanted = new boolean[conditions.size()];
+        for (int code = 0; code < wanted.length; code++) {
+            wanted[code] = conditions.get(code).equalsIgnoreCase(condition);
+        }
+        return wanted;
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "WeatherColumns[rows=" + size + ", conditions=" + conditions.size() + ", forecastDays=" + forecastLive + "]";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The 'limit' rows with the largest values seen so far: a min-heap on value
+    private static final class TopN {
+        private final int[] rows;
+        private final double[] values;
+        private int count;
+
+        TopN(int limit) {
+            this.rows = new int[limit];
+            this.values = new double[limit];
+        }
+
+        void offer(int row, double value) {
+            if (count < rows.length) {
+                int i = count++;
+                while (i > 0 && values[(i - 1) / 2] > value) {
+                    rows[i] = rows[(i - 1) / 2];
+                    values[i] = values[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                rows[i] = row;
+                values[i] = value;
+                return;
+            }
+            if (count == 0 || !(value > values[0])) {
+                return; // NaN never makes it in
+            }
+            // Replace the smallest and sift down
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= count) {
+                    break;
+                }
+                if (child + 1 < count && values[child + 1] < values[child]) {
+                    child++;
+                }
+                if (values[child] >= value) {
+                    break;
+                }
+                rows[i] = rows[child];
+                values[i] = values[child];
+                i = child;
+            }
+            rows[i] = row;
+            values[i] = value;
+        }
+
+        void addAll(TopN other) {
+            for (int i = 0; i < other.count; i++) {
+                offer(other.rows[i], other.values[i]);
+            }
+        }
+
+        // Largest value first
+        int[] sortedRows() {
+            int[] sorted = new int[count];
+            Integer[] indexes = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                indexes[i] = i;
+            }
+            Arrays.sort(indexes, (a, b) -> Double.compare(values[b], values[a]));
+            for (int i = 0; i < count; i++) {
+                sorted[i] = rows[indexes[i]];
+            }
+            return sorted;
+        }
+    }
+
+    // How many rows matched, and the first 'limit' of them in row order (parallel collect combines segments in order)
+    private static final class FirstMatches {
+        private final int[] rows;
+        private int kept;
+        private int count;
+
+        FirstMatches(int limit) {
+            this.rows = new int[limit];
+        }
+
+        void add(int row) {
+            if (kept < rows.length) {
+                rows[kept++] = row;
+            }
+            count++;
+        }
+
+        void addAll(FirstMatches later) {
+            int taken = Math.min(rows.length - kept, later.kept);
+            System.arraycopy(later.rows, 0, rows, kept, taken);
+            kept += taken;
+            count += later.count;
+        }
+    }
+
+    // A forecast parsed into days; forecasts that aren't a list of {weather, temperature} days count as none
+    private static final class Forecast {
+        static final Forecast NONE = new Forecast(new double[0], new String[0], 0);
+
+        final double[] temperatures;
+        final String[] conditions;
+        final int days;
+
+        private Forecast(double[] temperatures, String[] conditions, int days) {
+            this.temperatures = temperatures;
+            this.conditions = conditions;
+            this.days = days;
+        }
+
+        static Forecast parse(String forecastJson) {
+            if (forecastJson == null) {
+                return NONE;
+            }
+            double[] temperatures = new double[8];
+            String[] conditions = new String[8];
+            int days = 0;
+            try (JsonReader reader = new JsonReader(new StringReader(forecastJson))) {
+                if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    return NONE;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String condition = null;
+                    double temperature = Double.NaN;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "weather":
+                                condition = reader.nextString();
+                                break;
+                            case "temperature":
+                                temperature = reader.nextDouble();
+                                break;
+                            default:
+                                reader.skipValue();
+                                break;
+                        }
+                    }
+                    reader.endObject();
+                    if (condition == null || Double.isNaN(temperature)) {
+                        return NONE;
+                    }
+                    if (days == temperatures.length) {
+                        temperatures = Arrays.copyOf(temperatures, days * 2);
+                        conditions = Arrays.copyOf(conditions, days * 2);
+                    }
+                    temperatures[days] = temperature;
+                    conditions[days++] = condition;
+                }
+                reader.endArray();
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                return NONE;
+            }
+            return new Forecast(temperatures, conditions, days);
+        }
+    }
+}
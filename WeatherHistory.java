@@ -0,0 +1,997 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History of the current temperature of every location. Each uploaded record is one observation,
+ * timed by its {@code observed_at} or else by the upload. Observations are grouped into time
+ * partitions (a UTC day by default) and compressed per location the Gorilla way: timestamps as
+ * deltas of deltas, temperatures XORed with the previous one, so a steady per-minute feed takes one
+ * or two bytes per observation.
+ *
+ * <ul>
+ *   <li>Partitions still being written live in memory and are checkpointed to
+ *       {@code open-<start>.hist} every flush interval and at shutdown, so a crash loses at most one
+ *       interval.</li>
+ *   <li>A partition that has ended and was not written to for a flush interval is sealed: written
+ *       once to {@code part-<start>-<n>.hist}, memory-mapped and dropped from the heap. Late
+ *       observations for a sealed period start a new partition, sealed later as the next file.</li>
+ * </ul>
+ *
+ * Every block in a file records its count, time span and min/max/sum, so summaries over whole
+ * blocks don't decode them. Queries decode one block at a time and hold no more than their result.
+ */
+public class WeatherHistory implements AutoCloseable {
+    private static final java.util.logging.Logger LOGGER = java.util.logging.Logger.getLogger(WeatherHistory.class.getName());
+    private static final int FILE_MAGIC = 0x57485354; // "WHST"
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int ENTRY_BYTES = 64;
+    private static final String LOCATIONS_FILE = "locations.dat";
+    private static final String LOCK_FILE = "history.lock";
+
+    private final Path directory;
+    private final long partitionSeconds;
+    private final long flushIntervalSeconds;
+    private final long retentionSeconds;
+    private final int maxPoints;
+    // Location ids and the partitions in memory are guarded by lock; sealed files are only added or removed under it
+    private final Object lock = new Object();
+    private final Map<String, Integer> locationIds = new HashMap<>();
+    private final List<String> locationNames = new ArrayList<>();
+    private final TreeMap<Long, OpenPartition> open = new TreeMap<>();
+    private final TreeMap<Long, OpenPartition> sealing = new TreeMap<>(); // Removed from open, file not mapped yet
+    private final ConcurrentSkipListMap<Long, List<SealedFile>> sealed = new ConcurrentSkipListMap<>();
+    private final Object flushLock = new Object();
+    private int persistedNames; // Guarded by flushLock
+    private final ScheduledExecutorService flusher;
+    private FileLock directoryLock; // Held while open, so no other process writes to the directory
+
+    /**
+     * One observation of a range query; time in epoch seconds.
+     */
+    public static final class Observation {
+        private final long time;
+        private final double temperature;
+
+        Observation(long time, double temperature) {
+            this.time = time;
+            this.temperature = temperature;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public double getTemperature() {
+            return temperature;
+        }
+    }
+
+    /**
+     * The observations of one interval (starting at time, epoch seconds) of a summary query.
+     */
+    public static final class Summary {
+        private final long time;
+        private final int count;
+        private final double min;
+        private final double max;
+        private final double average;
+
+        Summary(long time, int count, double min, double max, double average) {
+            this.time = time;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.average = average;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+    }
+
+    /**
+     * Opens (or creates) the history in the directory. Observations older than retentionSeconds are
+     * dropped, 0 keeps everything. maxPoints bounds what one query may return (see getMaxPoints).
+     * A flush interval of 0 disables the periodic flush; flush() then seals every ended partition.
+     * Throws IllegalStateException if another history, in this process or another, has the directory open.
+     */
+    public WeatherHistory(Path directory, long partitionSeconds, long flushIntervalSeconds, long retentionSeconds, int maxPoints) throws IOException {
+        if (partitionSeconds <= 0 || partitionSeconds > TimeUnit.DAYS.toSeconds(366)) {
+            throw new IllegalArgumentException("The partition length must be between 1 second and a year");
+        }
+        this.directory = directory;
+        this.partitionSeconds = partitionSeconds;
+        this.flushIntervalSeconds = flushIntervalSeconds;
+        this.retentionSeconds = retentionSeconds;
+        this.maxPoints = maxPoints;
+        recover();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "history-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (flushIntervalSeconds > 0) {
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // The most observations or intervals one query may return
+    public int getMaxPoints() {
+        return maxPoints;
+    }
+
+    // Records the temperature of each record at its observed_at, or at uploadedAt (epoch seconds) if it has none
+    public void record(List<WeatherRecord> records, long uploadedAt) {
+        long now = now();
+        long oldest = retentionSeconds > 0 ? now - retentionSeconds : Long.MIN_VALUE;
+        int recorded = 0;
+        synchronized (lock) {
+            for (WeatherRecord record : records) {
+                long time = record.getObservedAt() != 0 ? record.getObservedAt() : uploadedAt;
+                if (time < oldest) {
+                    continue; // Would be deleted with its partition anyway
+                }
+                long start = partitionStart(time);
+                OpenPartition partition = open.get(start);
+                if (partition == null) {
+                    partition = new OpenPartition(start);
+                    open.put(start, partition);
+                }
+                partition.append(locationId(record.getLocation()), time, record.getCurrentTemperature());
+                partition.lastWriteSeconds = now;
+                recorded++;
+            }
+        }
+        Metrics.HISTORY_OBSERVATIONS.add(recorded);
+    }
+
+    private int locationId(String location) {
+        Integer id = locationIds.get(location);
+        if (id == null) {
+            id = locationNames.size();
+            locationIds.put(location, id);
+            locationNames.add(location);
+        }
+        return id;
+    }
+
+    private long partitionStart(long time) {
+        return Math.floorDiv(time, partitionSeconds) * partitionSeconds;
+    }
+
+    /**
+     * The observations of a location from 'from' to 'to' (epoch seconds, inclusive), oldest first,
+     * at most limit of them.
+     */
+    public List<Observation> range(String location, long from, long to, int limit) {
+        List<Observation> observations = new ArrayList<>();
+        for (List<Block> partition : blocks(location, from, to).values()) {
+            List<Observation> inPartition = new ArrayList<>();
+            for (Block block : partition) {
+                BlockDecoder decoder = new BlockDecoder(block);
+                while (decoder.next()) {
+                    if (decoder.time >= from && decoder.time <= to) {
+                        inPartition.add(new Observation(decoder.time, decoder.value));
+                    }
+                }
+            }
+            if (partition.size() > 1) {
+                inPartition.sort(Comparator.comparingLong(Observation::getTime)); // Late observations went to blocks of their own
+            }
+            for (Observation observation : inPartition) {
+                observations.add(observation);
+                if (observations.size() == limit) {
+                    return observations;
+                }
+            }
+        }
+        return observations;
+    }
+
+    // How many intervals of intervalSeconds a summary from 'from' to 'to' spans
+    public static long intervals(long from, long to, long intervalSeconds) {
+        return Math.floorDiv(to, intervalSeconds) - Math.floorDiv(from, intervalSeconds) + 1;
+    }
+
+    /**
+     * Min/max/average of the observations of a location from 'from' to 'to' (epoch seconds,
+     * inclusive) per interval of intervalSeconds, aligned to the epoch (so to UTC hours and days).
+     * Intervals without observations are left out. Check intervals() first: memory grows with it.
+     */
+    public List<Summary> summarize(String location, long from, long to, long intervalSeconds) {
+        long first = Math.floorDiv(from, intervalSeconds);
+        int intervals = (int) intervals(from, to, intervalSeconds);
+        int[] counts = new int[intervals];
+        double[] mins = new double[intervals];
+        double[] maxes = new double[intervals];
+        double[] sums = new double[intervals];
+        for (List<Block> partition : blocks(location, from, to).values()) {
+            for (Block block : partition) {
+                int interval = (int) (Math.floorDiv(block.firstTime, intervalSeconds) - first);
+                if (block.firstTime >= from && block.lastTime <= to && Math.floorDiv(block.lastTime, intervalSeconds) - first == interval) {
+                    // Entirely inside one interval: the block's own summary will do
+                    add(counts, mins, maxes, sums, interval, block.count, block.min, block.max, block.sum);
+                    continue;
+                }
+                BlockDecoder decoder = new BlockDecoder(block);
+                while (decoder.next()) {
+                    if (decoder.time >= from && decoder.time <= to) {
+                        add(counts, mins, maxes, sums, (int) (Math.floorDiv(decoder.time, intervalSeconds) - first), 1, decoder.value, decoder.value, decoder.value);
+                    }
+                }
+            }
+        }
+        List<Summary> summaries = new ArrayList<>();
+        for (int i = 0; i < intervals; i++) {
+            if (counts[i] > 0) {
+                summaries.add(new Summary((first + i) * intervalSeconds, counts[i], mins[i], maxes[i], sums[i] / counts[i]));
+            }
+        }
+        return summaries;
+    }
+
+    private static void add(int[] counts, double[] mins, double[] maxes, double[] sums, int i, int count, double min, double max, double sum) {
+        if (counts[i] == 0) {
+            mins[i] = min;
+            maxes[i] = max;
+        } else {
+            mins[i] = Math.min(mins[i], min);
+            maxes[i] = Math.max(maxes[i], max);
+        }
+        counts[i] += count;
+        sums[i] += sum;
+    }
+
+    // The blocks of the location that overlap the range, by partition start. Open blocks are copied, sealed ones are views of the files
+    private NavigableMap<Long, List<Block>> blocks(String location, long from, long to) {
+        TreeMap<Long, List<Block>> blocks = new TreeMap<>();
+        if (from > to) {
+            return blocks;
+        }
+        long firstStart = partitionStart(from);
+        long lastStart = partitionStart(to);
+        // Under the lock a partition being sealed is either in 'sealing' or among the sealed files, never both
+        synchronized (lock) {
+            Integer id = locationIds.get(location);
+            if (id == null) {
+                return blocks;
+            }
+            for (List<SealedFile> files : sealed.subMap(firstStart, true, lastStart, true).values()) {
+                for (SealedFile file : files) {
+                    for (int i = file.find(id); i < file.blocks && file.locationId(i) == id; i++) {
+                        addIfOverlapping(blocks, file.start, file.block(i), from, to);
+                    }
+                }
+            }
+            for (TreeMap<Long, OpenPartition> partitions : Arrays.asList(sealing, open)) {
+                for (OpenPartition partition : partitions.subMap(firstStart, true, lastStart, true).values()) {
+                    List<BlockEncoder> encoders = partition.series.get(id);
+                    if (encoders != null) {
+                        for (BlockEncoder encoder : encoders) {
+                            if (encoder.lastTime >= from && encoder.firstTime <= to) {
+                                addIfOverlapping(blocks, partition.start, encoder.toBlock(), from, to);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return blocks;
+    }
+
+    private static void addIfOverlapping(TreeMap<Long, List<Block>> blocks, long start, Block block, long from, long to) {
+        if (block.lastTime >= from && block.firstTime <= to) {
+            blocks.computeIfAbsent(start, key -> new ArrayList<>()).add(block);
+        }
+    }
+
+    private long now() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            LOGGER.warning("History flush failed, will retry: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Seals the partitions that have ended and were idle for a flush interval, checkpoints the other
+     * changed ones and deletes the files past the retention.
+     */
+    public void flush() throws IOException {
+        flush(false);
+    }
+
+    private void flush(boolean closing) throws IOException {
+        synchronized (flushLock) {
+            long start = System.nanoTime();
+            long now = now();
+            List<OpenPartition> toSeal = new ArrayList<>();
+            Map<Long, List<IdBlock>> toCheckpoint = new TreeMap<>();
+            Map<Long, List<IdBlock>> sealContents = new HashMap<>();
+            List<String> newNames;
+            synchronized (lock) {
+                newNames = new ArrayList<>(locationNames.subList(persistedNames, locationNames.size()));
+                for (Iterator<OpenPartition> it = open.values().iterator(); it.hasNext(); ) {
+                    OpenPartition partition = it.next();
+                    boolean ended = partition.start + partitionSeconds <= now;
+                    if (ended && (closing || partition.lastWriteSeconds <= now - flushIntervalSeconds)) {
+                        it.remove();
+                        sealing.put(partition.start, partition);
+                        toSeal.add(partition);
+                        sealContents.put(partition.start, partition.compact());
+                    } else if (partition.dirty) {
+                        toCheckpoint.put(partition.start, partition.compact());
+                        partition.dirty = false;
+                    }
+                }
+            }
+            appendNames(newNames);
+            persistedNames += newNames.size();
+
+            for (Map.Entry<Long, List<IdBlock>> checkpoint : toCheckpoint.entrySet()) {
+                writeFile(openPath(checkpoint.getKey()), checkpoint.getKey(), checkpoint.getValue());
+            }
+            for (OpenPartition partition : toSeal) {
+                seal(partition, sealContents.get(partition.start));
+            }
+            if (retentionSeconds > 0) {
+                dropExpired(now - retentionSeconds);
+            }
+            if (!toSeal.isEmpty() || !toCheckpoint.isEmpty()) {
+                Metrics.HISTORY_FLUSH.recordSince(start);
+            }
+        }
+    }
+
+    // The new file is complete on disk before the checkpoint it replaces goes; see recover()
+    private void seal(OpenPartition partition, List<IdBlock> contents) throws IOException {
+        List<SealedFile> existing = sealed.get(partition.start);
+        int sequence = existing == null ? 0 : existing.get(existing.size() - 1).sequence + 1;
+        Path path = sealedPath(partition.start, sequence);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            writeTo(temporary, partition.start, contents);
+            Files.deleteIfExists(openPath(partition.start));
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            SealedFile file = SealedFile.map(path, sequence);
+            synchronized (lock) {
+                List<SealedFile> files = new ArrayList<>(existing == null ? new ArrayList<>() : existing);
+                files.add(file);
+                sealed.put(partition.start, files);
+                sealing.remove(partition.start);
+            }
+        } catch (IOException e) {
+            // Back to the open partitions, to be sealed by a later flush
+            synchronized (lock) {
+                sealing.remove(partition.start);
+                OpenPartition newer = open.put(partition.start, partition);
+                partition.dirty = true;
+                if (newer != null) {
+                    for (Map.Entry<Integer, List<BlockEncoder>> series : newer.series.entrySet()) {
+                        for (BlockEncoder encoder : series.getValue()) {
+                            BlockDecoder decoder = new BlockDecoder(encoder.toBlock());
+                            while (decoder.next()) {
+                                partition.append(series.getKey(), decoder.time, decoder.value);
+                            }
+                        }
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void dropExpired(long oldest) throws IOException {
+        List<SealedFile> expired = new ArrayList<>();
+        List<Long> expiredOpen;
+        synchronized (lock) {
+            for (Iterator<Map.Entry<Long, List<SealedFile>>> it = sealed.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, List<SealedFile>> entry = it.next();
+                if (entry.getKey() + partitionSeconds > oldest) {
+                    break;
+                }
+                expired.addAll(entry.getValue());
+                it.remove();
+            }
+            NavigableMap<Long, OpenPartition> old = open.headMap(partitionStart(oldest), false);
+            expiredOpen = new ArrayList<>(old.keySet());
+            old.clear();
+        }
+        for (long start : expiredOpen) {
+            Files.deleteIfExists(openPath(start));
+        }
+        // Queries still reading an expired file keep their mapping; the space is freed when it goes
+        for (SealedFile file : expired) {
+            Files.deleteIfExists(sealedPath(file.start, file.sequence));
+        }
+    }
+
+    private Path openPath(long start) {
+        return directory.resolve("open-" + start + ".hist");
+    }
+
+    private Path sealedPath(long start, int sequence) {
+        return directory.resolve("part-" + start + "-" + sequence + ".hist");
+    }
+
+    // Writes through a temporary file, so a crash leaves either the old or the new one
+    private void writeFile(Path path, long start, List<IdBlock> contents) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        writeTo(temporary, start, contents);
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Header, one fixed-size entry per block sorted by location id, then the blocks
+    private void writeTo(Path path, long start, List<IdBlock> contents) throws IOException {
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + contents.size() * ENTRY_BYTES);
+            index.putInt(FILE_MAGIC).putInt(FILE_VERSION).putLong(start).putLong(partitionSeconds).putInt(contents.size()).putInt(0);
+            long offset = index.capacity();
+            for (IdBlock entry : contents) {
+                Block block = entry.block;
+                index.putInt(entry.locationId).putInt(block.count).putLong(block.firstTime).putLong(block.lastTime)
+                        .putDouble(block.min).putDouble(block.max).putDouble(block.sum)
+                        .putLong(offset).putInt(block.data.remaining() / 8).putInt(0);
+                offset += block.data.remaining();
+            }
+            index.flip();
+            write(out, index);
+            for (IdBlock entry : contents) {
+                write(out, entry.block.data.duplicate());
+            }
+            out.force(true);
+        }
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    // Names are persisted before any file that refers to their ids
+    private void appendNames(List<String> names) throws IOException {
+        if (names.isEmpty()) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(directory.resolve(LOCATIONS_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer buffer = ByteBuffer.allocate(4 + bytes.length);
+                buffer.putInt(bytes.length).put(bytes).flip();
+                write(out, buffer);
+            }
+            out.force(true);
+        }
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        lockDirectory();
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            directoryLock.channel().close();
+            throw e;
+        }
+    }
+
+    // Two servers sharing the directory would hand out the same location ids and overwrite each other's files
+    private void lockDirectory() throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            directoryLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            directoryLock = null;
+        }
+        if (directoryLock == null) {
+            channel.close();
+            throw new IllegalStateException("The history in " + directory + " is in use by another server; give each server its own -Dhistory.dir");
+        }
+    }
+
+    private void load() throws IOException {
+        long start = System.nanoTime();
+        loadNames();
+        persistedNames = locationNames.size();
+        List<Path> checkpoints = new ArrayList<>();
+        long sealedBytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.hist*")) {
+            List<Path> paths = new ArrayList<>();
+            files.forEach(paths::add);
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // A complete sealed file whose checkpoint is gone was about to be renamed; anything else is dropped
+                    String finalName = name.substring(0, name.length() - 4);
+                    if (name.startsWith("part-") && !Files.exists(openPath(Long.parseLong(finalName.split("-")[1]))) && isComplete(path)) {
+                        Files.move(path, path.resolveSibling(finalName), StandardCopyOption.ATOMIC_MOVE);
+                        path = path.resolveSibling(finalName);
+                        name = finalName;
+                    } else {
+                        Files.delete(path);
+                        continue;
+                    }
+                }
+                if (name.startsWith("open-")) {
+                    checkpoints.add(path);
+                } else if (name.startsWith("part-")) {
+                    String[] parts = name.substring(0, name.length() - 5).split("-");
+                    SealedFile file = SealedFile.map(path, Integer.parseInt(parts[2]));
+                    sealed.computeIfAbsent(file.start, key -> new ArrayList<>()).add(file);
+                    sealedBytes += Files.size(path);
+                }
+            }
+        }
+        for (List<SealedFile> files : sealed.values()) {
+            files.sort(Comparator.comparingInt(file -> file.sequence));
+        }
+        for (Path checkpoint : checkpoints) {
+            SealedFile file = SealedFile.map(checkpoint, 0);
+            OpenPartition partition = new OpenPartition(file.start);
+            for (int i = 0; i < file.blocks; i++) {
+                BlockDecoder decoder = new BlockDecoder(file.block(i));
+                while (decoder.next()) {
+                    partition.append(file.locationId(i), decoder.time, decoder.value);
+                }
+            }
+            partition.dirty = false;
+            open.put(partition.start, partition);
+        }
+        System.out.println("History: " + locationNames.size() + " locations, " + sealed.size() + " sealed partitions ("
+                + sealedBytes / 1024 + " KB) and " + open.size() + " open ones in " + directory + ", loaded in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }
+
+    private static boolean isComplete(Path path) {
+        try {
+            SealedFile.map(path, 0);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void loadNames() throws IOException {
+        Path path = directory.resolve(LOCATIONS_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        int end = 0;
+        while (buffer.limit() - end >= 4) {
+            int length = buffer.getInt(end);
+            if (length < 0 || length > buffer.limit() - end - 4) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            buffer.position(end + 4);
+            buffer.get(bytes);
+            locationId(new String(bytes, StandardCharsets.UTF_8));
+            end += 4 + length;
+        }
+        if (end < buffer.limit()) {
+            // A name cut short by a crash; no file refers to it, names are written first
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+    }
+
+    // Observations held in memory, not yet sealed
+    public long getOpenObservations() {
+        synchronized (lock) {
+            long observations = 0;
+            for (OpenPartition partition : open.values()) {
+                observations += partition.observations;
+            }
+            return observations;
+        }
+    }
+
+    public int getSealedFiles() {
+        int files = 0;
+        for (List<SealedFile> list : sealed.values()) {
+            files += list.size();
+        }
+        return files;
+    }
+
+    // Checkpoints what is open and seals what has ended
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flush(true);
+        } catch (IOException e) {
+            LOGGER.warning("Could not flush the history on shutdown: " + e.getMessage());
+        }
+        try {
+            directoryLock.channel().close(); // Releases the lock
+        } catch (IOException e) {
+            LOGGER.warning("Could not release the history lock: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "History[open observations=" + getOpenObservations() + ", sealed files=" + getSealedFiles() + "]";
+    }
+
+    // A block with the id of its location, as written to a file
+    private static final class IdBlock {
+        final int locationId;
+        final Block block;
+
+        IdBlock(int locationId, Block block) {
+            this.locationId = locationId;
+            this.block = block;
+        }
+    }
+
+    private static final class OpenPartition {
+        final long start;
+        final Map<Integer, List<BlockEncoder>> series = new HashMap<>();
+        long observations;
+        long lastWriteSeconds;
+        boolean dirty;
+
+        OpenPartition(long start) {
+            this.start = start;
+        }
+
+        // Appends to the last block of the location; an observation older than its last one starts a new block
+        void append(int locationId, long time, double value) {
+            List<BlockEncoder> encoders = series.get(locationId);
+            if (encoders == null) {
+                encoders = new ArrayList<>(1);
+                series.put(locationId, encoders);
+            }
+            BlockEncoder last = encoders.isEmpty() ? null : encoders.get(encoders.size() - 1);
+            if (last == null || time < last.lastTime) {
+                encoders.add(new BlockEncoder(time, value));
+            } else {
+                last.append(time, value);
+            }
+            observations++;
+            dirty = true;
+        }
+
+        // Every location as one time-ordered block (merging any late blocks), sorted by location id
+        List<IdBlock> compact() {
+            List<IdBlock> blocks = new ArrayList<>(series.size());
+            for (Map.Entry<Integer, List<BlockEncoder>> entry : series.entrySet()) {
+                List<BlockEncoder> encoders = entry.getValue();
+                if (encoders.size() > 1) {
+                    BlockEncoder merged = merge(encoders);
+                    encoders.clear();
+                    encoders.add(merged);
+                }
+                blocks.add(new IdBlock(entry.getKey(), encoders.get(0).toBlock()));
+            }
+            blocks.sort(Comparator.comparingInt(block -> block.locationId));
+            return blocks;
+        }
+
+        private static BlockEncoder merge(List<BlockEncoder> encoders) {
+            List<Observation> observations = new ArrayList<>();
+            for (BlockEncoder encoder : encoders) {
+                BlockDecoder decoder = new BlockDecoder(encoder.toBlock());
+                while (decoder.next()) {
+                    observations.add(new Observation(decoder.time, decoder.value));
+                }
+            }
+            observations.sort(Comparator.comparingLong(Observation::getTime));
+            BlockEncoder merged = new BlockEncoder(observations.get(0).time, observations.get(0).temperature);
+            for (int i = 1; i < observations.size(); i++) {
+                merged.append(observations.get(i).time, observations.get(i).temperature);
+            }
+            return merged;
+        }
+    }
+
+    // A compressed run of observations of one location, in time order
+    private static final class Block {
+        final int count;
+        final long firstTime;
+        final long lastTime;
+        final double min;
+        final double max;
+        final double sum;
+        final ByteBuffer data; // Big-endian 64-bit words
+
+        Block(int count, long firstTime, long lastTime, double min, double max, double sum, ByteBuffer data) {
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Gorilla encoding. The first value is stored whole (the first time is in the block's entry); then
+     * each timestamp as the change of its delta: '0' for none, '10' + 7 bits, '110' + 9 bits, '1110' +
+     * 12 bits, '1111' + 64 bits; and each value XORed with the previous one: '0' for equal, '10' +
+     * the meaningful bits if they fit the previous window of leading/trailing zeros, '11' + 5 bits of
+     * leading zeros + 6 bits of length + the meaningful bits otherwise.
+     */
+    private static final class BlockEncoder {
+        private long[] words = new long[2];
+        private long bits;
+        private int count;
+        private final long firstTime;
+        private long lastTime;
+        private long lastDelta;
+        private long lastValue;
+        private int lastLeading = -1;
+        private int lastTrailing;
+        private double min;
+        private double max;
+        private double sum;
+
+        BlockEncoder(long time, double value) {
+            firstTime = time;
+            lastTime = time;
+            lastValue = Double.doubleToLongBits(value);
+            writeBits(lastValue, 64);
+            count = 1;
+            min = value;
+            max = value;
+            sum = value;
+        }
+
+        // time must not be before the last one
+        void append(long time, double value) {
+            long delta = time - lastTime;
+            long deltaOfDelta = delta - lastDelta;
+            if (deltaOfDelta == 0) {
+                writeBits(0, 1);
+            } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+                writeBits(0b10L << 7 | (deltaOfDelta + 63), 9);
+            } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+                writeBits(0b110L << 9 | (deltaOfDelta + 255), 12);
+            } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+                writeBits(0b1110L << 12 | (deltaOfDelta + 2047), 16);
+            } else {
+                writeBits(0b1111, 4);
+                writeBits(deltaOfDelta, 64);
+            }
+            lastDelta = delta;
+            lastTime = time;
+
+            long valueBits = Double.doubleToLongBits(value);
+            long xor = valueBits ^ lastValue;
+            if (xor == 0) {
+                writeBits(0, 1);
+            } else {
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+                    writeBits(0b10, 2);
+                    writeBits(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+                } else {
+                    int length = 64 - leading - trailing;
+                    writeBits(0b11, 2);
+                    writeBits(leading, 5);
+                    writeBits(length == 64 ? 0 : length, 6);
+                    writeBits(xor >>> trailing, length);
+                    lastLeading = leading;
+                    lastTrailing = trailing;
+                }
+            }
+            lastValue = valueBits;
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+
+        // The low n bits of value, 1 <= n <= 64
+        private void writeBits(long value, int n) {
+            int word = (int) (bits >>> 6);
+            if (word + 1 >= words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            if (n < 64) {
+                value &= (1L << n) - 1;
+            }
+            int free = 64 - (int) (bits & 63);
+            if (n <= free) {
+                words[word] |= value << (free - n);
+            } else {
+                words[word] |= value >>> (n - free);
+                words[word + 1] |= value << (64 - (n - free));
+            }
+            bits += n;
+        }
+
+        Block toBlock() {
+            int used = (int) ((bits + 63) >>> 6);
+            ByteBuffer data = ByteBuffer.allocate(used * 8);
+            for (int i = 0; i < used; i++) {
+                data.putLong(words[i]);
+            }
+            data.flip();
+            return new Block(count, firstTime, lastTime, min, max, sum, data);
+        }
+    }
+
+    private static final class BlockDecoder {
+        private final ByteBuffer data;
+        private final int count;
+        private int decoded;
+        private long position;
+        private long delta;
+        private long valueBits;
+        private int leading;
+        private int trailing;
+        long time;
+        double value;
+
+        BlockDecoder(Block block) {
+            this.data = block.data;
+            this.count = block.count;
+            this.time = block.firstTime;
+        }
+
+        // Moves to the next observation; false after the last one
+        boolean next() {
+            if (decoded == count) {
+                return false;
+            }
+            if (decoded++ == 0) {
+                valueBits = readBits(64);
+                value = Double.longBitsToDouble(valueBits);
+                return true;
+            }
+            long deltaOfDelta;
+            if (readBits(1) == 0) {
+                deltaOfDelta = 0;
+            } else if (readBits(1) == 0) {
+                deltaOfDelta = readBits(7) - 63;
+            } else if (readBits(1) == 0) {
+                deltaOfDelta = readBits(9) - 255;
+            } else if (readBits(1) == 0) {
+                deltaOfDelta = readBits(12) - 2047;
+            } else {
+                deltaOfDelta = readBits(64);
+            }
+            delta += deltaOfDelta;
+            time += delta;
+
+            if (readBits(1) == 1) {
+                if (readBits(1) == 1) {
+                    leading = (int) readBits(5);
+                    int length = (int) readBits(6);
+                    trailing = 64 - leading - (length == 0 ? 64 : length);
+                }
+                valueBits ^= readBits(64 - leading - trailing) << trailing;
+                value = Double.longBitsToDouble(valueBits);
+            }
+            return true;
+        }
+
+        private long readBits(int n) {
+            int word = (int) (position >>> 6);
+            int used = (int) (position & 63);
+            long bits = data.getLong(word * 8) << used;
+            if (used + n > 64) {
+                bits |= data.getLong((word + 1) * 8) >>> (64 - used);
+            }
+            position += n;
+            return bits >>> (64 - n);
+        }
+    }
+
+    // A partition file, memory-mapped; entries are read in place
+    private static final class SealedFile {
+        final long start;
+        final int sequence;
+        final int blocks;
+        private final ByteBuffer buffer;
+
+        private SealedFile(long start, int sequence, int blocks, ByteBuffer buffer) {
+            this.start = start;
+            this.sequence = sequence;
+            this.blocks = blocks;
+            this.buffer = buffer;
+        }
+
+        static SealedFile map(Path path, int sequence) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != FILE_MAGIC || buffer.getInt(4) != FILE_VERSION) {
+                    throw new IOException(path + " is not a history file of this version");
+                }
+                int blocks = buffer.getInt(24);
+                long end = HEADER_BYTES + (long) blocks * ENTRY_BYTES;
+                if (blocks > 0 && end <= buffer.capacity()) {
+                    int last = HEADER_BYTES + (blocks - 1) * ENTRY_BYTES;
+                    end = buffer.getLong(last + 48) + buffer.getInt(last + 56) * 8L;
+                }
+                if (end != buffer.capacity()) {
+                    throw new IOException(path + " is incomplete or damaged");
+                }
+                return new SealedFile(buffer.getLong(8), sequence, blocks, buffer);
+            }
+        }
+
+        int locationId(int i) {
+            return buffer.getInt(HEADER_BYTES + i * ENTRY_BYTES);
+        }
+
+        // The first entry whose location id is at least id
+        int find(int id) {
+            int low = 0;
+            int high = blocks;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (locationId(middle) < id) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        Block block(int i) {
+            int entry = HEADER_BYTES + i * ENTRY_BYTES;
+            long offset = buffer.getLong(entry + 48);
+            int words = buffer.getInt(entry + 56);
+            ByteBuffer data = buffer.duplicate();
+            data.position((int) offset);
+            data.limit((int) offset + words * 8);
+            return new Block(buffer.getInt(entry + 4), buffer.getLong(entry + 8), buffer.getLong(entry + 16),
+                    buffer.getDouble(entry + 24), buffer.getDouble(entry + 32), buffer.getDouble(entry + 40), data.slice());
+        }
+    }
+}
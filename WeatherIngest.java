@@ -0,0 +1,150 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admin upload pipeline: streams records out of the file and writes them in batched, chunked
+ * transactions. Memory use is bounded by the chunk size, not by the file size. Files above the
+ * parallel threshold are handed to {@link ParallelWeatherIngest} instead.
+ */
+public class WeatherIngest {
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    public enum Mode { AUTO, STREAM, PARALLEL }
+
+    // Receives periodic progress while an upload runs (on the thread running it)
+    public interface ProgressListener {
+        void onProgress(Result progress) throws IOException;
+    }
+
+    // Counters of an upload, either in progress or finished
+    public static final class Result {
+        private final long records;
+        private final long inserted;
+        private final long updated;
+        private final long unchanged;
+        private final long bytesRead;
+        private final long totalBytes;
+        private final long elapsedNanos;
+
+        Result(long records, long inserted, long updated, long unchanged, long bytesRead, long totalBytes, long elapsedNanos) {
+            this.records = records;
+            this.inserted = inserted;
+            this.updated = updated;
+            this.unchanged = unchanged;
+            this.bytesRead = bytesRead;
+            this.totalBytes = totalBytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getInserted() {
+            return inserted;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+
+        public long getUnchanged() {
+            return unchanged;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public double getRecordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d records (%d inserted, %d updated, %d unchanged), %.1f of %.1f MB read, %.0f records/s",
+                    records, inserted, updated, unchanged, bytesRead / 1e6, totalBytes / 1e6, getRecordsPerSecond());
+        }
+    }
+
+    private final WeatherStorage storage;
+    private final int batchSize;
+    private final int chunkSize;
+    private final WeatherUpdateListener listener;
+    private final ParallelWeatherIngest parallel;
+    private final long parallelThresholdBytes;
+    private final UploadScheduler scheduler;
+
+    // Without a scheduler, submitted uploads run on the caller's thread
+    public WeatherIngest(WeatherStorage storage, int batchSize, int chunkSize, WeatherUpdateListener listener,
+                         ParallelWeatherIngest parallel, long parallelThresholdBytes, UploadScheduler scheduler) {
+        this.storage = storage;
+        this.batchSize = batchSize;
+        this.chunkSize = chunkSize;
+        this.listener = listener;
+        this.parallel = parallel;
+        this.parallelThresholdBytes = parallelThresholdBytes;
+        this.scheduler = scheduler;
+    }
+
+    // Queues the upload on the scheduler; the future completes on its thread, with the IOException or
+    // SQLException of a failed upload. Throws RejectedExecutionException when the scheduler has no room.
+    public CompletableFuture<Result> submit(Path path, Mode mode, boolean delta, ProgressListener progress) throws IOException {
+        long totalBytes = Files.size(path);
+        if (scheduler != null) {
+            return scheduler.submit(totalBytes, () -> load(path, mode, delta, progress, totalBytes));
+        }
+        CompletableFuture<Result> result = new CompletableFuture<>();
+        try {
+            result.complete(load(path, mode, delta, progress, totalBytes));
+        } catch (IOException | SQLException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // With delta set, unchanged locations are skipped and changed ones are updated in place. Runs on the caller's thread.
+    public Result load(Path path, Mode mode, boolean delta, ProgressListener progress) throws IOException, SQLException {
+        return load(path, mode, delta, progress, Files.size(path));
+    }
+
+    private Result load(Path path, Mode mode, boolean delta, ProgressListener progress, long totalBytes) throws IOException, SQLException {
+        if (mode == Mode.PARALLEL || (mode == Mode.AUTO && totalBytes >= parallelThresholdBytes)) {
+            return parallel.load(path, delta, progress);
+        }
+        long start = System.nanoTime();
+        long lastProgress = start;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 64 * 1024);
+             WeatherJsonReader reader = new WeatherJsonReader(in);
+             WeatherWriter writer = new WeatherWriter(storage, batchSize, chunkSize, delta, listener)) {
+            WeatherRecord record;
+            while ((record = reader.next()) != null) {
+                writer.write(record);
+                long now = System.nanoTime();
+                if (now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                    lastProgress = now;
+                    progress.onProgress(result(reader, writer, totalBytes, now - start));
+                }
+            }
+            writer.commit();
+            return result(reader, writer, totalBytes, System.nanoTime() - start);
+        }
+    }
+
+    private static Result result(WeatherJsonReader reader, WeatherWriter writer, long totalBytes, long elapsedNanos) {
+        return new Result(reader.getRecordsRead(), writer.getRecordsInserted(), writer.getRecordsUpdated(), writer.getRecordsUnchanged(),
+                reader.getBytesRead(), totalBytes, elapsedNanos);
+    }
+}
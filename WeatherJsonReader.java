@@ -0,0 +1,165 @@
+package org.example;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Streams records out of a weather.json-style array one at a time, so memory use does not depend
+ * on the size of the file. Also tracks how many bytes of the input have been consumed.
+ */
+public class WeatherJsonReader implements Closeable {
+    private final CountingInputStream counter;
+    private final JsonReader reader;
+    private boolean started;
+    private boolean finished;
+    private long recordsRead;
+
+    public WeatherJsonReader(InputStream in) {
+        this.counter = new CountingInputStream(in);
+        this.reader = new JsonReader(new InputStreamReader(counter, StandardCharsets.UTF_8));
+    }
+
+    // Returns the next record, or null once the closing ']' has been read
+    public WeatherRecord next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (!started) {
+            reader.beginArray();
+            started = true;
+        }
+        if (!reader.hasNext()) {
+            reader.endArray();
+            finished = true;
+            return null;
+        }
+        recordsRead++;
+        return readRecord(reader, recordsRead);
+    }
+
+    public long getBytesRead() {
+        return counter.count;
+    }
+
+    public long getRecordsRead() {
+        return recordsRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    // Reads one {location, latitude, longitude, current_weather, current_temperature, forecast[, observed_at]} object
+    static WeatherRecord readRecord(JsonReader reader, long recordNumber) throws IOException {
+        String location = null;
+        String weather = null;
+        String forecastJson = null;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        double temperature = Double.NaN;
+        long observedAt = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "location":
+                    location = reader.nextString();
+                    break;
+                case "latitude":
+                    latitude = reader.nextDouble();
+                    break;
+                case "longitude":
+                    longitude = reader.nextDouble();
+                    break;
+                case "current_weather":
+                    weather = reader.nextString();
+                    break;
+                case "current_temperature":
+                    temperature = reader.nextDouble();
+                    break;
+                case "forecast":
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    } else {
+                        // Forecasts are a handful of entries, keep them as raw JSON text like the database does
+                        forecastJson = JsonParser.parseReader(reader).toString();
+                    }
+                    break;
+                case "observed_at":
+                    // Epoch seconds or an ISO-8601 instant such as "2024-05-01T12:00:00Z"
+                    if (reader.peek() == JsonToken.STRING) {
+                        String instant = reader.nextString();
+                        try {
+                            observedAt = Instant.parse(instant).getEpochSecond();
+                        } catch (DateTimeParseException e) {
+                            throw new IOException("Record " + recordNumber + " has an invalid 'observed_at': " + instant);
+                        }
+                    } else {
+                        observedAt = reader.nextLong();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (location == null) {
+            throw missing("location", recordNumber);
+        }
+        if (Double.isNaN(latitude)) {
+            throw missing("latitude", recordNumber);
+        }
+        if (Double.isNaN(longitude)) {
+            throw missing("longitude", recordNumber);
+        }
+        if (weather == null) {
+            throw missing("current_weather", recordNumber);
+        }
+        if (Double.isNaN(temperature)) {
+            throw missing("current_temperature", recordNumber);
+        }
+        return new WeatherRecord(location, latitude, longitude, weather, temperature, forecastJson, observedAt);
+    }
+
+    private static IOException missing(String field, long recordNumber) {
+        return new IOException("Record " + recordNumber + " is missing '" + field + "'");
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.example;
+
+/**
+ * One row of weather_data. The forecast stays the raw JSON text stored in the database. An uploaded
+ * record may also say when it was observed; that only goes into the history (see WeatherHistory).
+ */
+public final class WeatherRecord {
+    private final String location;
+    private final double latitude;
+    private final double longitude;
+    private final String currentWeather;
+    private final double currentTemperature;
+    private final String forecastJson;
+    private final long observedAt; // Epoch seconds, 0 when not given
+    private volatile long contentHash; // Computed on first use (racing threads compute the same value); 0 means not computed yet
+
+    public WeatherRecord(String location, double latitude, double longitude, String currentWeather, double currentTemperature, String forecastJson) {
+        this(location, latitude, longitude, currentWeather, currentTemperature, forecastJson, 0);
+    }
+
+    public WeatherRecord(String location, double latitude, double longitude, String currentWeather, double currentTemperature, String forecastJson, long observedAt) {
+        this.location = location;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.currentWeather = currentWeather;
+        this.currentTemperature = currentTemperature;
+        this.forecastJson = forecastJson;
+        this.observedAt = observedAt;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public String getCurrentWeather() {
+        return currentWeather;
+    }
+
+    public double getCurrentTemperature() {
+        return currentTemperature;
+    }
+
+    // May be null when the row has no forecast
+    public String getForecastJson() {
+        return forecastJson;
+    }
+
+    // When the upload says the record was observed, in epoch seconds; 0 if it doesn't
+    public long getObservedAt() {
+        return observedAt;
+    }
+
+    // 64-bit FNV-1a fingerprint of every column; uploads compare it with the stored content_hash
+    public long getContentHash() {
+        long hash = contentHash;
+        if (hash == 0) {
+            hash = 0xcbf29ce484222325L;
+            hash = mix(hash, location);
+            hash = mix(hash, Double.doubleToLongBits(latitude));
+            hash = mix(hash, Double.doubleToLongBits(longitude));
+            hash = mix(hash, currentWeather);
+            hash = mix(hash, Double.doubleToLongBits(currentTemperature));
+            hash = mix(hash, forecastJson);
+            if (hash == 0) {
+                hash = 1;
+            }
+            contentHash = hash;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xff) * 0x100000001b3L;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return (hash ^ 0xfe) * 0x100000001b3L; // Field separator, so "ab"+"c" differs from "a"+"bc"
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * 0x100000001b3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,77 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A weather row together with its finished getWeather response. The JSON is built once when the row
+ * is loaded into the cache and kept as UTF-8 bytes (newline included), so serving a cached location
+ * is a single write with no parsing or serialization.
+ */
+public final class WeatherResponse {
+    private static final Gson GSON = new Gson();
+
+    private final WeatherRecord record;
+    private final byte[] jsonLine;
+    // Binary encodings are built on first use, most sessions speak JSON; a racing rebuild is harmless
+    private volatile byte[] binaryWeather;
+    private volatile byte[] binaryFrame;
+
+    private WeatherResponse(WeatherRecord record, byte[] jsonLine) {
+        this.record = record;
+        this.jsonLine = jsonLine;
+    }
+
+    public static WeatherResponse of(WeatherRecord record) {
+        return new WeatherResponse(record, (GSON.toJson(toJson(record)) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    static JsonObject toJson(WeatherRecord record) {
+        // Build JSON response
+        JsonObject response = new JsonObject();
+        response.addProperty("location", record.getLocation());
+        response.addProperty("current_weather", record.getCurrentWeather());
+        response.addProperty("current_temperature", record.getCurrentTemperature());
+
+        // Parse and add forecast
+        String forecastJson = record.getForecastJson();
+        if (forecastJson != null) {
+            JsonArray forecastArray = GSON.fromJson(forecastJson, JsonArray.class);
+            response.add("forecast", forecastArray);
+        } else {
+            response.addProperty("forecast", "No forecast available.");
+        }
+        return response;
+    }
+
+    public WeatherRecord getRecord() {
+        return record;
+    }
+
+    // Shared and immutable: callers must not modify the returned array
+    public byte[] getJsonLine() {
+        return jsonLine;
+    }
+
+    // The weather record in the binary protocol, without frame header (shared, do not modify)
+    public byte[] getBinaryWeather() {
+        byte[] weather = binaryWeather;
+        if (weather == null) {
+            weather = BinaryProtocol.encodeWeather(record);
+            binaryWeather = weather;
+        }
+        return weather;
+    }
+
+    // The complete binary getWeather frame for a request without id (shared, do not modify)
+    public byte[] getBinaryFrame() {
+        byte[] frame = binaryFrame;
+        if (frame == null) {
+            frame = BinaryProtocol.frame(BinaryProtocol.FRAME_WEATHER, null, getBinaryWeather());
+            binaryFrame = frame;
+        }
+        return frame;
+    }
+}
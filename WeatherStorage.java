@@ -0,0 +1,60 @@
+package org.example;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Where weather rows and users are stored: {@link PostgresStorage} (the default) or
+ * {@link EmbeddedStorage}, an in-process engine for running without a database server. Failures are
+ * reported as {@link SQLException} whichever engine is used, so callers handle them one way.
+ */
+public interface WeatherStorage extends AutoCloseable {
+    // The stored row of a location, or null if there is none
+    WeatherRecord findWeather(String location) throws SQLException;
+
+    // The stored rows of those locations that exist, by location
+    Map<String, WeatherRecord> findWeather(Collection<String> locations) throws SQLException;
+
+    // Every stored row, streamed; meant for loading the in-memory indexes at startup
+    void forEachWeather(Consumer<WeatherRecord> action) throws SQLException;
+
+    // A transaction for an upload writer (see WeatherWriter), only visible to others once committed
+    Transaction beginWrite() throws SQLException;
+
+    // How many upload writers may run at once, counting those of all running uploads
+    int getMaxWriters();
+
+    void forEachUsername(Consumer<String> action) throws SQLException;
+
+    // Registrations (username -> role, existing users are left alone) and location changes (username ->
+    // location, unknown users are ignored), written atomically with registrations first
+    void writeUsers(Map<String, String> registrations, Map<String, String> locations) throws SQLException;
+
+    @Override
+    void close();
+
+    /**
+     * Upload writes of one writer. Uncommitted work is discarded when the transaction is closed.
+     */
+    interface Transaction extends AutoCloseable {
+        // Inserts the records whose location is not stored yet; element i tells whether record i was inserted
+        boolean[] insertNew(List<WeatherRecord> records) throws SQLException;
+
+        // The stored content hash of each location that exists (null for rows written before hashing existed)
+        Map<String, Long> storedHashes(Collection<String> locations) throws SQLException;
+
+        // Inserts or replaces the records; at most one per location
+        void upsert(List<WeatherRecord> records) throws SQLException;
+
+        // Returns the locations insertNew reported as inserted that another writer committed first, so they were
+        // not written; empty where insertNew already sees the other writers' rows (PostgreSQL waits for them)
+        Set<String> commit() throws SQLException;
+
+        @Override
+        void close();
+    }
+}
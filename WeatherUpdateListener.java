@@ -0,0 +1,15 @@
+package org.example;
+
+import java.util.List;
+
+/**
+ * Notified after an upload has committed rows to weather_data, once per committed chunk.
+ * Only rows that were actually inserted or changed are passed in.
+ */
+public interface WeatherUpdateListener {
+    void onWeatherUpdated(List<WeatherRecord> records);
+
+    // Every record of the committed chunk, changed or not, uploaded at uploadedAt (epoch seconds)
+    default void onWeatherObserved(List<WeatherRecord> records, long uploadedAt) {
+    }
+}
@@ -0,0 +1,154 @@
+package org.example;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes uploaded records to the storage in batches, committing every {@code chunkSize}
+ * records. A failed upload therefore keeps the chunks committed before the failure and rolls back
+ * only the current one. Listeners hear about the rows of a chunk once it is committed: the changed
+ * ones, and every record as an observation for the history.
+ *
+ * <p>In delta mode each batch first reads the stored content hashes of its locations and only
+ * upserts records that are new or whose hash differs, so re-uploading a mostly unchanged feed
+ * writes (and logs) only the rows that actually changed.
+ */
+public class WeatherWriter implements AutoCloseable {
+    private final WeatherStorage.Transaction transaction;
+    private final int batchSize;
+    private final int chunkSize;
+    private final boolean delta;
+    private final WeatherUpdateListener listener;
+    private final List<WeatherRecord> batch = new ArrayList<>();
+    private final List<WeatherRecord> changedInChunk = new ArrayList<>();
+    private final List<WeatherRecord> observedInChunk = new ArrayList<>();
+    private int recordsInChunk;
+    private long recordsWritten;
+    private long recordsInserted;
+    private long recordsUpdated;
+    private long recordsUnchanged;
+
+    public WeatherWriter(WeatherStorage storage, int batchSize, int chunkSize, boolean delta, WeatherUpdateListener listener) throws SQLException {
+        this.batchSize = batchSize;
+        this.chunkSize = chunkSize;
+        this.delta = delta;
+        this.listener = listener;
+        this.transaction = storage.beginWrite();
+    }
+
+    public void write(WeatherRecord record) throws SQLException {
+        batch.add(record);
+        observedInChunk.add(record);
+        recordsInChunk++;
+        if (batch.size() >= batchSize) {
+            executeBatch();
+        }
+        if (recordsInChunk >= chunkSize) {
+            commit();
+        }
+    }
+
+    // Sends the pending batch, commits the chunk and notifies the listener about what changed
+    public void commit() throws SQLException {
+        executeBatch();
+        Set<String> lost = transaction.commit();
+        if (!lost.isEmpty()) {
+            // Inserted by another writer first: left as it was, like any other existing location
+            recordsInserted -= lost.size();
+            recordsUnchanged += lost.size();
+            changedInChunk.removeIf(record -> lost.contains(record.getLocation()));
+        }
+        recordsInChunk = 0;
+        if (!changedInChunk.isEmpty()) {
+            listener.onWeatherUpdated(new ArrayList<>(changedInChunk));
+            changedInChunk.clear();
+        }
+        if (!observedInChunk.isEmpty()) {
+            listener.onWeatherObserved(new ArrayList<>(observedInChunk), System.currentTimeMillis() / 1000);
+            observedInChunk.clear();
+        }
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    public long getRecordsInserted() {
+        return recordsInserted;
+    }
+
+    public long getRecordsUpdated() {
+        return recordsUpdated;
+    }
+
+    // Existing locations left as they were: identical content in delta mode, any content otherwise
+    public long getRecordsUnchanged() {
+        return recordsUnchanged;
+    }
+
+    public long getRecordsChanged() {
+        return recordsInserted + recordsUpdated;
+    }
+
+    private void executeBatch() throws SQLException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (delta) {
+            executeDeltaBatch();
+        } else {
+            boolean[] inserted = transaction.insertNew(batch);
+            for (int i = 0; i < inserted.length; i++) {
+                if (inserted[i]) {
+                    changedInChunk.add(batch.get(i));
+                    recordsInserted++;
+                } else {
+                    recordsUnchanged++;
+                }
+            }
+        }
+        Metrics.DB_WEATHER_BATCH.recordSince(start);
+        recordsWritten += batch.size();
+        batch.clear();
+    }
+
+    private void executeDeltaBatch() throws SQLException {
+        // The last occurrence of a location wins; one upsert statement can't touch the same row twice
+        Map<String, WeatherRecord> latest = new LinkedHashMap<>();
+        for (WeatherRecord record : batch) {
+            latest.put(record.getLocation(), record);
+        }
+        recordsUnchanged += batch.size() - latest.size();
+
+        Map<String, Long> storedHashes = transaction.storedHashes(latest.keySet());
+        List<WeatherRecord> changed = new ArrayList<>();
+        for (WeatherRecord record : latest.values()) {
+            Long storedHash = storedHashes.get(record.getLocation());
+            if (storedHash == null && !storedHashes.containsKey(record.getLocation())) {
+                recordsInserted++;
+                changed.add(record);
+            } else if (storedHash == null || storedHash != record.getContentHash()) {
+                recordsUpdated++; // Rows written before hashing existed have no hash and are rewritten once
+                changed.add(record);
+            } else {
+                recordsUnchanged++;
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        transaction.upsert(changed);
+        changedInChunk.addAll(changed);
+    }
+
+    // Uncommitted work is rolled back
+    @Override
+    public void close() {
+        transaction.close();
+    }
+}
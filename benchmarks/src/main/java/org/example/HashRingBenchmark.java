@@ -0,0 +1,79 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link HashRing#owner} for synthetic location names, the check every lookup makes on a cluster node.
+ * The setup prints how evenly 100,000 locations spread over the nodes (the largest share against the
+ * fair one) and which fraction of them moves when one more node joins, ideally 1/(nodes+1).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashRingBenchmark {
+    private static final int LOCATIONS = 100_000;
+
+    @Param({"3", "10"})
+    public int nodes;
+
+    @Param({"16", "128"})
+    public int virtualNodes;
+
+    private HashRing ring;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        names = new String[LOCATIONS];
+        for (int i = 0; i < LOCATIONS; i++) {
+            names[i] = "Town" + i;
+        }
+        ring = new HashRing(nodeNames(nodes), virtualNodes);
+        HashRing grown = new HashRing(nodeNames(nodes + 1), virtualNodes);
+        Map<String, Integer> shares = new HashMap<>();
+        int moved = 0;
+        for (String name : names) {
+            String owner = ring.owner(name);
+            shares.merge(owner, 1, Integer::sum);
+            if (!owner.equals(grown.owner(name))) {
+                moved++;
+            }
+        }
+        int largest = shares.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+        System.out.printf("%nLargest share %.2fx the fair one; adding a node moved %.1f%% of the locations (ideally %.1f%%)%n",
+                largest * (double) nodes / LOCATIONS, 100.0 * moved / LOCATIONS, 100.0 / (nodes + 1));
+    }
+
+    private static List<String> nodeNames(int count) {
+        List<String> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add("10.0.0." + (i + 1) + ":6543");
+        }
+        return nodes;
+    }
+
+    @Benchmark
+    public String owner() {
+        next = (next + 1) % LOCATIONS;
+        return ring.owner(names[next]);
+    }
+}
@@ -0,0 +1,123 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * History queries over a year of per-minute temperatures for every location: the last day and the
+ * last week of raw observations, and the year summarized per day and per hour. The history is
+ * generated once into java.io.tmpdir (about 800 MB for the default 1000 locations; that takes a
+ * minute or two) and reopened afterwards.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    private static final long DAY = 86400;
+    private static final int DAYS = 365;
+    // A fixed year, so the generated files stay valid
+    private static final long END = 1_767_225_600L; // 2026-01-01T00:00:00Z
+    private static final long START = END - DAYS * DAY;
+
+    @Param({"1000"})
+    public int locations;
+
+    private WeatherHistory history;
+    private Random random;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "weather-history-bench-" + locations);
+        Path complete = directory.resolve("complete");
+        if (!Files.exists(complete)) {
+            generate(directory);
+            Files.createFile(complete);
+        }
+        history = new WeatherHistory(directory, DAY, 0, 0, 1_000_000);
+        random = new Random(42);
+    }
+
+    private void generate(Path directory) throws IOException {
+        if (Files.exists(directory)) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        Random generator = new Random(locations);
+        String[] names = new String[locations];
+        double[] temperatures = new double[locations];
+        for (int i = 0; i < locations; i++) {
+            names[i] = "Town" + i;
+            temperatures[i] = generator.nextDouble() * 30 - 5;
+        }
+        try (WeatherHistory generated = new WeatherHistory(directory, DAY, 0, 0, 1_000_000)) {
+            List<WeatherRecord> minute = new ArrayList<>(locations);
+            for (long time = START; time < END; time += 60) {
+                double daily = 4 * Math.sin(2 * Math.PI * (time % DAY) / DAY);
+                minute.clear();
+                for (int i = 0; i < locations; i++) {
+                    // A slow random walk around a daily cycle, to a tenth of a degree like real feeds
+                    temperatures[i] += generator.nextGaussian() * 0.02;
+                    double temperature = Math.round((temperatures[i] + daily) * 10) / 10.0;
+                    minute.add(new WeatherRecord(names[i], 0, 0, "Sunny", temperature, null, time));
+                }
+                generated.record(minute, time);
+                if ((time - START + 60) % DAY == 0) {
+                    generated.flush(); // Seals the day that just ended
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        history.close();
+    }
+
+    private String location() {
+        return "Town" + random.nextInt(locations);
+    }
+
+    @Benchmark
+    public int lastDay() {
+        return history.range(location(), END - DAY, END - 1, 1_000_000).size();
+    }
+
+    @Benchmark
+    public int lastWeek() {
+        return history.range(location(), END - 7 * DAY, END - 1, 1_000_000).size();
+    }
+
+    @Benchmark
+    public int yearByDay() {
+        return history.summarize(location(), START, END - 1, DAY).size();
+    }
+
+    @Benchmark
+    public int yearByHour() {
+        return history.summarize(location(), START, END - 1, 3600).size();
+    }
+}
@@ -0,0 +1,85 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Admin uploads of synthetic files: parsing alone, and the full streaming, delta and parallel paths
+ * of {@link WeatherIngest} against the in-process database stand-in. The largest size is opt-in
+ * ({@code -p locations=10000000}); its file takes a few GB in java.io.tmpdir.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class IngestBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int locations;
+
+    private Path file;
+    private WeatherStorage storage;
+    private WeatherIngest ingest;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = SyntheticWeatherFile.get(locations);
+        int cores = Runtime.getRuntime().availableProcessors();
+        storage = new PostgresStorage(StubJdbc.pool(cores + 1));
+        WeatherUpdateListener ignore = records -> { };
+        // Same defaults as Server.createIngest
+        ParallelWeatherIngest parallel = new ParallelWeatherIngest(storage, 500, 10_000, ignore, cores, cores, 8L << 20);
+        ingest = new WeatherIngest(storage, 500, 10_000, ignore, parallel, Long.MAX_VALUE, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+    }
+
+    @Benchmark
+    public long parse(Blackhole blackhole) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+             WeatherJsonReader reader = new WeatherJsonReader(in)) {
+            WeatherRecord record;
+            while ((record = reader.next()) != null) {
+                blackhole.consume(record.getContentHash());
+            }
+            return reader.getRecordsRead();
+        }
+    }
+
+    @Benchmark
+    public long streamUpload() throws IOException, SQLException {
+        return ingest.load(file, WeatherIngest.Mode.STREAM, false, progress -> { }).getRecords();
+    }
+
+    @Benchmark
+    public long deltaUpload() throws IOException, SQLException {
+        return ingest.load(file, WeatherIngest.Mode.STREAM, true, progress -> { }).getRecords();
+    }
+
+    @Benchmark
+    public long parallelUpload() throws IOException, SQLException {
+        return ingest.load(file, WeatherIngest.Mode.PARALLEL, false, progress -> { }).getRecords();
+    }
+}
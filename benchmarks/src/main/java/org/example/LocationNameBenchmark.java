@@ -0,0 +1,60 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link LocationNameIndex}: resolving a name as stored, one that only matches after normalization
+ * (case, spacing, diacritics), and "did you mean" suggestions for a misspelled name. The synthetic
+ * names share long prefixes ("TownN", "Târgu N"), the hard case for the trigram index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LocationNameBenchmark {
+    @Param({"100000", "1000000"})
+    public int names;
+
+    private LocationNameIndex index;
+
+    @Setup
+    public void setUp() {
+        List<WeatherRecord> records = new ArrayList<>(names);
+        for (int i = 0; i < names; i++) {
+            String name = i % 10 == 0 ? "Târgu " + i : "Town" + i;
+            records.add(new WeatherRecord(name, 0, 0, null, 0, null));
+        }
+        index = new LocationNameIndex();
+        index.load(records);
+    }
+
+    @Benchmark
+    public String resolveExact() {
+        return index.resolve("Town12345");
+    }
+
+    @Benchmark
+    public String resolveNormalized() {
+        return index.resolve("  targu   12340 ");
+    }
+
+    @Benchmark
+    public List<String> suggest() {
+        return index.suggest("Twn12345", 3);
+    }
+}
@@ -0,0 +1,82 @@
+package org.example;
+
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The getWeather lookup: building the pre-serialized response for a row (what a cache miss costs on
+ * top of the query, and what handleGetWeather used to pay on every request) versus serving it from
+ * {@link WeatherCache}, single-threaded and contended.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LookupBenchmark {
+    @Param({"1000", "100000"})
+    public int locations;
+
+    private WeatherRecord[] records;
+    private String[] names;
+    private WeatherCache cache;
+
+    // Each thread walks the locations in its own scattered order
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = new Random().nextInt(1 << 20);
+
+        int next(int size) {
+            next = (next + 7919) % size;
+            return next;
+        }
+    }
+
+    @Setup
+    public void setUp() throws SQLException {
+        Random random = new Random(locations);
+        records = new WeatherRecord[locations];
+        names = new String[locations];
+        cache = new WeatherCache(locations * 2, 3600, 3600);
+        for (int i = 0; i < locations; i++) {
+            WeatherRecord record = SyntheticWeatherFile.record(i, random);
+            records[i] = record;
+            names[i] = record.getLocation();
+            cache.get(record.getLocation(), location -> WeatherResponse.of(record));
+        }
+    }
+
+    @Benchmark
+    public byte[] buildResponse(Cursor cursor) {
+        return WeatherResponse.of(records[cursor.next(locations)]).getJsonLine();
+    }
+
+    @Benchmark
+    public byte[] cachedLookup(Cursor cursor) throws SQLException {
+        return cache.get(names[cursor.next(locations)], this::missing).getJsonLine();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] cachedLookupContended(Cursor cursor) throws SQLException {
+        return cache.get(names[cursor.next(locations)], this::missing).getJsonLine();
+    }
+
+    private WeatherResponse missing(String location) {
+        throw new IllegalStateException("Not preloaded: " + location);
+    }
+}
@@ -0,0 +1,127 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-request protocol work: parsing a request line, building and serializing the menu, and a
+ * complete getWeather / updateLocation round through {@link ClientSession} (cache hit, buffered user
+ * write) with the socket replaced by a byte counter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.responseSampleRate=0")
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    private static final Gson gson = new Gson();
+    private static final String GET_WEATHER = "{\"type\":\"getWeather\"}";
+    private static final String UPDATE_LOCATION = "{\"type\":\"updateLocation\",\"currentLocation\":\"Town1\"}";
+    private static final int BATCH_SIZE = 100;
+
+    private WeatherStorage storage;
+    private UserWriteBehind userWrites;
+    private ClientSession session;
+    private CountingOutput output;
+    private String getWeatherBatch;
+
+    @Setup
+    public void setUp() throws Exception {
+        storage = new PostgresStorage(StubJdbc.pool(4));
+        WeatherCache cache = new WeatherCache(1000, 3600, 3600);
+        WeatherRecord record = SyntheticWeatherFile.record(1, new Random(1));
+        cache.get(record.getLocation(), location -> WeatherResponse.of(record));
+        Random random = new Random(BATCH_SIZE);
+        StringBuilder batch = new StringBuilder("{\"type\":\"getWeatherBatch\",\"id\":1,\"locations\":[");
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            WeatherRecord batchRecord = SyntheticWeatherFile.record(1000 + i, random);
+            cache.get(batchRecord.getLocation(), location -> WeatherResponse.of(batchRecord));
+            batch.append(i == 0 ? "\"" : ",\"").append(batchRecord.getLocation()).append('"');
+        }
+        getWeatherBatch = batch.append("]}").toString();
+        userWrites = new UserWriteBehind(storage, 200, 1000);
+        output = new CountingOutput();
+        session = new ClientSession(output, storage, cache, null, userWrites, null, null, null, null, null, null, null); // No uploads, pushes, location indexes, analytics, history, limits or cluster here
+        session.handleLine("{\"role\":\"user\",\"username\":\"bench\"}");
+        session.handleLine("{\"currentLocation\":\"" + record.getLocation() + "\"}");
+    }
+
+    @TearDown
+    public void tearDown() {
+        userWrites.close();
+        storage.close();
+    }
+
+    @Benchmark
+    public JsonObject parseRequest() {
+        return gson.fromJson(GET_WEATHER, JsonObject.class);
+    }
+
+    @Benchmark
+    public JsonObject createMenu() {
+        return ClientSession.createMenu("Options:", true);
+    }
+
+    @Benchmark
+    public byte[] serializeMenu() {
+        return (gson.toJson(ClientSession.createMenu("Options:", true)) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long getWeather() {
+        session.handleLine(GET_WEATHER);
+        return output.bytes;
+    }
+
+    // 100 cached locations in one request and one response line (menus still on, like getWeather)
+    @Benchmark
+    public long getWeatherBatch() {
+        session.handleLine(getWeatherBatch);
+        return output.bytes;
+    }
+
+    @Benchmark
+    public long updateLocation() {
+        session.handleLine(UPDATE_LOCATION);
+        return output.bytes;
+    }
+
+    // Encodes like the real engines do, then only counts
+    private static final class CountingOutput implements ClientSession.Output {
+        private long bytes;
+
+        @Override
+        public void send(String line) {
+            send((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void send(byte[] line) {
+            bytes += line.length;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String remoteAddress() {
+            return "benchmark";
+        }
+    }
+}
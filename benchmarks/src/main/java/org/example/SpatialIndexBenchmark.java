@@ -0,0 +1,109 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link SpatialIndex} queries and updates over synthetic locations: most of them clustered around a
+ * few hundred "cities" like real place names are, the rest spread over the globe. Queries land near
+ * a random city. {@code update} moves 1000 locations per call, so its average includes the amortized
+ * tree merges and the occasional full rebuild. The setup prints how long the initial build took.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class SpatialIndexBenchmark {
+    private static final int CITIES = 300;
+    private static final int QUERIES = 4096;
+    private static final int UPDATE_BATCH = 1000;
+
+    @Param({"100000", "1000000"})
+    public int points;
+
+    private SpatialIndex index;
+    private double[][] cities;
+    private double[][] queries;
+    private Random random;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        random = new Random(points);
+        cities = new double[CITIES][];
+        for (int i = 0; i < CITIES; i++) {
+            cities[i] = randomPoint(random);
+        }
+        List<WeatherRecord> records = new ArrayList<>(points);
+        for (int i = 0; i < points; i++) {
+            records.add(location(i));
+        }
+        queries = new double[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = nearCity(random, 0.5);
+        }
+        index = new SpatialIndex();
+        long start = System.nanoTime();
+        index.update(records);
+        System.out.printf("%nBuilt the index of %d locations in %d ms%n", points, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private WeatherRecord location(int i) {
+        double[] point = random.nextInt(5) == 0 ? randomPoint(random) : nearCity(random, 1.0);
+        return new WeatherRecord("Town" + i, point[0], point[1], null, 0, null);
+    }
+
+    // Uniform over the sphere's surface
+    private static double[] randomPoint(Random random) {
+        return new double[] {Math.toDegrees(Math.asin(2 * random.nextDouble() - 1)), random.nextDouble() * 360 - 180};
+    }
+
+    private double[] nearCity(Random random, double spreadDegrees) {
+        double[] city = cities[random.nextInt(CITIES)];
+        double latitude = Math.max(-90, Math.min(90, city[0] + random.nextGaussian() * spreadDegrees));
+        double longitude = city[1] + random.nextGaussian() * spreadDegrees;
+        return new double[] {latitude, longitude > 180 ? longitude - 360 : longitude < -180 ? longitude + 360 : longitude};
+    }
+
+    private double[] nextQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return queries[next];
+    }
+
+    @Benchmark
+    public SpatialIndex.Match nearest() {
+        double[] query = nextQuery();
+        return index.nearest(query[0], query[1]);
+    }
+
+    @Benchmark
+    public List<SpatialIndex.Match> within50Km() {
+        double[] query = nextQuery();
+        return index.nearest(query[0], query[1], 100, 50);
+    }
+
+    @Benchmark
+    public int update() {
+        List<WeatherRecord> moved = new ArrayList<>(UPDATE_BATCH);
+        for (int i = 0; i < UPDATE_BATCH; i++) {
+            moved.add(location(random.nextInt(points)));
+        }
+        index.update(moved);
+        return index.size();
+    }
+}
@@ -0,0 +1,115 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The storage engines: the row lookup behind a getWeather cache miss, single-threaded and with 4
+ * threads, and committing an upload batch of 500 changed rows (forced to disk for the embedded
+ * engine). PostgreSQL is the in-process JDBC stand-in, which returns no rows and so only shows the
+ * driver-side cost; point {@code -Dbench.db.url} (plus {@code bench.db.user} and
+ * {@code bench.db.password}) at a real database to include the server. The setup upserts
+ * Town0..TownN-1 into it, so use a scratch database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+    private static final int COMMIT_BATCH = 500;
+
+    @Param({"postgres", "embedded"})
+    public String storage;
+
+    @Param({"100000"})
+    public int locations;
+
+    private WeatherStorage weatherStorage;
+    private Path directory;
+    private String[] names;
+    private Random random;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        if (storage.equals("embedded")) {
+            directory = Files.createTempDirectory("weather-storage");
+            weatherStorage = new EmbeddedStorage(directory, true, 0, 64L << 20);
+        } else {
+            String url = System.getProperty("bench.db.url");
+            weatherStorage = new PostgresStorage(url == null ? StubJdbc.pool(8) : new ConnectionPool(url,
+                    System.getProperty("bench.db.user", "postgres"), System.getProperty("bench.db.password", ""), 8, 5000, 32));
+        }
+        random = new Random(locations);
+        names = new String[locations];
+        List<WeatherRecord> chunk = new ArrayList<>();
+        try (WeatherStorage.Transaction transaction = weatherStorage.beginWrite()) {
+            for (int i = 0; i < locations; i++) {
+                WeatherRecord record = SyntheticWeatherFile.record(i, random);
+                names[i] = record.getLocation();
+                chunk.add(record);
+                if (chunk.size() == 10_000 || i == locations - 1) {
+                    transaction.upsert(chunk);
+                    transaction.commit();
+                    chunk.clear();
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        weatherStorage.close();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public WeatherRecord findWeather(LookupBenchmark.Cursor cursor) throws SQLException {
+        return weatherStorage.findWeather(names[cursor.next(locations)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public WeatherRecord findWeatherContended(LookupBenchmark.Cursor cursor) throws SQLException {
+        return weatherStorage.findWeather(names[cursor.next(locations)]);
+    }
+
+    @Benchmark
+    public int commitBatch() throws SQLException {
+        List<WeatherRecord> changed = new ArrayList<>(COMMIT_BATCH);
+        for (int i = 0; i < COMMIT_BATCH; i++) {
+            changed.add(SyntheticWeatherFile.record(random.nextInt(locations), random));
+        }
+        try (WeatherStorage.Transaction transaction = weatherStorage.beginWrite()) {
+            transaction.upsert(changed);
+            transaction.commit();
+        }
+        return changed.size();
+    }
+}
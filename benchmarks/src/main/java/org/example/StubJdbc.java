@@ -0,0 +1,168 @@
+package org.example;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for PostgreSQL so the benchmarks run offline. It registers a JDBC driver for
+ * {@code jdbc:stub:} URLs whose statements accept everything: batches report one row per entry and
+ * queries return no rows. The server code therefore runs unchanged (pooling, statement caching,
+ * batching, transactions), minus the network round trip and the database's own work.
+ */
+final class StubJdbc {
+    static final String URL = "jdbc:stub:weather";
+
+    private static final Driver DRIVER = new StubDriver();
+
+    static {
+        try {
+            DriverManager.registerDriver(DRIVER);
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private StubJdbc() {
+    }
+
+    static ConnectionPool pool(int maxSize) {
+        return new ConnectionPool(URL, "bench", "bench", maxSize, 5000, 32);
+    }
+
+    private static final class StubDriver implements Driver {
+        @Override
+        public Connection connect(String url, Properties info) {
+            return acceptsURL(url) ? connection() : null;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url != null && url.startsWith("jdbc:stub:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    private static Connection connection() {
+        boolean[] autoCommit = {true};
+        boolean[] closed = {false};
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return statement(PreparedStatement.class);
+                case "createStatement":
+                    return statement(Statement.class);
+                case "getAutoCommit":
+                    return autoCommit[0];
+                case "setAutoCommit":
+                    autoCommit[0] = (Boolean) args[0];
+                    return null;
+                case "isValid":
+                    return !closed[0];
+                case "isClosed":
+                    return closed[0];
+                case "close":
+                    closed[0] = true;
+                    return null;
+                default:
+                    return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    private static <T extends Statement> T statement(Class<T> type) {
+        int[] batched = {0};
+        boolean[] closed = {false};
+        return proxy(type, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "addBatch":
+                    batched[0]++;
+                    return null;
+                case "executeBatch": {
+                    int[] counts = new int[batched[0]];
+                    Arrays.fill(counts, 1);
+                    batched[0] = 0;
+                    return counts;
+                }
+                case "executeQuery":
+                    return proxy(ResultSet.class, (rs, rsMethod, rsArgs) -> defaultValue(rs, rsMethod.getName(), rsMethod.getReturnType(), rsArgs));
+                case "isClosed":
+                    return closed[0];
+                case "close":
+                    closed[0] = true;
+                    return null;
+                default:
+                    return defaultValue(proxy, method.getName(), method.getReturnType(), args);
+            }
+        });
+    }
+
+    // Whatever a do-nothing JDBC object would answer: false, zero or null (so a ResultSet has no rows)
+    private static Object defaultValue(Object proxy, String name, Class<?> returnType, Object[] args) {
+        switch (name) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "stub";
+            default:
+                break;
+        }
+        if (returnType == boolean.class) {
+            return false;
+        } else if (returnType == int.class) {
+            return 0;
+        } else if (returnType == long.class) {
+            return 0L;
+        } else if (returnType == double.class) {
+            return 0.0;
+        } else if (returnType == float.class) {
+            return 0f;
+        } else if (returnType == short.class) {
+            return (short) 0;
+        } else if (returnType == byte.class) {
+            return (byte) 0;
+        }
+        return null;
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(StubJdbc.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
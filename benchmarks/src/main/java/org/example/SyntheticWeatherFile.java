@@ -0,0 +1,76 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates upload files in the format of weather.json ("Town0" ... "TownN-1", three-day forecast).
+ * Files are deterministic and kept in java.io.tmpdir, so large ones are only written once.
+ */
+final class SyntheticWeatherFile {
+    private static final String[] CONDITIONS = {"Sunny", "Rainy", "Cloudy", "Snowy", "Windy"};
+
+    private SyntheticWeatherFile() {
+    }
+
+    static Path get(int locations) throws IOException {
+        Path path = Paths.get(System.getProperty("java.io.tmpdir"), "weather-bench-" + locations + ".json");
+        if (!Files.exists(path)) {
+            Path partial = Files.createTempFile(path.getParent(), "weather-bench-", ".tmp");
+            try (Writer out = new BufferedWriter(Files.newBufferedWriter(partial, StandardCharsets.UTF_8), 1 << 16)) {
+                write(out, locations, new Random(locations));
+            }
+            Files.move(partial, path);
+        }
+        return path;
+    }
+
+    static WeatherRecord record(int index, Random random) {
+        StringBuilder forecast = new StringBuilder("[");
+        for (int day = 0; day < 3; day++) {
+            if (day > 0) {
+                forecast.append(',');
+            }
+            forecast.append("{\"weather\":\"").append(condition(random)).append("\",\"temperature\":")
+                    .append(String.format(Locale.ROOT, "%.1f", temperature(random))).append('}');
+        }
+        return new WeatherRecord("Town" + index, latitude(random), longitude(random), condition(random), temperature(random),
+                forecast.append(']').toString());
+    }
+
+    private static void write(Writer out, int locations, Random random) throws IOException {
+        out.write("[\n");
+        for (int i = 0; i < locations; i++) {
+            WeatherRecord record = record(i, random);
+            out.write(i == 0 ? "  " : ", ");
+            out.write(String.format(Locale.ROOT,
+                    "{\"location\": \"%s\", \"latitude\": %.4f, \"longitude\": %.4f, \"current_weather\": \"%s\", \"current_temperature\": %.1f, \"forecast\": %s}\n",
+                    record.getLocation(), record.getLatitude(), record.getLongitude(), record.getCurrentWeather(),
+                    record.getCurrentTemperature(), record.getForecastJson()));
+        }
+        out.write("]\n");
+    }
+
+    private static String condition(Random random) {
+        return CONDITIONS[random.nextInt(CONDITIONS.length)];
+    }
+
+    private static double latitude(Random random) {
+        return -80 + random.nextDouble() * 160;
+    }
+
+    private static double longitude(Random random) {
+        return -179 + random.nextDouble() * 358;
+    }
+
+    private static double temperature(Random random) {
+        return -20 + random.nextDouble() * 60;
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link WeatherColumns} queries over synthetic locations with 3-7 forecast days each: the 10 hottest
+ * locations, the locations with rain in the forecast, and the average forecast temperature per
+ * condition. {@code forecastAveragesFromRows} answers the last question the way it would be
+ * answered from the rows (parse every forecast, box the sums), for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class WeatherColumnsBenchmark {
+    private static final String[] CONDITIONS = {"Sunny", "Cloudy", "Rainy", "Snowy", "Windy", "Foggy"};
+
+    @Param({"100000", "1000000"})
+    public int locations;
+
+    private WeatherColumns columns;
+    private List<WeatherRecord> records;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(locations);
+        records = new ArrayList<>(locations);
+        for (int i = 0; i < locations; i++) {
+            StringBuilder forecast = new StringBuilder("[");
+            int days = 3 + random.nextInt(5);
+            for (int day = 0; day < days; day++) {
+                forecast.append(day == 0 ? "" : ",").append("{\"weather\":\"").append(CONDITIONS[random.nextInt(CONDITIONS.length)])
+                        .append("\",\"temperature\":").append(random.nextInt(400) / 10.0).append('}');
+            }
+            forecast.append(']');
+            records.add(new WeatherRecord("Town" + i, 0, 0, CONDITIONS[random.nextInt(CONDITIONS.length)],
+                    random.nextInt(500) / 10.0 - 10, forecast.toString()));
+        }
+        columns = new WeatherColumns();
+        columns.update(records);
+    }
+
+    @Benchmark
+    public List<WeatherColumns.RankedLocation> hottest10() {
+        return columns.rankByTemperature(10, false, null);
+    }
+
+    @Benchmark
+    public int rainyForecast() {
+        return columns.findByForecast("Rainy", 100, new ArrayList<>());
+    }
+
+    @Benchmark
+    public List<WeatherColumns.ConditionAverage> forecastAverages() {
+        return columns.forecastAverages();
+    }
+
+    @Benchmark
+    public Map<String, Double> forecastAveragesFromRows() {
+        Map<String, Double> sums = new HashMap<>();
+        Map<String, Long> days = new HashMap<>();
+        for (WeatherRecord record : records) {
+            for (JsonElement day : JsonParser.parseString(record.getForecastJson()).getAsJsonArray()) {
+                JsonObject entry = day.getAsJsonObject();
+                String condition = entry.get("weather").getAsString();
+                sums.merge(condition, entry.get("temperature").getAsDouble(), Double::sum);
+                days.merge(condition, 1L, Long::sum);
+            }
+        }
+        Map<String, Double> averages = new HashMap<>();
+        sums.forEach((condition, sum) -> averages.put(condition, sum / days.get(condition)));
+        return averages;
+    }
+}
@@ -0,0 +1,125 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON lines versus {@link BinaryProtocol} frames for getWeather responses: encoding on the server
+ * (what a cache miss pays), decoding on the client, for one record and for a 100-location batch.
+ * Binary frames are decoded both into JSON objects ({@link Client}) and straight from a buffer
+ * ({@link WeatherClient}). The setup prints the encoded sizes of both formats.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireFormatBenchmark {
+    private static final Gson gson = new Gson();
+    private static final int BATCH_SIZE = 100;
+
+    private WeatherRecord record;
+    private byte[] jsonLine;
+    private byte[] binaryFrame;
+    private byte[] jsonBatch;
+    private byte[] binaryBatch;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        record = SyntheticWeatherFile.record(1, random);
+        jsonLine = WeatherResponse.of(record).getJsonLine();
+        binaryFrame = WeatherResponse.of(record).getBinaryFrame();
+
+        Map<String, WeatherResponse> batch = new LinkedHashMap<>();
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        json.write('{');
+        writeUtf8(json, "\"results\":[");
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            WeatherResponse response = WeatherResponse.of(SyntheticWeatherFile.record(i, random));
+            batch.put(response.getRecord().getLocation(), response);
+            if (i > 0) {
+                json.write(',');
+            }
+            json.write(response.getJsonLine(), 0, response.getJsonLine().length - 1);
+        }
+        writeUtf8(json, "],\"unknown\":[]}\n");
+        jsonBatch = json.toByteArray();
+        binaryBatch = BinaryProtocol.batchFrame(null, batch);
+
+        System.out.printf("%nOne record: JSON %d bytes, binary %d bytes; batch of %d: JSON %d bytes, binary %d bytes%n",
+                jsonLine.length, binaryFrame.length, BATCH_SIZE, jsonBatch.length, binaryBatch.length);
+    }
+
+    private static void writeUtf8(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return (gson.toJson(WeatherResponse.toJson(record)) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryProtocol.frame(BinaryProtocol.FRAME_WEATHER, null, BinaryProtocol.encodeWeather(record));
+    }
+
+    @Benchmark
+    public JsonObject decodeJson() {
+        return gson.fromJson(new String(jsonLine, StandardCharsets.UTF_8), JsonObject.class);
+    }
+
+    @Benchmark
+    public JsonObject decodeBinary() throws IOException {
+        return BinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(binaryFrame)));
+    }
+
+    @Benchmark
+    public JsonObject decodeJsonBatch() {
+        return gson.fromJson(new String(jsonBatch, StandardCharsets.UTF_8), JsonObject.class);
+    }
+
+    @Benchmark
+    public JsonObject decodeBinaryBatch() throws IOException {
+        return BinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(binaryBatch)));
+    }
+
+    @Benchmark
+    public WeatherClient.Weather decodeBinaryDirect() throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(binaryFrame);
+        frame.position(5); // Length and type
+        BinaryProtocol.readString(frame); // Id
+        return BinaryProtocol.readWeather(frame);
+    }
+
+    @Benchmark
+    public Map<String, WeatherClient.Weather> decodeBinaryBatchDirect() throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(binaryBatch);
+        frame.position(5);
+        BinaryProtocol.readString(frame);
+        return BinaryProtocol.readWeatherBatch(frame);
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class AdmissionControlTest {
+    @Test
+    void limitsConnectionsPerAddress() {
+        AdmissionControl admission = new AdmissionControl(0, 2, 0, 0, 0, 1, null);
+        assertTrue(admission.tryOpen("10.0.0.1"));
+        assertTrue(admission.tryOpen("10.0.0.1"));
+        assertFalse(admission.tryOpen("10.0.0.1"));
+        assertTrue(admission.tryOpen("10.0.0.2"));
+        assertEquals(3, admission.getOpenConnections(), "refusals are not counted as open");
+
+        admission.release("10.0.0.1");
+        assertTrue(admission.tryOpen("10.0.0.1"));
+    }
+
+    @Test
+    void limitsConnectionsInTotal() {
+        AdmissionControl admission = new AdmissionControl(2, 0, 0, 0, 0, 1, null);
+        assertTrue(admission.tryOpen("10.0.0.1"));
+        assertTrue(admission.tryOpen("10.0.0.2"));
+        assertFalse(admission.tryOpen("10.0.0.3"));
+        admission.release("10.0.0.1");
+        assertTrue(admission.tryOpen("10.0.0.3"));
+    }
+
+    // Connections that open and close at once must never let an address past its limit
+    @Test
+    void perAddressLimitHoldsUnderChurn() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(0, 2, 0, 0, 0, 1, null);
+        AtomicInteger admitted = new AtomicInteger();
+        AtomicInteger mostAdmitted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    if (admission.tryOpen("10.0.0.1")) {
+                        mostAdmitted.accumulateAndGet(admitted.incrementAndGet(), Math::max);
+                        admitted.decrementAndGet();
+                        admission.release("10.0.0.1");
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(mostAdmitted.get() <= 2, mostAdmitted.get() + " connections admitted at once");
+        assertEquals(0, admission.getOpenConnections());
+        assertTrue(admission.tryOpen("10.0.0.1"));
+        assertTrue(admission.tryOpen("10.0.0.1"));
+        assertFalse(admission.tryOpen("10.0.0.1"));
+    }
+
+    @Test
+    void rateLimitsEachUserSeparately() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0.001, 2, null);
+        assertEquals(0, admission.tryAcquireRequest("ana"));
+        assertEquals(0, admission.tryAcquireRequest("ana"));
+        assertTrue(admission.tryAcquireRequest("ana") > 0, "the burst is used up");
+        assertEquals(0, admission.tryAcquireRequest("ion"));
+
+        admission.sweep(); // Neither bucket has refilled, so both stay
+        assertTrue(admission.tryAcquireRequest("ana") > 0);
+    }
+
+    @Test
+    void requestsWithoutAUserAreNotLimited() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0.001, 1, null);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, admission.tryAcquireRequest(null));
+        }
+    }
+
+    // A full bucket is dropped and comes back full, which is the same as keeping it
+    @Test
+    void sweepDropsOnlyFullBuckets() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 1_000_000, 1, null);
+        assertEquals(0, admission.tryAcquireRequest("ana"));
+        admission.sweep();
+        assertEquals("Admission[open=0, rateLimitedUsers=0]", admission.toString());
+        assertEquals(0, admission.tryAcquireRequest("ana"));
+    }
+}
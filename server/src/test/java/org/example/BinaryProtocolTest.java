@@ -0,0 +1,151 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class BinaryProtocolTest {
+    private static final WeatherRecord DAYS = new WeatherRecord("Târgu Mureș", 46.54, 24.56, "Sunny", 21.5,
+            "[{\"weather\":\"Rain\",\"temperature\":8.0},{\"weather\":\"Snow\",\"temperature\":-2.5}]");
+    // A third field doesn't fit the day schema, so the forecast travels as raw JSON
+    private static final WeatherRecord RAW = new WeatherRecord("Sibiu", 45.8, 24.15, "Cloudy", 9,
+            "[{\"weather\":\"Rain\",\"temperature\":8,\"wind\":12}]");
+    private static final WeatherRecord NO_FORECAST = new WeatherRecord("Cluj", 46.77, 23.6, null, -3, null);
+
+    static JsonObject readFrame(byte[] frame) throws IOException {
+        return BinaryProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(frame)));
+    }
+
+    // What the JSON protocol sends for the record, as the client would parse it
+    private static JsonObject jsonResponse(WeatherRecord record) {
+        return JsonParser.parseString(new String(WeatherResponse.of(record).getJsonLine(), StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    // The payload of a frame, after its length, type and id, the way WeatherClient reads it
+    private static ByteBuffer payload(byte[] frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        assertEquals(frame.length - 4, buffer.getInt());
+        buffer.get();
+        BinaryProtocol.readString(buffer);
+        return buffer;
+    }
+
+    @Test
+    void weatherFramesDecodeToTheJsonResponse() throws IOException {
+        for (WeatherRecord record : Arrays.asList(DAYS, RAW, NO_FORECAST)) {
+            WeatherResponse response = WeatherResponse.of(record);
+            assertEquals(jsonResponse(record), readFrame(response.getBinaryFrame()), record.getLocation());
+        }
+    }
+
+    @Test
+    void requestIdIsEchoedAsJson() throws IOException {
+        byte[] frame = BinaryProtocol.frame(BinaryProtocol.FRAME_WEATHER, "{\"client\":7}", WeatherResponse.of(DAYS).getBinaryWeather());
+        JsonObject message = readFrame(frame);
+        assertEquals("{\"client\":7}", message.get("id").toString());
+        message.remove("id");
+        assertEquals(jsonResponse(DAYS), message);
+    }
+
+    @Test
+    void jsonFramesCarryTheObjectAsIs() throws IOException {
+        JsonObject message = readFrame(BinaryProtocol.jsonFrame("\"ack\"", "{\"status\":\"ok\"}"));
+        assertEquals("{\"status\":\"ok\",\"id\":\"ack\"}", message.toString());
+    }
+
+    @Test
+    void batchFrameListsKnownAndUnknownLocations() throws IOException {
+        Map<String, WeatherResponse> responses = new LinkedHashMap<>();
+        responses.put("Sibiu", WeatherResponse.of(RAW));
+        responses.put("Atlantis", null);
+        responses.put("Târgu Mureș", WeatherResponse.of(DAYS));
+        byte[] frame = BinaryProtocol.batchFrame("3", responses);
+
+        JsonObject message = readFrame(frame);
+        assertEquals(3, message.get("id").getAsInt());
+        assertEquals(2, message.getAsJsonArray("results").size());
+        assertEquals(jsonResponse(RAW), message.getAsJsonArray("results").get(0));
+        assertEquals(jsonResponse(DAYS), message.getAsJsonArray("results").get(1));
+        assertEquals("[\"Atlantis\"]", message.getAsJsonArray("unknown").toString());
+
+        Map<String, WeatherClient.Weather> decoded = BinaryProtocol.readWeatherBatch(payload(frame));
+        assertEquals(Arrays.asList("Sibiu", "Târgu Mureș"), new ArrayList<>(decoded.keySet()));
+    }
+
+    @Test
+    void pushFrameIsAnUpdateEventWithoutId() throws IOException {
+        JsonObject message = readFrame(BinaryProtocol.pushFrame(Collections.singletonList(WeatherResponse.of(NO_FORECAST))));
+        assertFalse(message.has("id"));
+        assertEquals("weatherUpdate", message.get("event").getAsString());
+        assertEquals(jsonResponse(NO_FORECAST), message.getAsJsonArray("results").get(0));
+    }
+
+    @Test
+    void nearestFrameStartsWithTheDistance() throws IOException {
+        JsonObject message = readFrame(BinaryProtocol.nearestFrame(null, 12.75, WeatherResponse.of(DAYS).getBinaryWeather()));
+        List<String> fields = new ArrayList<>();
+        for (Map.Entry<String, JsonElement> field : message.entrySet()) {
+            fields.add(field.getKey());
+        }
+        assertEquals("distance_km", fields.get(0));
+        assertEquals(12.75, message.get("distance_km").getAsDouble(), 0);
+        assertEquals("Târgu Mureș", message.get("location").getAsString());
+    }
+
+    // WeatherClient decodes straight from its buffer, without the JSON detour
+    @Test
+    void clientDecodesWeatherFromTheBuffer() throws IOException {
+        WeatherClient.Weather days = BinaryProtocol.readWeather(payload(WeatherResponse.of(DAYS).getBinaryFrame()));
+        assertEquals("Târgu Mureș", days.getLocation());
+        assertEquals("Sunny", days.getCurrentWeather());
+        assertEquals(21.5, days.getCurrentTemperature(), 0);
+        assertEquals(2, days.getForecast().size());
+        assertEquals("Snow", days.getForecast().get(1).getWeather());
+        assertEquals(-2.5, days.getForecast().get(1).getTemperature(), 0);
+        assertNull(days.getForecastJson());
+
+        WeatherClient.Weather raw = BinaryProtocol.readWeather(payload(WeatherResponse.of(RAW).getBinaryFrame()));
+        assertTrue(raw.getForecast().isEmpty());
+        assertEquals(RAW.getForecastJson(), raw.getForecastJson());
+
+        WeatherClient.Weather none = BinaryProtocol.readWeather(payload(WeatherResponse.of(NO_FORECAST).getBinaryFrame()));
+        assertNull(none.getCurrentWeather());
+        assertTrue(none.getForecast().isEmpty());
+        assertNull(none.getForecastJson());
+    }
+
+    @Test
+    void truncatedWeatherIsAnIOException() {
+        byte[] weather = WeatherResponse.of(DAYS).getBinaryWeather();
+        ByteBuffer cut = ByteBuffer.wrap(Arrays.copyOf(weather, weather.length - 5));
+        assertThrows(IOException.class, () -> BinaryProtocol.readWeather(cut));
+    }
+
+    @Test
+    void requestIdsMustFitTheStringLength() {
+        char[] longest = new char[65_532];
+        Arrays.fill(longest, 'x');
+        String tooLong = "\"" + new String(longest) + "\""; // 65534 bytes with the quotes, one below the null marker
+        assertTrue(BinaryProtocol.fitsRequestId(tooLong.substring(1)));
+        assertFalse(BinaryProtocol.fitsRequestId(tooLong));
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.frame(BinaryProtocol.FRAME_JSON, tooLong, new byte[0]));
+    }
+}
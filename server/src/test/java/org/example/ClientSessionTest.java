@@ -0,0 +1,171 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ClientSessionTest {
+    private Path directory;
+    private EmbeddedStorage storage;
+    private UserWriteBehind userWrites;
+    private ClientSession session;
+    private final RecordingOutput output = new RecordingOutput();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("session-test");
+        storage = new EmbeddedStorage(directory, false, 0, Long.MAX_VALUE);
+        try (WeatherStorage.Transaction transaction = storage.beginWrite()) {
+            transaction.insertNew(Arrays.asList(WeatherIngestTest.record("Sibiu", 12.5), WeatherIngestTest.record("Cluj", 9)));
+            transaction.commit();
+        }
+        userWrites = new UserWriteBehind(storage, 1000, 1000);
+        // No uploads, pushes, location indexes, analytics, history, limits or cluster here
+        session = new ClientSession(output, storage, new WeatherCache(100, 3600, 3600), null, userWrites,
+                null, null, null, null, null, null, null);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        userWrites.close();
+        storage.close();
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    void pipelinedResponsesCarryTheirRequestIds() {
+        session.handleLine("{\"role\":\"user\",\"username\":\"ana\",\"pipelined\":true}");
+        session.handleLine("{\"type\":\"getWeather\",\"location\":\"Sibiu\",\"id\":1}");
+        session.handleLine("{\"type\":\"getWeatherBatch\",\"locations\":[\"Cluj\",\"Atlantis\"],\"id\":\"batch\"}");
+        session.handleLine("{\"type\":\"updateLocation\",\"currentLocation\":\"Cluj\",\"id\":3}");
+        session.handleLine("{\"type\":\"getForecast\",\"id\":{\"client\":7}}");
+
+        List<JsonObject> responses = output.messages();
+        assertEquals(5, responses.size(), "exactly one line per request, no menus");
+        assertEquals("{\"status\":\"ok\"}", responses.get(0).toString());
+
+        JsonObject weather = responses.get(1);
+        assertEquals(1, weather.get("id").getAsInt());
+        assertEquals("Sibiu", weather.get("location").getAsString());
+        assertEquals(12.5, weather.get("current_temperature").getAsDouble(), 0);
+
+        JsonObject batch = responses.get(2);
+        assertEquals("batch", batch.get("id").getAsString());
+        assertEquals("Cluj", batch.getAsJsonArray("results").get(0).getAsJsonObject().get("location").getAsString());
+        assertEquals("[\"Atlantis\"]", batch.getAsJsonArray("unknown").toString());
+
+        assertEquals("{\"id\":3,\"status\":\"ok\"}", responses.get(3).toString());
+        assertEquals("{\"client\":7}", responses.get(4).get("id").toString());
+        assertEquals("Invalid 'type' field in request", responses.get(4).get("error").getAsString());
+    }
+
+    // The id goes first, so a client can route a line before parsing the rest of it
+    @Test
+    void idIsTheFirstFieldOfTheLine() {
+        session.handleLine("{\"role\":\"user\",\"username\":\"ana\",\"pipelined\":true}");
+        session.handleLine("{\"type\":\"getWeather\",\"location\":\"Cluj\",\"id\":42}");
+        assertTrue(output.lines.get(1).startsWith("{\"id\":42,\"location\":\"Cluj\""), output.lines.get(1));
+    }
+
+    @Test
+    void pipelinedSessionWithoutALocationMustNameOne() {
+        session.handleLine("{\"role\":\"user\",\"username\":\"ana\",\"pipelined\":true}");
+        session.handleLine("{\"type\":\"getWeather\",\"id\":1}");
+        JsonObject error = output.messages().get(1);
+        assertEquals(1, error.get("id").getAsInt());
+        assertEquals("Missing 'location' in request", error.get("error").getAsString());
+    }
+
+    @Test
+    void requestIdTooLongForABinaryFrameIsRefused() {
+        session.handleLine("{\"role\":\"user\",\"username\":\"ana\",\"pipelined\":true}");
+        char[] id = new char[70_000];
+        Arrays.fill(id, 'x');
+        session.handleLine("{\"type\":\"getWeather\",\"location\":\"Sibiu\",\"id\":\"" + new String(id) + "\"}");
+        JsonObject error = output.messages().get(1);
+        assertFalse(error.has("id"));
+        assertEquals("An error occurred: The request 'id' is too long.", error.get("error").getAsString());
+    }
+
+    // Without "pipelined" every request is answered with its response and the next menu, and ids are ignored
+    @Test
+    void classicSessionAnswersWithMenusAndNoIds() {
+        session.handleLine("{\"role\":\"user\",\"username\":\"ana\"}");
+        session.handleLine("{\"currentLocation\":\"Sibiu\"}");
+        session.handleLine("{\"type\":\"getWeather\",\"id\":9}");
+
+        List<JsonObject> responses = output.messages();
+        assertEquals(4, responses.size());
+        assertEquals("Please set your current location:", responses.get(0).get("header").getAsString());
+        assertEquals("Options:", responses.get(1).get("header").getAsString());
+        assertNull(responses.get(2).get("id"));
+        assertEquals("Sibiu", responses.get(2).get("location").getAsString());
+        assertEquals("Options:", responses.get(3).get("header").getAsString());
+    }
+
+    @Test
+    void binarySessionAnswersWithFramesCarryingTheIds() throws IOException {
+        session.handleLine("{\"role\":\"user\",\"username\":\"ana\",\"pipelined\":true,\"protocol\":\"binary\"}");
+        session.handleLine("{\"type\":\"getWeather\",\"location\":\"Cluj\",\"id\":5}");
+        session.handleLine("{\"type\":\"getWeatherBatch\",\"locations\":[\"Sibiu\",\"Atlantis\"],\"id\":6}");
+
+        assertEquals(3, output.frames.size());
+        assertEquals("{\"status\":\"ok\"}", BinaryProtocolTest.readFrame(output.frames.get(0)).toString());
+        JsonObject weather = BinaryProtocolTest.readFrame(output.frames.get(1));
+        assertEquals(5, weather.get("id").getAsInt());
+        assertEquals("Cluj", weather.get("location").getAsString());
+        JsonObject batch = BinaryProtocolTest.readFrame(output.frames.get(2));
+        assertEquals(6, batch.get("id").getAsInt());
+        assertEquals("Sibiu", batch.getAsJsonArray("results").get(0).getAsJsonObject().get("location").getAsString());
+        assertEquals("[\"Atlantis\"]", batch.getAsJsonArray("unknown").toString());
+    }
+
+    // Keeps what the session sent, one entry per message
+    static final class RecordingOutput implements ClientSession.Output {
+        final List<String> lines = new ArrayList<>();
+        final List<byte[]> frames = new ArrayList<>(); // Everything sent as bytes, including binary frames
+
+        @Override
+        public void send(String line) {
+            lines.add(line);
+        }
+
+        @Override
+        public void send(byte[] line) {
+            frames.add(line);
+            String text = new String(line, StandardCharsets.UTF_8);
+            lines.add(text.endsWith("\n") ? text.substring(0, text.length() - 1) : text);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String remoteAddress() {
+            return "test";
+        }
+
+        List<JsonObject> messages() {
+            List<JsonObject> messages = new ArrayList<>();
+            for (String line : lines) {
+                messages.add(JsonParser.parseString(line).getAsJsonObject());
+            }
+            return messages;
+        }
+    }
+}
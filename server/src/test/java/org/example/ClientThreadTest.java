@@ -0,0 +1,74 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// A real connection, because the flushing of pipelined responses depends on what the socket has delivered
+class ClientThreadTest {
+    private Path directory;
+    private EmbeddedStorage storage;
+    private UserWriteBehind userWrites;
+    private Socket client;
+    private ClientThread thread;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("client-thread-test");
+        storage = new EmbeddedStorage(directory, false, 0, Long.MAX_VALUE);
+        userWrites = new UserWriteBehind(storage, 1000, 1000);
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            client.setSoTimeout(5000);
+            Socket accepted = server.accept();
+            thread = new ClientThread(accepted, output -> new ClientSession(output, storage, new WeatherCache(100, 3600, 3600), null,
+                    userWrites, null, null, null, null, null, null, null), AdmissionControl.unlimited());
+        }
+        thread.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        client.close();
+        thread.join(5000);
+        userWrites.close();
+        storage.close();
+        TestFiles.delete(directory);
+    }
+
+    // The responses to a burst of requests are flushed together, even when the burst ends in part of the next request
+    @Test
+    void pipelinedBurstIsAnsweredWhileTheNextLineIsIncomplete() throws IOException {
+        OutputStream out = client.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        out.write(("{\"role\":\"user\",\"username\":\"ana\",\"pipelined\":true}\n"
+                + "{\"type\":\"getWeather\",\"location\":\"Sibiu\",\"id\":1}\n"
+                + "{\"type\":\"updateLocation\",\"currentLocation\":\"Cluj\",\"id\":2}\r\n"
+                + "{\"type\":\"getWeather\",\"loc").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        assertEquals("{\"status\":\"ok\"}", in.readLine());
+        JsonObject unknown = JsonParser.parseString(in.readLine()).getAsJsonObject();
+        assertEquals(1, unknown.get("id").getAsInt());
+        assertEquals("Weather data not available for location: Sibiu", unknown.get("error").getAsString());
+        assertEquals("{\"id\":2,\"status\":\"ok\"}", in.readLine());
+
+        out.write("ation\":\"Cluj\",\"id\":3}\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        assertEquals(3, JsonParser.parseString(in.readLine()).getAsJsonObject().get("id").getAsInt());
+    }
+}
@@ -0,0 +1,198 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class EmbeddedStorageTest {
+    private Path directory;
+    private Path data;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("storage-test");
+        data = directory.resolve("data");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        TestFiles.delete(directory);
+    }
+
+    private static EmbeddedStorage open(Path path) throws SQLException {
+        return new EmbeddedStorage(path, false, 0, Long.MAX_VALUE); // Snapshots only when asked for
+    }
+
+    private static void write(WeatherStorage storage, WeatherRecord... records) throws SQLException {
+        try (WeatherStorage.Transaction transaction = storage.beginWrite()) {
+            transaction.upsert(Arrays.asList(records));
+            transaction.commit();
+        }
+    }
+
+    // The files as a crash would leave them: no final snapshot, and no lock held
+    private Path crashCopy() throws IOException {
+        Path copy = directory.resolve("crashed");
+        Files.createDirectories(copy);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(data)) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().equals("storage.lock")) {
+                    Files.copy(file, copy.resolve(file.getFileName()));
+                }
+            }
+        }
+        return copy;
+    }
+
+    private static Set<String> usernames(WeatherStorage storage) throws SQLException {
+        Set<String> usernames = new TreeSet<>();
+        storage.forEachUsername(usernames::add);
+        return usernames;
+    }
+
+    private static Set<String> files(Path path) throws IOException {
+        Set<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            files.forEach(file -> names.add(file.getFileName().toString()));
+        }
+        return names;
+    }
+
+    @Test
+    void commitsAreReplayedFromTheLogAfterACrash() throws Exception {
+        Path crashed;
+        try (EmbeddedStorage storage = open(data)) {
+            write(storage, WeatherIngestTest.record("Sibiu", 1), WeatherIngestTest.record("Cluj", 2));
+            write(storage, WeatherIngestTest.record("Sibiu", 3));
+            storage.writeUsers(Collections.singletonMap("ana", "user"), Collections.singletonMap("ana", "Sibiu"));
+            crashed = crashCopy();
+        }
+        assertFalse(files(crashed).contains("snapshot.dat"));
+
+        try (EmbeddedStorage recovered = open(crashed)) {
+            assertEquals(3, recovered.findWeather("Sibiu").getCurrentTemperature(), 0);
+            assertEquals(2, recovered.findWeather("Cluj").getCurrentTemperature(), 0);
+            assertEquals(WeatherIngestTest.record("Cluj", 2).getForecastJson(), recovered.findWeather("Cluj").getForecastJson());
+            assertEquals(Collections.singleton("ana"), usernames(recovered));
+        }
+    }
+
+    // A commit cut short by a crash fails its checksum: it is dropped and cut off the log
+    @Test
+    void tornCommitAtTheEndOfTheLogIsDiscarded() throws Exception {
+        Path crashed;
+        try (EmbeddedStorage storage = open(data)) {
+            write(storage, WeatherIngestTest.record("Sibiu", 1));
+            crashed = crashCopy();
+        }
+        Path log = crashed.resolve("log-0.wal");
+        long intact = Files.size(log);
+        Files.write(log, new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 5, 6}, StandardOpenOption.APPEND); // Header and part of a frame
+
+        try (EmbeddedStorage recovered = open(crashed)) {
+            assertEquals(intact, Files.size(log));
+            assertEquals(1, recovered.findWeather("Sibiu").getCurrentTemperature(), 0);
+            write(recovered, WeatherIngestTest.record("Cluj", 2));
+        }
+        try (EmbeddedStorage reopened = open(crashed)) {
+            assertEquals(2, reopened.findWeather("Cluj").getCurrentTemperature(), 0, "commits after the repair are readable");
+        }
+    }
+
+    @Test
+    void recoveryReadsTheSnapshotAndTheLogWrittenAfterIt() throws Exception {
+        Path crashed;
+        try (EmbeddedStorage storage = open(data)) {
+            write(storage, WeatherIngestTest.record("Sibiu", 1), WeatherIngestTest.record("Cluj", 2));
+            storage.writeUsers(Collections.singletonMap("ana", "user"), Collections.emptyMap());
+            storage.snapshot();
+            assertEquals(new TreeSet<>(Arrays.asList("log-1.wal", "snapshot.dat", "storage.lock")), files(data), "the snapshot replaces log 0");
+
+            write(storage, WeatherIngestTest.record("Sibiu", 5), WeatherIngestTest.record("Brasov", 6));
+            storage.writeUsers(Collections.singletonMap("ion", "user"), Collections.emptyMap());
+            crashed = crashCopy();
+        }
+
+        try (EmbeddedStorage recovered = open(crashed)) {
+            assertEquals(5, recovered.findWeather("Sibiu").getCurrentTemperature(), 0);
+            assertEquals(2, recovered.findWeather("Cluj").getCurrentTemperature(), 0);
+            assertEquals(6, recovered.findWeather("Brasov").getCurrentTemperature(), 0);
+            assertEquals(new TreeSet<>(Arrays.asList("ana", "ion")), usernames(recovered));
+        }
+    }
+
+    // Closing takes a last snapshot, so the next start has no log to replay
+    @Test
+    void closeLeavesOnlyASnapshot() throws Exception {
+        try (EmbeddedStorage storage = open(data)) {
+            write(storage, WeatherIngestTest.record("Sibiu", 1));
+        }
+        assertTrue(Files.exists(data.resolve("snapshot.dat")));
+        assertEquals(0, Files.size(data.resolve("log-1.wal")));
+        assertFalse(Files.exists(data.resolve("log-0.wal")));
+        try (EmbeddedStorage reopened = open(data)) {
+            assertEquals(1, reopened.findWeather("Sibiu").getCurrentTemperature(), 0);
+            assertNull(reopened.findWeather("Cluj"));
+        }
+    }
+
+    @Test
+    void directoryCanOnlyBeOpenedOnce() throws Exception {
+        try (EmbeddedStorage storage = open(data)) {
+            SQLException error = assertThrows(SQLException.class, () -> open(data));
+            assertTrue(error.getMessage().endsWith("it is in use by another server"), error.getMessage());
+        }
+        open(data).close();
+    }
+
+    // Of two writers inserting the same new location, the second to commit is told it lost
+    @Test
+    void concurrentInsertOfTheSameLocationKeepsTheFirstCommit() throws Exception {
+        try (EmbeddedStorage storage = open(data);
+             WeatherStorage.Transaction first = storage.beginWrite();
+             WeatherStorage.Transaction second = storage.beginWrite()) {
+            assertArrayEquals(new boolean[]{true}, first.insertNew(Collections.singletonList(WeatherIngestTest.record("Sibiu", 1))));
+            assertArrayEquals(new boolean[]{true, true},
+                    second.insertNew(Arrays.asList(WeatherIngestTest.record("Sibiu", 2), WeatherIngestTest.record("Cluj", 3))));
+            assertTrue(first.commit().isEmpty());
+            assertEquals(Collections.singleton("Sibiu"), second.commit());
+
+            assertEquals(1, storage.findWeather("Sibiu").getCurrentTemperature(), 0);
+            assertEquals(3, storage.findWeather("Cluj").getCurrentTemperature(), 0);
+        }
+    }
+
+    @Test
+    void locationUpdatesOnlyApplyToRegisteredUsers() throws Exception {
+        Map<String, String> locations = new HashMap<>();
+        locations.put("ana", "Sibiu");
+        locations.put("ghost", "Cluj");
+        try (EmbeddedStorage storage = open(data)) {
+            storage.writeUsers(Collections.singletonMap("ana", "user"), locations);
+            storage.writeUsers(Collections.singletonMap("ana", "admin"), Collections.emptyMap()); // Already registered: kept as is
+            assertEquals(Collections.singleton("ana"), usernames(storage));
+        }
+        try (EmbeddedStorage reopened = open(data)) {
+            assertEquals(Collections.singleton("ana"), usernames(reopened));
+        }
+    }
+}
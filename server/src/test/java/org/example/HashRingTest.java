@@ -0,0 +1,94 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class HashRingTest {
+    private static final List<String> NODES = Arrays.asList("10.0.0.1:5000", "10.0.0.2:5000", "10.0.0.3:5000", "10.0.0.4:5000");
+    private static final int KEYS = 10_000;
+
+    // Nodes of different versions must agree on every hash, so it may never change
+    @Test
+    void hashIsFixed() {
+        assertEquals(-4650208903586068535L, HashRing.hash("Sibiu"));
+        assertEquals(-1166397803181037274L, HashRing.hash(""));
+    }
+
+    // Every node builds the ring from its own copy of the list, in whatever order it was configured
+    @Test
+    void ownershipDoesNotDependOnTheOrderOfTheNodes() {
+        List<String> reversed = new ArrayList<>(NODES);
+        Collections.reverse(reversed);
+        HashRing ring = new HashRing(NODES, 64);
+        HashRing other = new HashRing(reversed, 64);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.owner("Town" + i), other.owner("Town" + i));
+        }
+    }
+
+    @Test
+    void keysAreSpreadEvenly() {
+        HashRing ring = new HashRing(NODES, 100);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.owner("Town" + i), 1, Integer::sum);
+        }
+        assertEquals(NODES.size(), owned.size());
+        for (int count : owned.values()) {
+            assertTrue(count > KEYS / 4 * 0.8 && count < KEYS / 4 * 1.2, "keys per node: " + owned);
+        }
+    }
+
+    // A new node takes about 1/N of the keys, all from the others; no key moves between the old nodes
+    @Test
+    void addingANodeOnlyMovesKeysToIt() {
+        HashRing before = new HashRing(NODES, 100);
+        List<String> grown = new ArrayList<>(NODES);
+        grown.add("10.0.0.5:5000");
+        HashRing after = new HashRing(grown, 100);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "Town" + i;
+            if (!before.owner(key).equals(after.owner(key))) {
+                assertEquals("10.0.0.5:5000", after.owner(key));
+                moved++;
+            }
+        }
+        assertTrue(moved > KEYS / 5 * 0.7 && moved < KEYS / 5 * 1.3, moved + " keys moved");
+    }
+
+    @Test
+    void removingANodeOnlyMovesItsKeys() {
+        HashRing before = new HashRing(NODES, 100);
+        HashRing after = new HashRing(NODES.subList(0, 3), 100);
+        for (int i = 0; i < KEYS; i++) {
+            String key = "Town" + i;
+            if (!before.owner(key).equals(NODES.get(3))) {
+                assertEquals(before.owner(key), after.owner(key));
+            }
+        }
+    }
+
+    @Test
+    void singleNodeOwnsEverything() {
+        HashRing ring = new HashRing(Collections.singletonList("solo"), 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("solo", ring.owner("Town" + i));
+        }
+    }
+
+    @Test
+    void emptyRingIsRefused() {
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(Collections.emptyList(), 64));
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(NODES, 0));
+    }
+}
@@ -0,0 +1,77 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// The parallel path must store exactly what the streaming path stores for the same file
+class ParallelWeatherIngestTest {
+    private static final int LOCATIONS = 500;
+    private static final int REPEATS = 3;
+
+    private Path directory;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("parallel-ingest-test");
+        // Every location appears REPEATS times, far apart, with the repeat number as its temperature
+        List<WeatherRecord> records = new ArrayList<>();
+        for (int repeat = 0; repeat < REPEATS; repeat++) {
+            for (int i = 0; i < LOCATIONS; i++) {
+                records.add(WeatherIngestTest.record("Town" + i, repeat));
+            }
+        }
+        file = TestFiles.weatherFile(directory, records);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        TestFiles.delete(directory);
+    }
+
+    @Test
+    void plainUploadKeepsTheFirstRecordLikeTheStreamingPath() throws Exception {
+        assertSameAsStreaming(false, 0);
+    }
+
+    @Test
+    void deltaUploadKeepsTheLastRecordLikeTheStreamingPath() throws Exception {
+        assertSameAsStreaming(true, REPEATS - 1);
+    }
+
+    private void assertSameAsStreaming(boolean delta, double expectedTemperature) throws Exception {
+        WeatherIngest.Result streamed = upload(directory.resolve("stream"), WeatherIngest.Mode.STREAM, delta, new AtomicLong());
+        AtomicLong notified = new AtomicLong();
+        WeatherIngest.Result parallel = upload(directory.resolve("parallel"), WeatherIngest.Mode.PARALLEL, delta, notified);
+
+        assertEquals(LOCATIONS * REPEATS, parallel.getRecords());
+        assertEquals(streamed.getInserted(), parallel.getInserted());
+        assertEquals(streamed.getUpdated(), parallel.getUpdated());
+        assertEquals(streamed.getUnchanged(), parallel.getUnchanged());
+        assertEquals(parallel.getInserted() + parallel.getUpdated(), notified.get(), "listeners hear about every change once");
+        try (EmbeddedStorage storage = new EmbeddedStorage(directory.resolve("parallel"), false, 0, Long.MAX_VALUE)) {
+            for (int i = 0; i < LOCATIONS; i++) {
+                assertEquals(expectedTemperature, storage.findWeather("Town" + i).getCurrentTemperature(), 0);
+            }
+        }
+    }
+
+    // 1 KB chunks cut the file into over a hundred pieces, shared out over four parsers and four writers
+    private WeatherIngest.Result upload(Path storageDirectory, WeatherIngest.Mode mode, boolean delta, AtomicLong notified) throws Exception {
+        try (EmbeddedStorage storage = new EmbeddedStorage(storageDirectory, false, 0, Long.MAX_VALUE)) {
+            WeatherUpdateListener listener = records -> notified.addAndGet(records.size());
+            ParallelWeatherIngest parallel = new ParallelWeatherIngest(storage, 8, 64, listener, 4, 4, 1024);
+            WeatherIngest ingest = new WeatherIngest(storage, 8, 64, listener, parallel, Long.MAX_VALUE, null);
+            return ingest.load(file, mode, delta, progress -> { });
+        }
+    }
+}
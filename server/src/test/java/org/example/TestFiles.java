@@ -0,0 +1,47 @@
+package org.example;
+
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Temporary files for the tests that need a real directory
+final class TestFiles {
+    private TestFiles() {
+    }
+
+    // An upload file with the records in the given order, one per line like the sample weather.json
+    static Path weatherFile(Path directory, List<WeatherRecord> records) throws IOException {
+        StringBuilder json = new StringBuilder("[\n");
+        for (WeatherRecord record : records) {
+            JsonObject object = new JsonObject();
+            object.addProperty("location", record.getLocation());
+            object.addProperty("latitude", record.getLatitude());
+            object.addProperty("longitude", record.getLongitude());
+            object.addProperty("current_weather", record.getCurrentWeather());
+            object.addProperty("current_temperature", record.getCurrentTemperature());
+            object.add("forecast", record.getForecastJson() == null ? JsonNull.INSTANCE : JsonParser.parseString(record.getForecastJson()));
+            json.append(json.length() > 2 ? ",\n" : "").append(object);
+        }
+        Path file = Files.createTempFile(directory, "weather", ".json");
+        Files.write(file, json.append("\n]\n").toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class WeatherCacheTest {
+    private static final WeatherResponse SIBIU = response("Sibiu", 12.5);
+
+    private static WeatherResponse response(String location, double temperature) {
+        return WeatherResponse.of(new WeatherRecord(location, 45.8, 24.15, "Sunny", temperature, null));
+    }
+
+    @Test
+    void loadsOnceWithinTheTtl() throws Exception {
+        WeatherCache cache = new WeatherCache(100, 3600, 3600);
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertSame(SIBIU, cache.get("Sibiu", location -> {
+                loads.incrementAndGet();
+                return SIBIU;
+            }));
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    // A TTL of 0 expires every entry by the next lookup
+    @Test
+    void expiredEntriesAreLoadedAgain() throws Exception {
+        WeatherCache cache = new WeatherCache(100, 0, 0);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("Sibiu", location -> {
+            loads.incrementAndGet();
+            return SIBIU;
+        });
+        cache.get("Sibiu", location -> {
+            loads.incrementAndGet();
+            return SIBIU;
+        });
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    void unknownLocationsAreCachedWithTheirOwnTtl() throws Exception {
+        WeatherCache remembering = new WeatherCache(100, 0, 3600);
+        AtomicInteger loads = new AtomicInteger();
+        WeatherCache.Loader unknown = location -> {
+            loads.incrementAndGet();
+            return null;
+        };
+        assertNull(remembering.get("Atlantis", unknown));
+        assertNull(remembering.get("Atlantis", unknown));
+        assertEquals(1, loads.get());
+        assertEquals(1, remembering.getNegativeHits());
+
+        WeatherCache forgetting = new WeatherCache(100, 3600, 0);
+        forgetting.get("Atlantis", unknown);
+        forgetting.get("Atlantis", unknown);
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    void invalidateDropsTheEntry() throws Exception {
+        WeatherCache cache = new WeatherCache(100, 3600, 3600);
+        cache.get("Sibiu", location -> SIBIU);
+        cache.invalidate("Sibiu");
+        WeatherResponse uploaded = response("Sibiu", 20);
+        assertSame(uploaded, cache.get("Sibiu", location -> uploaded));
+        assertSame(uploaded, cache.get("Sibiu", location -> SIBIU));
+    }
+
+    // A row read before an upload invalidated it is handed to the caller but never cached
+    @Test
+    void invalidateDuringALoadKeepsTheReadRowOutOfTheCache() throws Exception {
+        WeatherCache cache = new WeatherCache(100, 3600, 3600);
+        assertSame(SIBIU, cache.get("Sibiu", location -> {
+            cache.invalidate(location);
+            return SIBIU;
+        }));
+        assertEquals(0, cache.size());
+        WeatherResponse uploaded = response("Sibiu", 20);
+        assertSame(uploaded, cache.get("Sibiu", location -> uploaded));
+    }
+
+    @Test
+    void getAllLoadsOnlyTheMissesInOneCall() throws Exception {
+        WeatherCache cache = new WeatherCache(100, 3600, 3600);
+        cache.get("Sibiu", location -> SIBIU);
+        WeatherResponse cluj = response("Cluj", 9);
+        AtomicInteger calls = new AtomicInteger();
+        Map<String, WeatherResponse> result = cache.getAll(Arrays.asList("Cluj", "Sibiu", "Atlantis", "Cluj"), locations -> {
+            calls.incrementAndGet();
+            assertEquals(Arrays.asList("Cluj", "Atlantis"), locations);
+            Map<String, WeatherResponse> loaded = new HashMap<>();
+            loaded.put("Cluj", cluj);
+            return loaded;
+        });
+        assertEquals(1, calls.get());
+        assertEquals(Arrays.asList("Cluj", "Sibiu", "Atlantis"), new ArrayList<>(result.keySet()));
+        assertSame(cluj, result.get("Cluj"));
+        assertSame(SIBIU, result.get("Sibiu"));
+        assertNull(result.get("Atlantis"));
+    }
+
+    // The LRU bound is per segment, so fill well past it and check the total stays near maxEntries
+    @Test
+    void evictsPastMaxEntries() throws Exception {
+        WeatherCache cache = new WeatherCache(32, 3600, 3600);
+        for (int i = 0; i < 1000; i++) {
+            String name = "Town" + i;
+            cache.get(name, location -> response(location, 0));
+        }
+        assertEquals(32, cache.size(), "every segment holds maxEntries / 16");
+        assertEquals(1000 - 32, cache.getEvictions());
+    }
+}
@@ -0,0 +1,125 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WeatherIngestTest {
+    private Path directory;
+    private EmbeddedStorage storage;
+    private final List<List<WeatherRecord>> updates = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = Files.createTempDirectory("ingest-test");
+        storage = new EmbeddedStorage(directory.resolve("storage"), false, 0, Long.MAX_VALUE);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        storage.close();
+        TestFiles.delete(directory);
+    }
+
+    static WeatherRecord record(String location, double temperature) {
+        return new WeatherRecord(location, 45.8, 24.15, "Sunny", temperature, "[{\"weather\":\"Rain\",\"temperature\":8.0}]");
+    }
+
+    // Small batches and chunks, so a few records already span several of each
+    private WeatherIngest ingest(int chunkSize) {
+        WeatherUpdateListener listener = updates::add;
+        return new WeatherIngest(storage, 2, chunkSize, listener, null, Long.MAX_VALUE, null);
+    }
+
+    private WeatherIngest.Result upload(WeatherIngest ingest, boolean delta, WeatherRecord... records) throws Exception {
+        Path file = TestFiles.weatherFile(directory, Arrays.asList(records));
+        return ingest.load(file, WeatherIngest.Mode.STREAM, delta, progress -> { });
+    }
+
+    @Test
+    void insertsEveryRecordAndReportsEachCommittedChunk() throws Exception {
+        WeatherIngest.Result result = upload(ingest(2), false, record("Sibiu", 1), record("Cluj", 2), record("Brasov", 3));
+
+        assertEquals(3, result.getRecords());
+        assertEquals(3, result.getInserted());
+        assertEquals(0, result.getUnchanged());
+        assertEquals(2, updates.size(), "one notification per committed chunk");
+        assertEquals(2, updates.get(0).size());
+        assertEquals("Brasov", updates.get(1).get(0).getLocation());
+        WeatherRecord stored = storage.findWeather("Cluj");
+        assertEquals(2, stored.getCurrentTemperature(), 0);
+        assertEquals("[{\"weather\":\"Rain\",\"temperature\":8.0}]", stored.getForecastJson());
+    }
+
+    // A plain upload only inserts new locations: the first record of a location wins, within a file and across uploads
+    @Test
+    void plainUploadKeepsTheFirstRecordOfALocation() throws Exception {
+        WeatherIngest ingest = ingest(100);
+        WeatherIngest.Result result = upload(ingest, false, record("Sibiu", 1), record("Cluj", 2), record("Sibiu", 3));
+        assertEquals(3, result.getRecords());
+        assertEquals(2, result.getInserted());
+        assertEquals(1, result.getUnchanged());
+        assertEquals(1, storage.findWeather("Sibiu").getCurrentTemperature(), 0);
+
+        result = upload(ingest, false, record("Sibiu", 4));
+        assertEquals(0, result.getInserted());
+        assertEquals(1, result.getUnchanged());
+        assertEquals(1, storage.findWeather("Sibiu").getCurrentTemperature(), 0);
+        assertEquals(1, updates.size(), "the second upload changed nothing");
+    }
+
+    @Test
+    void deltaUploadWritesOnlyChangedLocations() throws Exception {
+        WeatherIngest ingest = ingest(100);
+        upload(ingest, true, record("Sibiu", 1), record("Cluj", 2));
+        updates.clear();
+
+        WeatherIngest.Result result = upload(ingest, true, record("Sibiu", 1), record("Cluj", 5), record("Brasov", 3));
+        assertEquals(1, result.getInserted());
+        assertEquals(1, result.getUpdated());
+        assertEquals(1, result.getUnchanged());
+        assertEquals(1, updates.size());
+        List<String> changed = new ArrayList<>();
+        updates.get(0).forEach(record -> changed.add(record.getLocation()));
+        assertEquals(Arrays.asList("Cluj", "Brasov"), changed);
+        assertEquals(5, storage.findWeather("Cluj").getCurrentTemperature(), 0);
+    }
+
+    // A delta upload updates in place: the last record of a location wins (here it is in a later batch)
+    @Test
+    void deltaUploadKeepsTheLastRecordOfALocation() throws Exception {
+        WeatherIngest.Result result = upload(ingest(100), true, record("Sibiu", 1), record("Cluj", 2), record("Sibiu", 3));
+        assertEquals(2, result.getInserted());
+        assertEquals(1, result.getUpdated());
+        assertEquals(3, storage.findWeather("Sibiu").getCurrentTemperature(), 0);
+    }
+
+    // Chunks committed before a failure stay; the failing chunk is rolled back
+    @Test
+    void failedUploadKeepsTheChunksCommittedBeforeIt() throws Exception {
+        String json = "[" + "{\"location\":\"Sibiu\",\"latitude\":1,\"longitude\":2,\"current_weather\":\"Sunny\",\"current_temperature\":1},"
+                + "{\"location\":\"Cluj\",\"latitude\":1,\"longitude\":2,\"current_weather\":\"Sunny\",\"current_temperature\":2},"
+                + "{\"location\":\"Brasov\",\"latitude\":1,\"longitude\":2,\"current_weather\":\"Sunny\",\"current_temperature\":3},"
+                + "{\"latitude\":1,\"longitude\":2,\"current_weather\":\"Sunny\",\"current_temperature\":4}]";
+        Path file = Files.createTempFile(directory, "broken", ".json");
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+
+        IOException error = assertThrows(IOException.class, () -> ingest(2).load(file, WeatherIngest.Mode.STREAM, false, progress -> { }));
+        assertEquals("Record 4 is missing 'location'", error.getMessage());
+        assertNotNull(storage.findWeather("Sibiu"));
+        assertNotNull(storage.findWeather("Cluj"));
+        assertNull(storage.findWeather("Brasov"));
+    }
+}
@@ -0,0 +1,52 @@
+package org.example;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.Test;
+
+class WeatherRecordTest {
+    private static final String FORECAST = "[{\"weather\":\"Rain\",\"temperature\":8.0}]";
+    private static final WeatherRecord SIBIU = new WeatherRecord("Sibiu", 45.8, 24.15, "Sunny", 12.5, FORECAST);
+
+    @Test
+    void sameContentHasTheSameHash() {
+        assertEquals(SIBIU.getContentHash(), new WeatherRecord("Sibiu", 45.8, 24.15, "Sunny", 12.5, FORECAST).getContentHash());
+    }
+
+    // Only the stored columns count; when a record was observed goes to the history, not the row
+    @Test
+    void observationTimeIsNotPartOfTheHash() {
+        assertEquals(SIBIU.getContentHash(), new WeatherRecord("Sibiu", 45.8, 24.15, "Sunny", 12.5, FORECAST, 1_700_000_000).getContentHash());
+    }
+
+    @Test
+    void everyColumnChangesTheHash() {
+        long hash = SIBIU.getContentHash();
+        assertNotEquals(hash, new WeatherRecord("Cluj", 45.8, 24.15, "Sunny", 12.5, FORECAST).getContentHash());
+        assertNotEquals(hash, new WeatherRecord("Sibiu", 45.9, 24.15, "Sunny", 12.5, FORECAST).getContentHash());
+        assertNotEquals(hash, new WeatherRecord("Sibiu", 45.8, 24.16, "Sunny", 12.5, FORECAST).getContentHash());
+        assertNotEquals(hash, new WeatherRecord("Sibiu", 45.8, 24.15, "Cloudy", 12.5, FORECAST).getContentHash());
+        assertNotEquals(hash, new WeatherRecord("Sibiu", 45.8, 24.15, "Sunny", 12.6, FORECAST).getContentHash());
+        assertNotEquals(hash, new WeatherRecord("Sibiu", 45.8, 24.15, "Sunny", 12.5, "[]").getContentHash());
+    }
+
+    // Strings are separated, so text moving from one column to the next is a change
+    @Test
+    void textMovingBetweenColumnsChangesTheHash() {
+        assertNotEquals(new WeatherRecord("ab", 0, 0, "c", 0, null).getContentHash(), new WeatherRecord("a", 0, 0, "bc", 0, null).getContentHash());
+    }
+
+    @Test
+    void missingForecastDiffersFromAnEmptyOne() {
+        assertNotEquals(new WeatherRecord("Sibiu", 0, 0, "Sunny", 0, null).getContentHash(), new WeatherRecord("Sibiu", 0, 0, "Sunny", 0, "").getContentHash());
+    }
+
+    // 0 marks a hash that isn't computed yet, so it is never a result
+    @Test
+    void hashIsNeverZero() {
+        for (int i = 0; i < 10_000; i++) {
+            assertNotEquals(0, new WeatherRecord("Town" + i, i, -i, "Sunny", i / 10.0, null).getContentHash());
+        }
+    }
+}